@@ -30,7 +30,9 @@ import android.text.TextUtils;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.tomdroid.util.NoteHash;
 import org.tomdroid.util.Time;
+import org.tomdroid.util.TomboyDate;
 import org.tomdroid.xml.NoteContentBuilder;
 import org.tomdroid.xml.XmlUtils;
 
@@ -51,6 +53,11 @@ public class Note implements Serializable {
 	public static final String TAGS = "tags";
 	public static final String NOTE_CONTENT = "content";
 	public static final String NOTE_CONTENT_PLAIN = "content_plain";
+	public static final String LINKS = "links";
+	public static final String SYNC_BASE = "sync_base";
+	public static final String CONTENT_HASH = "content_hash";
+	public static final String SYNC_HASH = "sync_hash";
+	public static final String SERVER_REVISION = "server_revision";
 	
 	// Notes constants
 	public static final int NOTE_HIGHLIGHT_COLOR = 0x99FFFF00; // lowered alpha to show cursor
@@ -59,16 +66,23 @@ public class Note implements Serializable {
 	public static final float NOTE_SIZE_SMALL_FACTOR = 0.8f;
 	public static final float NOTE_SIZE_LARGE_FACTOR = 1.5f;
 	public static final float NOTE_SIZE_HUGE_FACTOR = 1.8f;
+	private static final long UNPARSED = Long.MIN_VALUE;	// last change date not parsed yet
 	
 	// Members
 	private SpannableStringBuilder noteContent;
 	private String xmlContent;
+	// the content as stored, the xml content starts at an offset in it (after the doubled title)
+	private String storedContent;
+	private int xmlContentStart;
 	private String url;
 	private String fileName;
 	private String title;
 	private String tags = "";
 	private String lastChangeDate;
+	private long lastChangeMillis = UNPARSED;
 	private int dbId;
+	// the server's sync revision of the note when it was last synced, -1 if unknown
+	private long serverRevision = -1;
 
 	// Unused members (for SD Card)
 	
@@ -97,6 +111,7 @@ public class Note implements Serializable {
 		setTitle(XmlUtils.unescape(json.optString("title")));
 		setGuid(json.optString("guid"));
 		setLastChangeDate(json.optString("last-change-date"));
+		setServerRevision(json.optLong("last-sync-revision", -1));
 		String newXMLContent = json.optString("note-content");
 		setXmlContent(newXMLContent);
 		JSONArray jtags = json.optJSONArray("tags");
@@ -165,6 +180,20 @@ public class Note implements Serializable {
 		time.parseTomboy(lastChangeDate);
 		return time;
 	}
+
+	/**
+	 * @return the last change date in milliseconds since the epoch, parsed once
+	 */
+	public long getLastChangeMillis() {
+		if (lastChangeMillis == UNPARSED) {
+			try {
+				lastChangeMillis = TomboyDate.parse(lastChangeDate);
+			} catch (IllegalArgumentException e) {
+				lastChangeMillis = getLastChangeDate().toMillis(false);
+			}
+		}
+		return lastChangeMillis;
+	}
 	
 	public Time getCreateDate() {
 		Time time = new Time();
@@ -176,24 +205,31 @@ public class Note implements Serializable {
 	
 	// sets change date to now
 	public void setLastChangeDate() {
-		Time now = new Time();
-		now.setToNow();
-		setLastChangeDate(now);
+		setLastChangeDate(TomboyDate.now());
 	}
 	
 	public void setLastChangeDate(Time lastChangeDateTime) {
-		this.lastChangeDate = lastChangeDateTime.formatTomboy();
+		setLastChangeDate(lastChangeDateTime.formatTomboy());
 	}
 	
 	public void setLastChangeDate(String lastChangeDateStr) {
 
 		this.lastChangeDate = lastChangeDateStr;
+		lastChangeMillis = UNPARSED;
 	}	
 
 	public void setCreateDate(String createDateStr) {		
 		this.createDate = createDateStr;
 	}
 	
+	public long getServerRevision() {
+		return serverRevision;
+	}
+
+	public void setServerRevision(long serverRevision) {
+		this.serverRevision = serverRevision;
+	}
+
 	public int getDbId() {
 		return dbId;
 	}
@@ -213,17 +249,50 @@ public class Note implements Serializable {
 	// TODO: should this handler passed around evolve into an observer pattern?
 	public SpannableStringBuilder getNoteContent(Handler handler) {
 		
+		return getNoteContent(handler, false);
+	}
+	
+	/**
+	 * @param chunked whether large notes are sent to the handler in parts as they are parsed,
+	 * see NoteContentBuilder.setChunked()
+	 */
+	public SpannableStringBuilder getNoteContent(Handler handler, boolean chunked) {
+		
 		// TODO not sure this is the right place to do this
-		noteContent = new NoteContentBuilder().setCaller(handler).setInputSource(xmlContent).setTitle(this.getTitle()).build();
+		noteContent = new NoteContentBuilder().setCaller(handler).setInputSource(storedContent == null ? "" : storedContent, xmlContentStart).setTitle(this.getTitle())
+				.setCacheKey(guid, lastChangeDate).setChunked(chunked).build();
 		return noteContent;
 	}
 	
+	/**
+	 * @return the NoteHash of the title, content and tags
+	 */
+	public String getContentHash() {
+		return NoteHash.of(title, getXmlContent(), tags);
+	}
+	
 	public String getXmlContent() {
+		// only cut out of the stored content when somebody needs it as a string
+		if (xmlContent == null && storedContent != null)
+			xmlContent = storedContent.substring(xmlContentStart);
 		return xmlContent;
 	}
 	
 	public void setXmlContent(String xmlContent) {
 		this.xmlContent = xmlContent;
+		this.storedContent = xmlContent;
+		this.xmlContentStart = 0;
+	}
+	
+	/**
+	 * Sets the xml content as a part of a longer string, without copying it
+	 * @param content string holding the xml content
+	 * @param start where the xml content starts in it
+	 */
+	public void setXmlContent(String content, int start) {
+		this.xmlContent = start == 0 ? content : null;
+		this.storedContent = content;
+		this.xmlContentStart = start;
 	}
 
 	@Override
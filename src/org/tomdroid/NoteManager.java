@@ -27,31 +27,35 @@ package org.tomdroid;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
-import android.text.Html;
 import android.widget.ListAdapter;
 
+import org.tomdroid.sync.Outbox;
 import org.tomdroid.ui.Tomdroid;
 import org.tomdroid.util.NoteListCursorAdapter;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.TLog;
-import org.tomdroid.util.Time;
+import org.tomdroid.util.TomboyDate;
+import org.tomdroid.xml.PlainTextExtractor;
 import org.tomdroid.xml.XmlUtils;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.regex.Matcher;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 @SuppressWarnings("deprecation")
 public class NoteManager {
 	
-	public static final String[] FULL_PROJECTION = { Note.ID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.MODIFIED_DATE, Note.GUID, Note.TAGS };
+	public static final String[] FULL_PROJECTION = { Note.ID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.MODIFIED_DATE, Note.GUID, Note.TAGS, Note.SERVER_REVISION };
 	public static final String[] LIST_PROJECTION = { Note.ID, Note.TITLE, Note.MODIFIED_DATE, Note.TAGS };
 	public static final String[] DATE_PROJECTION = { Note.ID, Note.GUID, Note.MODIFIED_DATE };
 	public static final String[] TITLE_PROJECTION = { Note.TITLE, Note.GUID };
+	public static final String[] TITLE_ID_PROJECTION = { Note.ID, Note.TITLE };
 	public static final String[] GUID_PROJECTION = { Note.ID, Note.GUID };
 	public static final String[] ID_PROJECTION = { Note.ID };
 	public static final String[] EMPTY_PROJECTION = {};
@@ -78,7 +82,7 @@ public class NoteManager {
 	}
 
 	// gets a note from the content provider, based on guid
-	public static Note getNoteByGuid(Activity activity, String guid) {
+	public static Note getNoteByGuid(Context context, String guid) {
 
 		Uri notes = Tomdroid.CONTENT_URI;
 		
@@ -86,13 +90,12 @@ public class NoteManager {
 		whereArgs[0] = guid;
 		
 		// The note identifier is the guid
-		ContentResolver cr = activity.getContentResolver();
+		ContentResolver cr = context.getContentResolver();
 		Cursor cursor = cr.query(notes,
                 FULL_PROJECTION,  
                 Note.GUID + "= ?",
                 whereArgs,
                 null);
-		activity.startManagingCursor(cursor);
 		if (cursor == null || cursor.getCount() == 0) {
 			cursor.close();
 			return null;
@@ -108,23 +111,26 @@ public class NoteManager {
 			
 			Note note = new Note();
 			note.setTitle(noteTitle);
-			note.setXmlContent(stripTitleFromContent(noteContent, noteTitle));
+			note.setXmlContent(noteContent, getContentStart(noteContent, noteTitle));
 			note.setLastChangeDate(noteChangeDate);
 			note.addTag(noteTags);
 			note.setGuid(noteGUID);
 			note.setDbId(noteDbid);
+			int serverRevision = cursor.getColumnIndexOrThrow(Note.SERVER_REVISION);
+			if (!cursor.isNull(serverRevision))
+				note.setServerRevision(cursor.getLong(serverRevision));
 			cursor.close();
 			return note;
 		}
 	}
 	
 	// gets a note from the content provider
-	public static Note getNote(Activity activity, Uri uri) {
+	public static Note getNote(Context context, Uri uri) {
 		
 		Note note = null;
 		
 		// can we find a matching note?
-		Cursor cursor = activity.managedQuery(uri, FULL_PROJECTION, null, null, null);
+		Cursor cursor = context.getContentResolver().query(uri, FULL_PROJECTION, null, null, null);
 		// cursor must not be null and must return more than 0 entry 
 		if (!(cursor == null || cursor.getCount() == 0)) {
 			
@@ -139,7 +145,7 @@ public class NoteManager {
 			
 			note = new Note();
 			note.setTitle(noteTitle);
-			note.setXmlContent(stripTitleFromContent(noteContent, noteTitle));
+			note.setXmlContent(noteContent, getContentStart(noteContent, noteTitle));
 			note.setLastChangeDate(noteChangeDate);
 			note.setTags(noteTags);
 			note.setGuid(noteGUID);
@@ -180,7 +186,7 @@ public class NoteManager {
 	
 	// puts a note in the content provider
 	// return uri
-	public static Uri putNote(Activity activity, Note note) {
+	public static Uri putNote(Context context, Note note) {
 		
 		// verify if the note is already in the content provider
 		
@@ -190,17 +196,16 @@ public class NoteManager {
 		whereArgs[0] = note.getGuid();
 		
 		// The note identifier is the guid
-		ContentResolver cr = activity.getContentResolver();
+		ContentResolver cr = context.getContentResolver();
 		Cursor managedCursor = cr.query(notes,
                 LIST_PROJECTION,  
                 Note.GUID + "= ?",
                 whereArgs,
                 null);
-		activity.startManagingCursor(managedCursor);
 
 		String title = note.getTitle();
 		String xmlContent = note.getXmlContent();
-		String plainContent = XmlUtils.escape(Html.fromHtml(title + "\n" + xmlContent).toString());
+		String plainContent = PlainTextExtractor.extract(title, xmlContent);
 		
 		// Preparing the values to be either inserted or updated
 		// depending on the result of the previous query
@@ -209,10 +214,11 @@ public class NoteManager {
 		values.put(Note.FILE, note.getFileName());
 		values.put(Note.GUID, note.getGuid().toString());
 		// Notice that we store the date in UTC because sqlite doesn't handle RFC3339 timezone information
-		values.put(Note.MODIFIED_DATE, note.getLastChangeDate().formatTomboy());
+		values.put(Note.MODIFIED_DATE, TomboyDate.formatUtc(note.getLastChangeMillis()));
 		values.put(Note.NOTE_CONTENT, xmlContent);
 		values.put(Note.NOTE_CONTENT_PLAIN, plainContent);
 		values.put(Note.TAGS, note.getTags());
+		values.put(Note.CONTENT_HASH, note.getContentHash());
 		
 		Uri uri = null;
 		
@@ -222,6 +228,8 @@ public class NoteManager {
 			TLog.v(TAG, "A new note has been detected (not yet in db)");
 			
     		uri = cr.insert(Tomdroid.CONTENT_URI, values);
+    		// a deleted note that came back
+    		Tombstones.remove(context, note.getGuid());
 
     		TLog.v(TAG, "Note inserted in content provider. ID: {0} TITLE:{1} GUID:{2}", uri, note.getTitle(),
                     note.getGuid());
@@ -231,46 +239,121 @@ public class NoteManager {
 
 			cr.update(Tomdroid.CONTENT_URI, values, Note.GUID+" = ?", whereArgs); 
 			
-			uri = Uri.parse(Tomdroid.CONTENT_URI+"/"+getNoteIdByGUID(activity, note.getGuid()));
+			uri = Uri.parse(Tomdroid.CONTENT_URI+"/"+getNoteIdByGUID(context, note.getGuid()));
 
 			TLog.v(TAG, "Note updated in content provider: TITLE:{0} GUID:{1} TAGS:{2}", note.getTitle(), note.getGuid(), note.getTags());
 		}
 		managedCursor.close();
-		note = getNote(activity, uri);
+		NoteRevisions.add(context, note);
+		// a pulled note is dequeued again by putSyncBase()
+		Outbox.add(context, note.getGuid(), note.getContentHash());
+		note = getNote(context, uri);
 		return uri;
 	}
 
-	// this function removes a "deleted" tag
-	public static void undeleteNote(Activity activity, Note note)
+	/**
+	 * @return the revisions kept of a note (NoteRevisions.LIST_PROJECTION), newest first
+	 */
+	public static Cursor getRevisions(Activity activity, String guid) {
+		
+		Cursor cursor = NoteRevisions.getRevisions(activity, guid);
+		activity.startManagingCursor(cursor);
+		return cursor;
+	}
+	
+	/**
+	 * Reverts a note to the title and content of one of its revisions, without the sync service.
+	 * The revert is a change like any other, it is synced and becomes the newest revision.
+	 * @return the uri of the note, null if the note or the revision is gone
+	 */
+	public static Uri restoreRevision(Activity activity, String guid, int revision) {
+		
+		Note note = getNoteByGuid(activity, guid);
+		String[] restored = NoteRevisions.getRevision(activity, guid, revision);
+		if (note == null || restored == null)
+			return null;
+		
+		note.setTitle(restored[0]);
+		note.setXmlContent(restored[1], getContentStart(restored[1], restored[0]));
+		note.setLastChangeDate();
+		TLog.d(TAG, "restoring revision {0} of {1}", revision, guid);
+		return putNote(activity, note);
+	}
+
+	/**
+	 * @return the content the note had when it was last synced, null if unknown
+	 */
+	public static String getSyncBase(Context context, String guid) {
+		
+		return getNoteColumn(context, guid, Note.SYNC_BASE);
+	}
+	
+	/**
+	 * @return the content hash the note had when it was last synced, null if unknown
+	 */
+	public static String getSyncHash(Context context, String guid) {
+		
+		return getNoteColumn(context, guid, Note.SYNC_HASH);
+	}
+	
+	private static String getNoteColumn(Context context, String guid, String column) {
+		
+		Cursor cursor = context.getContentResolver().query(Tomdroid.CONTENT_URI, new String[] { column },
+				Note.GUID + "= ?", new String[] { guid }, null);
+		if (cursor == null)
+			return null;
+		String value = null;
+		if (cursor.moveToFirst())
+			value = cursor.getString(0);
+		cursor.close();
+		return value;
+	}
+	
+	// keeps the note both sides of the sync agree on, it is the base of later merges; it needs no push any more
+	public static void putSyncBase(Context context, Note note) {
+		
+		ContentValues values = new ContentValues();
+		values.put(Note.SYNC_BASE, note.getXmlContent());
+		values.put(Note.SYNC_HASH, note.getContentHash());
+		if (note.getServerRevision() >= 0)
+			values.put(Note.SERVER_REVISION, note.getServerRevision());
+		context.getContentResolver().update(Tomdroid.CONTENT_URI, values, Note.GUID + " = ?", new String[] { note.getGuid() });
+		Outbox.removePushed(context, note);
+	}
+
+	// this function brings a deleted note back from its tombstone and its newest revision
+	public static boolean undeleteNote(Activity activity, Note note)
 	{
-		note.removeTag("system:deleted");
-		Time now = new Time();
-		now.setToNow();
-		note.setLastChangeDate(now);
+		String[] latest = NoteRevisions.getLatestRevision(activity, note.getGuid());
+		if (latest == null) {
+			TLog.w(TAG, "no revision left to undelete GUID:{0}", note.getGuid());
+			return false;
+		}
+		note.setTitle(latest[0]);
+		note.setXmlContent(latest[1], getContentStart(latest[1], latest[0]));
+		note.removeTag(Tombstones.DELETED_TAG);
+		note.setLastChangeDate();
 		putNote(activity,note);
+		return true;
 	}
 	
-	// this function just adds a "deleted" tag, to allow remote delete when syncing
-	public static void deleteNote(Activity activity, Note note)
+	// this function moves the note to the tombstones, to allow remote delete when syncing
+	public static void deleteNote(Context context, Note note)
 	{
-		note.addTag("system:deleted");
-		Time now = new Time();
-		now.setToNow();
-		note.setLastChangeDate(now);
-		putNote(activity,note);
+		Tombstones.add(context, note);
 	}
-	public static void deleteNote(Activity activity, String guid)
+	public static void deleteNote(Context context, String guid)
 	{
-		Note note = getNoteByGuid(activity,guid);
-		deleteNote(activity, note);
+		Note note = getNoteByGuid(context,guid);
+		deleteNote(context, note);
 	}
 	
 	// this function actually deletes the note locally, called when syncing
-	public static boolean deleteNote(Activity activity, int id)
+	public static boolean deleteNote(Context context, int id)
 	{
 		Uri uri = Uri.parse(Tomdroid.CONTENT_URI+"/"+id);
 
-		ContentResolver cr = activity.getContentResolver();
+		ContentResolver cr = context.getContentResolver();
 		int result = cr.delete(uri, null, null);
 		
 		if(result > 0) {
@@ -280,16 +363,23 @@ public class NoteManager {
 			return false;
 	}
 
-	// this function deletes deleted notes - if they never existed on the server, we still delete them at sync
+	// this function forgets deleted notes - if they never existed on the server, we still forget them at sync
 
-	public static void purgeDeletedNotes(Activity activity)
+	public static void purgeDeletedNotes(Context context)
 	{
-		// get a cursor representing all deleted notes from the NoteProvider
-		Uri notes = Tomdroid.CONTENT_URI;
-		String where = Note.TAGS + " LIKE '%system:deleted%'";
-		ContentResolver cr = activity.getContentResolver();
-		int rows = cr.delete(notes, where, null);
-		TLog.v(TAG, "Deleted {0} local notes based on system:deleted tag",rows);
+		Tombstones.purge(context);
+	}
+	
+	// the deleted notes waiting for sync, see Tombstones.getDeletedNotes()
+	public static ArrayList<Note> getDeletedNotes(Context context)
+	{
+		return Tombstones.getDeletedNotes(context);
+	}
+	
+	// a deleted note by the negative id the list shows it with
+	public static Note getDeletedNote(Activity activity, long listId)
+	{
+		return Tombstones.getDeletedNote(activity, listId);
 	}
 
 	// this function deletes all notes - called from preferences
@@ -300,32 +390,36 @@ public class NoteManager {
 		Uri notes = Tomdroid.CONTENT_URI;
 		ContentResolver cr = activity.getContentResolver();
 		int rows = cr.delete(notes, null, null);
+		NoteRevisions.deleteAll(activity);
+		Outbox.clear(activity);
 		TLog.v(TAG, "Deleted {0} local notes",rows);
 	}
 
 	public static Cursor getAllNotes(Activity activity, Boolean includeNotebookTemplates) {
 		// get a cursor representing all notes from the NoteProvider
 		Uri notes = Tomdroid.CONTENT_URI;
-		String where = "("+Note.TAGS + " NOT LIKE '%" + "system:deleted" + "%')";
+		String where = null;
 		if (!includeNotebookTemplates) {
-			where += " AND (" + Note.TAGS + " NOT LIKE '%" + "system:template" + "%')";
+			where = "(" + Note.TAGS + " NOT LIKE '%" + "system:template" + "%')";
 		}
 		return activity.managedQuery(notes, LIST_PROJECTION, where, null, sortOrder);		
 	}
 
 	// this function gets all non-deleted notes as notes in an array
 	
-	public static Note[] getAllNotesAsNotes(Activity activity, boolean includeNotebookTemplates) {
+	public static Note[] getAllNotesAsNotes(Context context, boolean includeNotebookTemplates) {
 		Uri uri = Tomdroid.CONTENT_URI;
-		String where = "("+Note.TAGS + " NOT LIKE '%" + "system:deleted" + "%')";
+		String where = null;
 		String orderBy;
 		if (!includeNotebookTemplates) {
-			where += " AND (" + Note.TAGS + " NOT LIKE '%" + "system:template" + "%')";
+			where = "(" + Note.TAGS + " NOT LIKE '%" + "system:template" + "%')";
 		}
 		orderBy = Note.MODIFIED_DATE + " DESC";
-		Cursor cursor = activity.managedQuery(uri, FULL_PROJECTION, where, null, orderBy);
+		Cursor cursor = context.getContentResolver().query(uri, FULL_PROJECTION, where, null, orderBy);
 		if (cursor == null || cursor.getCount() == 0) {
 			TLog.d(TAG, "no notes in cursor");
+			if (cursor != null)
+				cursor.close();
 			return null;
 		}
 		TLog.d(TAG, "{0} notes in cursor",cursor.getCount());
@@ -343,7 +437,7 @@ public class NoteManager {
 			
 			Note note = new Note();
 			note.setTitle(noteTitle);
-			note.setXmlContent(stripTitleFromContent(noteContent, noteTitle));
+			note.setXmlContent(noteContent, getContentStart(noteContent, noteTitle));
 			note.setLastChangeDate(noteChangeDate);
 			note.addTag(noteTags);
 			note.setGuid(noteGUID);
@@ -363,8 +457,6 @@ public class NoteManager {
 		int optionalQueries = 0;
 		if(!includeNotebookTemplates)
 			optionalQueries++;
-		if(!includeDeletedNotes)
-			optionalQueries++;
 		
 		String[] qargs = null;
 		String where = "";
@@ -375,17 +467,13 @@ public class NoteManager {
 			String[] query = querys.split(" ");
 			qargs = new String[query.length+optionalQueries];
 			for (String string : query) {
-				qargs[count++] = "%"+XmlUtils.escape(string)+"%"; 
+				qargs[count++] = "%"+PlainTextExtractor.normalize(string)+"%"; 
 				where = where + (where.length() > 0? " AND ":"")+"("+Note.NOTE_CONTENT_PLAIN+" LIKE ?)";
 			}	
 		}
 		else
 			qargs = new String[optionalQueries];
 		
-		if (!includeDeletedNotes) {
-			where += (where.length() > 0? " AND ":"")+"(" + Note.TAGS + " NOT LIKE ?)";
-			qargs[count++] = "%system:deleted%";
-		}
 		if (!includeNotebookTemplates) {
 			where += (where.length() > 0? " AND ":"")+"(" + Note.TAGS + " NOT LIKE ?)";
 			qargs[count++] = "%system:template%";
@@ -402,6 +490,13 @@ public class NoteManager {
 				sortOrder);
 		activity.startManagingCursor(notesCursor);
 		
+		// deleted notes have no content to search, they are listed after the others
+		if (includeDeletedNotes && querys == null) {
+			Cursor deletedCursor = cr.query(Tomdroid.DELETED_NOTES_URI, LIST_PROJECTION, null, null, null);
+			activity.startManagingCursor(deletedCursor);
+			notesCursor = new MergeCursor(new Cursor[] { notesCursor, deletedCursor });
+		}
+		
 		// set up an adapter binding the TITLE field of the cursor to the list item
 		String[] from = new String[] { Note.TITLE };
 		int[] to = new int[] { R.id.note_title };
@@ -421,19 +516,18 @@ public class NoteManager {
 		return getListAdapter(activity, null, -1);
 	}
 
-	// gets the titles of the notes present in the db, used in ViewNote.buildLinkifyPattern()
-	public static Cursor getTitles(Activity activity) {
+	// gets the titles of the notes present in the db, used in SyncService; the caller closes the cursor
+	public static Cursor getTitles(Context context) {
 		
-		String where = Note.TAGS + " NOT LIKE '%system:deleted%'";
 		// get a cursor containing the notes titles
-		return activity.managedQuery(Tomdroid.CONTENT_URI, TITLE_PROJECTION, where, null, null);
+		return context.getContentResolver().query(Tomdroid.CONTENT_URI, TITLE_PROJECTION, null, null, null);
 	}
 	
-	// gets the ids of the notes present in the db, used in SyncService.deleteNotes()
-	public static Cursor getGuids(Activity activity) {
+	// gets the ids of the notes present in the db, used in SyncService; the caller closes the cursor
+	public static Cursor getGuids(Context context) {
 		
 		// get a cursor containing the notes guids
-		return activity.managedQuery(Tomdroid.CONTENT_URI, GUID_PROJECTION, null, null, null);
+		return context.getContentResolver().query(Tomdroid.CONTENT_URI, GUID_PROJECTION, null, null, null);
 	}
 	
 	public static int getNoteId(Activity activity, String title) {
@@ -460,12 +554,12 @@ public class NoteManager {
 		return id;
 	}
 
-	public static int getNoteIdByGUID(Activity activity, String guid) {
+	public static int getNoteIdByGUID(Context context, String guid) {
 		int id = 0;
 		
 		// get the notes ids
 		String[] whereArgs = { guid };
-		Cursor cursor = activity.managedQuery(Tomdroid.CONTENT_URI, ID_PROJECTION, Note.GUID+"=?", whereArgs, null);
+		Cursor cursor = context.getContentResolver().query(Tomdroid.CONTENT_URI, ID_PROJECTION, Note.GUID+"=?", whereArgs, null);
 		
 		// cursor must not be null and must return more than 0 entry 
 		if (!(cursor == null || cursor.getCount() == 0)) {
@@ -492,12 +586,9 @@ public class NoteManager {
 	 */
 	public static String stripTitleFromContent(String xmlContent, String title) {
 		// get rid of the title that is doubled in the note's content
-		// using quote to escape potential regexp chars in pattern
-		Pattern stripTitle = Pattern.compile("^\\s*"+Pattern.quote(XmlUtils.escape(title))+"\\n\\n"); 
-
-		Matcher m = stripTitle.matcher(xmlContent);
-		if (m.find()) {
-			xmlContent = xmlContent.substring(m.end(), xmlContent.length());
+		int start = getContentStart(xmlContent, title);
+		if (start > 0) {
+			xmlContent = xmlContent.substring(start, xmlContent.length());
 			TLog.d(TAG, "stripped the title from note-content");
 		}
 		
@@ -505,14 +596,46 @@ public class NoteManager {
 	}
 	
 	/**
-	 * getNewNotes
-	 * get a guid list of notes that are newer than latest sync date 
-	 * @param activity
+	 * getContentStart
+	 * Finds where the content starts after the title that is doubled in <note-content> (whitespace, the title
+	 * and an empty line), without copying anything.
+	 * @return the offset of the content, 0 if it doesn't start with the title
 	 */
-	public static Cursor getNewNotes(Activity activity) {
-		Cursor cursor = activity.managedQuery(Tomdroid.CONTENT_URI, DATE_PROJECTION, "strftime('%s', "+Note.MODIFIED_DATE+") > strftime('%s', '"+Preferences.getString(Preferences.Key.LATEST_SYNC_DATE)+"')", null, null);	
-				
-		return cursor;
+	public static int getContentStart(String xmlContent, String title) {
+		String escapedTitle = XmlUtils.escape(title);
+		int whitespace = 0;
+		while (whitespace < xmlContent.length() && isWhitespace(xmlContent.charAt(whitespace)))
+			whitespace++;
+		
+		// like a regular expression, leading whitespace goes to the title if it doesn't fit otherwise
+		for (int start = whitespace; start >= 0; start--) {
+			int end = start + escapedTitle.length();
+			if (xmlContent.startsWith(escapedTitle, start) && xmlContent.startsWith("\n\n", end))
+				return end + 2;
+		}
+		return 0;
+	}
+	
+	// whitespace as in regular expressions' \s
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+	
+	/**
+	 * @return the guids of notes without a server revision: new ones, and ones not synced since
+	 * revisions are kept
+	 */
+	public static ArrayList<String> getGuidsWithoutServerRevision(Context context) {
+		
+		Cursor cursor = context.getContentResolver().query(Tomdroid.CONTENT_URI, GUID_PROJECTION,
+				Note.SERVER_REVISION + " IS NULL", null, null);
+		ArrayList<String> guids = new ArrayList<String>();
+		if (cursor == null)
+			return guids;
+		while (cursor.moveToNext())
+			guids.add(cursor.getString(1));
+		cursor.close();
+		return guids;
 	}
 
 	/**
@@ -576,29 +699,39 @@ public class NoteManager {
 	
 	/**
 	 * Builds a regular expression pattern that will match any of the note title currently in the collection.
-	 * Useful for the Linkify to create the links to the notes.
+	 * Useful for the Linkify to create the links to the notes. Only uses the ContentResolver, so it can be
+	 * called from a background thread.
+	 * @param ids receives the id of the note for each title (in upper case)
 	 * @return regexp pattern
 	 */
-	public static Pattern buildNoteLinkifyPattern(Activity activity, String noteTitle)  {
+	public static Pattern buildNoteLinkifyPattern(ContentResolver resolver, String noteTitle, Map<String, Integer> ids)  {
 	
 		StringBuilder sb = new StringBuilder();
-		Cursor cursor = getTitles(activity);
+		Cursor cursor = resolver.query(Tomdroid.CONTENT_URI, TITLE_ID_PROJECTION, null, null, null);
 	
 		// cursor must not be null and must return more than 0 entry
 		if (!(cursor == null || cursor.getCount() == 0)) {
 	
 			String title;
+			int titleIndex = cursor.getColumnIndexOrThrow(Note.TITLE);
+			int idIndex = cursor.getColumnIndexOrThrow(Note.ID);
 	
 			cursor.moveToFirst();
 	
 			do {
-				title = cursor.getString(cursor.getColumnIndexOrThrow(Note.TITLE));
+				title = cursor.getString(titleIndex);
 				if(title.length() == 0 || title.equals(noteTitle))
 					continue;
 				// Pattern.quote() here make sure that special characters in the note's title are properly escaped
 				sb.append("("+Pattern.quote(title)+")|");
+				
+				// the first note with a title wins, like in getNoteId()
+				String key = title.toUpperCase();
+				if(!ids.containsKey(key))
+					ids.put(key, cursor.getInt(idIndex));
 	
 			} while (cursor.moveToNext());
+			cursor.close();
 			
 			// if only empty titles, return
 			if (sb.length() == 0)
@@ -615,7 +748,8 @@ public class NoteManager {
 			// TODO send an error to the user
 			TLog.d(TAG, "Cursor returned null or 0 notes");
 		}
-		cursor.close();
+		if (cursor != null)
+			cursor.close();
 		
 		return null;
 	}
@@ -51,12 +51,14 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
-import android.text.Html;
 import android.text.TextUtils;
+import org.tomdroid.sync.ConflictQueue;
+import org.tomdroid.sync.Outbox;
 import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.NoteHash;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.TLog;
-import org.tomdroid.xml.XmlUtils;
+import org.tomdroid.xml.PlainTextExtractor;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -69,13 +71,24 @@ public class NoteProvider extends ContentProvider {
 	// --	
 	private static final String DATABASE_NAME = "tomdroid-notes.db";
 	private static final String DB_TABLE_NOTES = "notes";
-	private static final int DB_VERSION = 4;
+	private static final String DB_TABLE_CONFLICTS = "conflicts";
+	private static final String DB_TABLE_REVISIONS = "note_revisions";
+	private static final String DB_TABLE_TOMBSTONES = Tombstones.TABLE;
+	private static final String DB_TABLE_OUTBOX = Outbox.TABLE;
+	private static final int DB_VERSION = 12;
 	
     private static HashMap<String, String> notesProjectionMap;
 
     private static final int NOTES = 1;
     private static final int NOTE_ID = 2;
     private static final int NOTE_TITLE = 3;
+    private static final int NOTE_LINKS = 4;
+    private static final int CONFLICTS = 5;
+    private static final int CONFLICT_ID = 6;
+    private static final int REVISIONS = 7;
+    private static final int TOMBSTONES = 8;
+    private static final int DELETED_NOTES = 9;
+    private static final int OUTBOX = 10;
 
     private static final UriMatcher uriMatcher;
     
@@ -87,7 +100,23 @@ public class NoteProvider extends ContentProvider {
 		{ Note.TITLE, Note.FILE, Note.MODIFIED_DATE },
 		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.MODIFIED_DATE },
 		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.MODIFIED_DATE, Note.TAGS },
-		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS }
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS },
+		// links are found again when a note is shown
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS },
+		// the content at the last sync, notes from older versions have none
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS, Note.SYNC_BASE },
+		// the conflicts table was added, notes are the same
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS, Note.SYNC_BASE },
+		// the note_revisions table was added, notes are the same
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS, Note.SYNC_BASE },
+		// content hashes, of the note and of what was last synced (unknown for notes from older versions)
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS, Note.SYNC_BASE, Note.CONTENT_HASH, Note.SYNC_HASH },
+		// the server's revision of each note, unknown until it is synced again
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS, Note.SYNC_BASE, Note.CONTENT_HASH, Note.SYNC_HASH, Note.SERVER_REVISION },
+		// deleted notes moved to the tombstones table, notes are the same
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS, Note.SYNC_BASE, Note.CONTENT_HASH, Note.SYNC_HASH, Note.SERVER_REVISION },
+		// the outbox table was added, notes are the same
+		{ Note.GUID, Note.TITLE, Note.FILE, Note.NOTE_CONTENT, Note.NOTE_CONTENT_PLAIN, Note.MODIFIED_DATE, Note.TAGS, Note.SYNC_BASE, Note.CONTENT_HASH, Note.SYNC_HASH, Note.SERVER_REVISION }
 	};
 
     /**
@@ -109,7 +138,49 @@ public class NoteProvider extends ContentProvider {
                     + Note.NOTE_CONTENT + " TEXT,"
                     + Note.NOTE_CONTENT_PLAIN + " TEXT,"
                     + Note.MODIFIED_DATE + " STRING,"
-                    + Note.TAGS + " STRING"
+                    + Note.TAGS + " STRING,"
+                    + Note.LINKS + " TEXT,"
+                    + Note.SYNC_BASE + " TEXT,"
+                    + Note.CONTENT_HASH + " TEXT,"
+                    + Note.SYNC_HASH + " TEXT,"
+                    + Note.SERVER_REVISION + " INTEGER"
+                    + ");");
+            // upgrades create the notes table again, but keep the conflicts
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + DB_TABLE_CONFLICTS + " ("
+                    + ConflictQueue.ID + " INTEGER PRIMARY KEY,"
+                    + ConflictQueue.GUID + " TEXT,"
+                    + ConflictQueue.LOCAL_GUID + " TEXT,"
+                    + ConflictQueue.TITLE + " TEXT,"
+                    + ConflictQueue.FILE + " TEXT,"
+                    + ConflictQueue.MODIFIED_DATE + " STRING,"
+                    + ConflictQueue.CONTENT + " TEXT,"
+                    + ConflictQueue.TAGS + " STRING,"
+                    + ConflictQueue.DATE_DIFF + " INTEGER"
+                    + ");");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + DB_TABLE_REVISIONS + " ("
+                    + NoteRevisions.ID + " INTEGER PRIMARY KEY,"
+                    + NoteRevisions.GUID + " TEXT,"
+                    + NoteRevisions.REVISION + " INTEGER,"
+                    + NoteRevisions.MODIFIED_DATE + " STRING,"
+                    + NoteRevisions.TITLE + " TEXT,"
+                    + NoteRevisions.SNAPSHOT + " INTEGER,"
+                    + NoteRevisions.DATA + " TEXT"
+                    + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE_REVISIONS + "_guid ON " + DB_TABLE_REVISIONS
+                    + " (" + NoteRevisions.GUID + ", " + NoteRevisions.REVISION + ");");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + DB_TABLE_TOMBSTONES + " ("
+                    + Tombstones.ID + " INTEGER PRIMARY KEY,"
+                    + Tombstones.GUID + " TEXT UNIQUE,"
+                    + Tombstones.DELETED_AT + " STRING,"
+                    + Tombstones.SERVER_REVISION + " INTEGER,"
+                    + Tombstones.TAGS + " STRING"
+                    + ");");
+            // one row per note, queueing it again replaces the row
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + DB_TABLE_OUTBOX + " ("
+                    + Outbox.ID + " INTEGER PRIMARY KEY,"
+                    + Outbox.GUID + " TEXT UNIQUE,"
+                    + Outbox.CONTENT_HASH + " TEXT,"
+                    + Outbox.QUEUED_AT + " STRING"
                     + ");");
         }
 
@@ -142,7 +213,10 @@ public class NoteProvider extends ContentProvider {
 					row.put(Note.TAGS, "");
 				}
 				if (oldVersion <= 3) {
-					row.put(Note.NOTE_CONTENT_PLAIN, XmlUtils.escape(Html.fromHtml(row.get(Note.TITLE) + "\n" + row.get(Note.NOTE_CONTENT)).toString()));
+					row.put(Note.NOTE_CONTENT_PLAIN, PlainTextExtractor.extract(row.get(Note.TITLE), row.get(Note.NOTE_CONTENT)));
+				}
+				if (oldVersion <= 8) {
+					row.put(Note.CONTENT_HASH, NoteHash.of(row.get(Note.TITLE), row.get(Note.NOTE_CONTENT), row.get(Note.TAGS)));
 				}
 
 				db_list.add(row);
@@ -158,8 +232,51 @@ public class NoteProvider extends ContentProvider {
 				for(int j = 0; j < COLUMNS_VERSION[newVersion - 1].length; j++) {
 					row.put(COLUMNS_VERSION[newVersion - 1][j], db_list.get(i).get(COLUMNS_VERSION[newVersion - 1][j]));
 				}
-				db.insert(DB_TABLE_NOTES, null, row);
+				String tags = row.getAsString(Note.TAGS);
+				if (oldVersion <= 10 && tags != null && tags.contains(Tombstones.DELETED_TAG))
+					putTombstone(db, row);
+				else
+					db.insert(DB_TABLE_NOTES, null, row);
 			}
+
+			if (oldVersion <= 11)
+				fillOutbox(db);
+        }
+
+        // queues what older versions found to push by comparing every note with the last sync
+        private void fillOutbox(SQLiteDatabase db) {
+        	db.execSQL("INSERT OR REPLACE INTO " + DB_TABLE_OUTBOX + " (" + Outbox.GUID + ", " + Outbox.CONTENT_HASH
+        			+ ", " + Outbox.QUEUED_AT + ") SELECT " + Note.GUID + ", " + Note.CONTENT_HASH + ", " + Note.MODIFIED_DATE
+        			+ " FROM " + DB_TABLE_NOTES + " WHERE " + Note.SYNC_HASH + " IS NOT NULL AND " + Note.CONTENT_HASH
+        			+ " != " + Note.SYNC_HASH + " OR " + Note.SYNC_HASH + " IS NULL AND strftime('%s', " + Note.MODIFIED_DATE
+        			+ ") > strftime('%s', ?)", new Object[] { Preferences.getString(Preferences.Key.LATEST_SYNC_DATE) });
+        	db.execSQL("INSERT OR REPLACE INTO " + DB_TABLE_OUTBOX + " (" + Outbox.GUID + ", " + Outbox.QUEUED_AT
+        			+ ") SELECT " + Tombstones.GUID + ", " + Tombstones.DELETED_AT + " FROM " + DB_TABLE_TOMBSTONES);
+        }
+
+        // a deleted note of an older version, its content becomes its newest revision
+        private void putTombstone(SQLiteDatabase db, ContentValues note) {
+        	String guid = note.getAsString(Note.GUID);
+        	Cursor cursor = db.rawQuery("SELECT MAX(" + NoteRevisions.REVISION + ") FROM " + DB_TABLE_REVISIONS
+        			+ " WHERE " + NoteRevisions.GUID + " = ?", new String[] { guid });
+        	int revision = cursor.moveToFirst() ? cursor.getInt(0) + 1 : 1;
+        	cursor.close();
+
+        	ContentValues values = new ContentValues();
+        	values.put(NoteRevisions.GUID, guid);
+        	values.put(NoteRevisions.REVISION, revision);
+        	values.put(NoteRevisions.MODIFIED_DATE, note.getAsString(Note.MODIFIED_DATE));
+        	values.put(NoteRevisions.TITLE, note.getAsString(Note.TITLE));
+        	values.put(NoteRevisions.SNAPSHOT, 1);
+        	values.put(NoteRevisions.DATA, note.getAsString(Note.NOTE_CONTENT));
+        	db.insert(DB_TABLE_REVISIONS, null, values);
+
+        	values = new ContentValues();
+        	values.put(Tombstones.GUID, guid);
+        	values.put(Tombstones.DELETED_AT, note.getAsString(Note.MODIFIED_DATE));
+        	values.put(Tombstones.SERVER_REVISION, note.getAsString(Note.SERVER_REVISION));
+        	values.put(Tombstones.TAGS, note.getAsString(Note.TAGS));
+        	db.insert(DB_TABLE_TOMBSTONES, null, values);
         }
     }
 
@@ -195,6 +312,35 @@ public class NoteProvider extends ContentProvider {
         	qb.appendWhere(Note.TITLE + " LIKE '" + uri.getLastPathSegment()+"'");
         	break;
 
+        case CONFLICTS:
+        	qb.setTables(DB_TABLE_CONFLICTS);
+        	// conflicts are resolved in the order they were found
+        	if (TextUtils.isEmpty(sortOrder))
+        		sortOrder = ConflictQueue.ID + " ASC";
+        	break;
+
+        case REVISIONS:
+        	qb.setTables(DB_TABLE_REVISIONS);
+        	if (TextUtils.isEmpty(sortOrder))
+        		sortOrder = NoteRevisions.REVISION + " DESC";
+        	break;
+
+        case TOMBSTONES:
+        	qb.setTables(DB_TABLE_TOMBSTONES);
+        	if (TextUtils.isEmpty(sortOrder))
+        		sortOrder = Tombstones.DELETED_AT + " DESC";
+        	break;
+
+        case DELETED_NOTES:
+        	return queryDeletedNotes(uri);
+
+        case OUTBOX:
+        	qb.setTables(DB_TABLE_OUTBOX);
+        	// oldest change first
+        	if (TextUtils.isEmpty(sortOrder))
+        		sortOrder = Outbox.ID + " ASC";
+        	break;
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -243,6 +389,29 @@ public class NoteProvider extends ContentProvider {
     // TODO the following method is probably never called and probably wouldn't work
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        if (uriMatcher.match(uri) == CONFLICTS) {
+        	long rowId = dbHelper.getWritableDatabase().insert(DB_TABLE_CONFLICTS, null, initialValues);
+        	if (rowId > 0)
+        		return ContentUris.withAppendedId(Tomdroid.CONFLICTS_URI, rowId);
+        	throw new SQLException("Failed to insert row into " + uri);
+        }
+        if (uriMatcher.match(uri) == TOMBSTONES) {
+        	return insertTombstone(initialValues);
+        }
+        if (uriMatcher.match(uri) == OUTBOX) {
+        	// the row of an earlier change goes, the new one is last
+        	long rowId = dbHelper.getWritableDatabase().replace(DB_TABLE_OUTBOX, null, initialValues);
+        	if (rowId > 0)
+        		return ContentUris.withAppendedId(Tomdroid.OUTBOX_URI, rowId);
+        	throw new SQLException("Failed to insert row into " + uri);
+        }
+        if (uriMatcher.match(uri) == REVISIONS) {
+        	long rowId = dbHelper.getWritableDatabase().insert(DB_TABLE_REVISIONS, null, initialValues);
+        	if (rowId > 0)
+        		return ContentUris.withAppendedId(Tomdroid.REVISIONS_URI, rowId);
+        	throw new SQLException("Failed to insert row into " + uri);
+        }
+
         // Validate the requested uri
         if (uriMatcher.match(uri) != NOTES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
@@ -293,6 +462,41 @@ public class NoteProvider extends ContentProvider {
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    // moves a note to the tombstones, the note is never in both or in none
+    private Uri insertTombstone(ContentValues values) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.replace(DB_TABLE_TOMBSTONES, null, values);
+            if (rowId <= 0)
+                throw new SQLException("Failed to insert row into " + Tomdroid.TOMBSTONES_URI);
+            db.delete(DB_TABLE_NOTES, Note.GUID + " = ?", new String[] { values.getAsString(Tombstones.GUID) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        getContext().getContentResolver().notifyChange(Tomdroid.CONTENT_URI, null);
+        return ContentUris.withAppendedId(Tomdroid.TOMBSTONES_URI, rowId);
+    }
+
+    // deleted notes for the note list, titled like their newest revision
+    private Cursor queryDeletedNotes(Uri uri) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor c = db.rawQuery("SELECT -t." + Tombstones.ID + " AS " + Note.ID
+                + ", r." + NoteRevisions.TITLE + " AS " + Note.TITLE
+                + ", t." + Tombstones.DELETED_AT + " AS " + Note.MODIFIED_DATE
+                + ", '" + Tombstones.DELETED_TAG + "' AS " + Note.TAGS
+                + " FROM " + DB_TABLE_TOMBSTONES + " t LEFT JOIN " + DB_TABLE_REVISIONS + " r"
+                + " ON r." + NoteRevisions.GUID + " = t." + Tombstones.GUID
+                + " AND r." + NoteRevisions.REVISION + " = (SELECT MAX(" + NoteRevisions.REVISION + ") FROM "
+                + DB_TABLE_REVISIONS + " WHERE " + NoteRevisions.GUID + " = t." + Tombstones.GUID + ")"
+                + " ORDER BY t." + Tombstones.DELETED_AT + " DESC", null);
+        // deleting or undeleting notifies the notes
+        c.setNotificationUri(getContext().getContentResolver(), Tomdroid.CONTENT_URI);
+        return c;
+    }
+
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
@@ -308,6 +512,27 @@ public class NoteProvider extends ContentProvider {
                     + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
             break;
 
+        case CONFLICTS:
+        	// the note list doesn't show conflicts, nobody has to be told
+        	return db.delete(DB_TABLE_CONFLICTS, where, whereArgs);
+
+        case CONFLICT_ID:
+        	return db.delete(DB_TABLE_CONFLICTS, ConflictQueue.ID + "=" + uri.getPathSegments().get(1), null);
+
+        case REVISIONS:
+        	// nothing shows revisions while they change
+        	return db.delete(DB_TABLE_REVISIONS, where, whereArgs);
+
+        case OUTBOX:
+        	// nothing shows the outbox
+        	return db.delete(DB_TABLE_OUTBOX, where, whereArgs);
+
+        case TOMBSTONES:
+        	// the note list shows deleted notes
+        	count = db.delete(DB_TABLE_TOMBSTONES, where, whereArgs);
+        	getContext().getContentResolver().notifyChange(Tomdroid.CONTENT_URI, null);
+        	return count;
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -331,6 +556,13 @@ public class NoteProvider extends ContentProvider {
                     + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
             break;
 
+        case NOTE_LINKS:
+        	// links are only derived from the note, nobody has to be told about them
+        	String linksNoteId = uri.getPathSegments().get(1);
+        	ContentValues links = new ContentValues();
+        	links.put(Note.LINKS, values.getAsString(Note.LINKS));
+        	return db.update(DB_TABLE_NOTES, links, Note.ID + "=" + linksNoteId, null);
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -344,6 +576,13 @@ public class NoteProvider extends ContentProvider {
         uriMatcher.addURI(Tomdroid.AUTHORITY, "notes", NOTES);
         uriMatcher.addURI(Tomdroid.AUTHORITY, "notes/#", NOTE_ID);
         uriMatcher.addURI(Tomdroid.AUTHORITY, "notes/*", NOTE_TITLE);
+        uriMatcher.addURI(Tomdroid.AUTHORITY, "notes/#/links", NOTE_LINKS);
+        uriMatcher.addURI(Tomdroid.AUTHORITY, "conflicts", CONFLICTS);
+        uriMatcher.addURI(Tomdroid.AUTHORITY, "conflicts/#", CONFLICT_ID);
+        uriMatcher.addURI(Tomdroid.AUTHORITY, "revisions", REVISIONS);
+        uriMatcher.addURI(Tomdroid.AUTHORITY, "tombstones", TOMBSTONES);
+        uriMatcher.addURI(Tomdroid.AUTHORITY, "deleted_notes", DELETED_NOTES);
+        uriMatcher.addURI(Tomdroid.AUTHORITY, "outbox", OUTBOX);
 
         notesProjectionMap = new HashMap<String, String>();
         notesProjectionMap.put(Note.ID, Note.ID);
@@ -354,5 +593,10 @@ public class NoteProvider extends ContentProvider {
         notesProjectionMap.put(Note.NOTE_CONTENT_PLAIN, Note.NOTE_CONTENT_PLAIN);
         notesProjectionMap.put(Note.TAGS, Note.TAGS);
         notesProjectionMap.put(Note.MODIFIED_DATE, Note.MODIFIED_DATE);
+        notesProjectionMap.put(Note.LINKS, Note.LINKS);
+        notesProjectionMap.put(Note.SYNC_BASE, Note.SYNC_BASE);
+        notesProjectionMap.put(Note.CONTENT_HASH, Note.CONTENT_HASH);
+        notesProjectionMap.put(Note.SYNC_HASH, Note.SYNC_HASH);
+        notesProjectionMap.put(Note.SERVER_REVISION, Note.SERVER_REVISION);
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.RevisionDelta;
+import org.tomdroid.util.TLog;
+import org.tomdroid.util.TomboyDate;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * The local history of each note, kept in the content provider so a note can be reverted without the
+ * sync service. Every SNAPSHOT_INTERVAL revisions the whole content is stored, the revisions in between
+ * only store a RevisionDelta from the one before, so a revision is rebuilt from at most that many rows.
+ */
+public class NoteRevisions {
+
+	private static final String TAG = "NoteRevisions";
+
+	// columns of the note_revisions table
+	public static final String ID = "_id";
+	public static final String GUID = Note.GUID;
+	public static final String REVISION = "revision";
+	public static final String MODIFIED_DATE = Note.MODIFIED_DATE;
+	public static final String TITLE = Note.TITLE;
+	public static final String SNAPSHOT = "snapshot";
+	public static final String DATA = "data";
+
+	public static final String[] LIST_PROJECTION = { ID, REVISION, MODIFIED_DATE, TITLE };
+	private static final String[] CHAIN_PROJECTION = { REVISION, TITLE, SNAPSHOT, DATA };
+
+	// a full copy of the content at least every this many revisions
+	public static final int SNAPSHOT_INTERVAL = 10;
+	// revisions kept for each note, rounded up to the snapshot the oldest one needs
+	public static final int MAX_REVISIONS = 50;
+
+	/**
+	 * Stores the note as its newest revision, unless its title and content are the ones of the newest
+	 */
+	public static void add(Context context, Note note) {
+
+		ContentResolver cr = context.getContentResolver();
+		String guid = note.getGuid();
+		String title = note.getTitle();
+		String content = note.getXmlContent();
+
+		Revision last = getChain(cr, guid, Integer.MAX_VALUE);
+		if (last != null && last.title.equals(title) && last.content.equals(content))
+			return;
+
+		ContentValues values = new ContentValues();
+		values.put(GUID, guid);
+		values.put(REVISION, last == null ? 1 : last.revision + 1);
+		values.put(MODIFIED_DATE, TomboyDate.formatUtc(note.getLastChangeMillis()));
+		values.put(TITLE, title);
+
+		String delta = last == null || last.deltas >= SNAPSHOT_INTERVAL - 1 ? null : RevisionDelta.encode(last.content, content);
+		// a rewrite stores no less than the content itself, and starts a new chain
+		if (delta == null || delta.length() >= content.length()) {
+			values.put(SNAPSHOT, 1);
+			values.put(DATA, content);
+		} else {
+			values.put(SNAPSHOT, 0);
+			values.put(DATA, delta);
+		}
+		cr.insert(Tomdroid.REVISIONS_URI, values);
+
+		if (last != null)
+			prune(cr, guid, last.revision + 1);
+	}
+
+	/**
+	 * @return the revisions of a note, newest first
+	 */
+	public static Cursor getRevisions(Context context, String guid) {
+
+		return context.getContentResolver().query(Tomdroid.REVISIONS_URI, LIST_PROJECTION, GUID + " = ?",
+				new String[] { guid }, REVISION + " DESC");
+	}
+
+	/**
+	 * @return the title (index 0) and content (index 1) of a revision, null if it isn't kept
+	 */
+	public static String[] getRevision(Context context, String guid, int revision) {
+
+		Revision found = getChain(context.getContentResolver(), guid, revision);
+		if (found == null || found.revision != revision)
+			return null;
+		return new String[] { found.title, found.content };
+	}
+
+	/**
+	 * @return the title (index 0) and content (index 1) of the newest revision, null if there is none
+	 */
+	public static String[] getLatestRevision(Context context, String guid) {
+
+		Revision found = getChain(context.getContentResolver(), guid, Integer.MAX_VALUE);
+		if (found == null)
+			return null;
+		return new String[] { found.title, found.content };
+	}
+
+	public static void deleteAll(Context context) {
+
+		context.getContentResolver().delete(Tomdroid.REVISIONS_URI, null, null);
+	}
+
+	// a revision rebuilt from its snapshot
+	private static class Revision {
+		int revision;
+		String title;
+		String content;
+		// revisions after the snapshot
+		int deltas;
+	}
+
+	// rebuilds the newest revision not after the given one
+	private static Revision getChain(ContentResolver cr, String guid, int revision) {
+
+		Cursor cursor = cr.query(Tomdroid.REVISIONS_URI, CHAIN_PROJECTION, GUID + " = ? AND " + REVISION + " <= ?",
+				new String[] { guid, String.valueOf(revision) }, REVISION + " DESC");
+		if (cursor == null)
+			return null;
+
+		Revision found = null;
+		List<String> deltas = new ArrayList<String>();
+		try {
+			while (cursor.moveToNext()) {
+				if (found == null) {
+					found = new Revision();
+					found.revision = cursor.getInt(0);
+					found.title = cursor.getString(1);
+				}
+				if (cursor.getInt(2) == 1) {
+					found.content = cursor.getString(3);
+					break;
+				}
+				deltas.add(cursor.getString(3));
+			}
+		} finally {
+			cursor.close();
+		}
+		if (found == null)
+			return null;
+		if (found.content == null) {
+			TLog.w(TAG, "revision {0} of {1} has no snapshot", found.revision, guid);
+			return null;
+		}
+
+		try {
+			for (int i = deltas.size() - 1; i >= 0; i--)
+				found.content = RevisionDelta.apply(found.content, deltas.get(i));
+		} catch (IllegalArgumentException e) {
+			TLog.w(TAG, e, "revision {0} of {1} can't be rebuilt", found.revision, guid);
+			return null;
+		}
+		found.deltas = deltas.size();
+		return found;
+	}
+
+	// forgets old revisions, but never a snapshot a kept one is rebuilt from
+	private static void prune(ContentResolver cr, String guid, int newest) {
+
+		int oldestKept = newest - MAX_REVISIONS + 1;
+		if (oldestKept <= 1)
+			return;
+
+		Cursor cursor = cr.query(Tomdroid.REVISIONS_URI, new String[] { REVISION },
+				GUID + " = ? AND " + SNAPSHOT + " = 1 AND " + REVISION + " <= ?",
+				new String[] { guid, String.valueOf(oldestKept) }, REVISION + " DESC");
+		if (cursor == null)
+			return;
+		int snapshot = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		cursor.close();
+
+		if (snapshot > 1) {
+			int rows = cr.delete(Tomdroid.REVISIONS_URI, GUID + " = ? AND " + REVISION + " < ?",
+					new String[] { guid, String.valueOf(snapshot) });
+			TLog.v(TAG, "pruned {0} revisions of {1}", rows, guid);
+		}
+	}
+}
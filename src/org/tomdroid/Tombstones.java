@@ -0,0 +1,138 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid;
+
+import java.util.ArrayList;
+
+import org.tomdroid.sync.Outbox;
+import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.TLog;
+import org.tomdroid.util.TomboyDate;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * What is left of a deleted note until the deletion is synced: its guid, when it was deleted, the
+ * server's revision it was deleted at and its tags. The note itself leaves the notes table, its
+ * content stays in NoteRevisions, which undelete it from.
+ */
+public class Tombstones {
+
+	private static final String TAG = "Tombstones";
+
+	// columns of the tombstones table
+	public static final String ID = "_id";
+	public static final String GUID = Note.GUID;
+	public static final String DELETED_AT = "deleted_at";
+	public static final String SERVER_REVISION = Note.SERVER_REVISION;
+	public static final String TAGS = Note.TAGS;
+
+	private static final String[] PROJECTION = { ID, GUID, DELETED_AT, SERVER_REVISION, TAGS };
+
+	// the table the provider keeps them in, for subqueries
+	public static final String TABLE = "tombstones";
+	public static final String DELETED_TAG = "system:deleted";
+
+	/**
+	 * Moves a note out of the notes table, the provider does it in one transaction
+	 */
+	public static void add(Context context, Note note) {
+
+		// the content can only come back from its history
+		NoteRevisions.add(context, note);
+
+		ContentValues values = new ContentValues();
+		values.put(GUID, note.getGuid());
+		values.put(DELETED_AT, TomboyDate.formatUtc(System.currentTimeMillis()));
+		if (note.getServerRevision() >= 0)
+			values.put(SERVER_REVISION, note.getServerRevision());
+		values.put(TAGS, note.getTags());
+		context.getContentResolver().insert(Tomdroid.TOMBSTONES_URI, values);
+		Outbox.add(context, note.getGuid(), null);
+
+		TLog.v(TAG, "deleted note TITLE:{0} GUID:{1}", note.getTitle(), note.getGuid());
+	}
+
+	/**
+	 * Forgets the deletion of a note that is back
+	 */
+	public static void remove(Context context, String guid) {
+
+		context.getContentResolver().delete(Tomdroid.TOMBSTONES_URI, GUID + " = ?", new String[] { guid });
+	}
+
+	/**
+	 * @return the deleted notes as notes for the sync services: guid, tags with the deleted tag,
+	 * the time of the deletion as last change date and the server revision, no content
+	 */
+	public static ArrayList<Note> getDeletedNotes(Context context) {
+
+		ArrayList<Note> notes = new ArrayList<Note>();
+		Cursor cursor = context.getContentResolver().query(Tomdroid.TOMBSTONES_URI, PROJECTION, null, null, null);
+		if (cursor == null)
+			return notes;
+		while (cursor.moveToNext())
+			notes.add(toNote(cursor));
+		cursor.close();
+		return notes;
+	}
+
+	/**
+	 * @return the deleted note for the id the list shows it with, see Tomdroid.DELETED_NOTES_URI
+	 */
+	public static Note getDeletedNote(Context context, long listId) {
+
+		Cursor cursor = context.getContentResolver().query(Tomdroid.TOMBSTONES_URI, PROJECTION, ID + " = ?",
+				new String[] { String.valueOf(-listId) }, null);
+		if (cursor == null)
+			return null;
+		Note note = cursor.moveToFirst() ? toNote(cursor) : null;
+		cursor.close();
+		return note;
+	}
+
+	/**
+	 * Forgets synced deletions, and the history and queued deletion of the deleted notes with them
+	 */
+	public static void purge(Context context) {
+
+		context.getContentResolver().delete(Tomdroid.OUTBOX_URI, Outbox.CONTENT_HASH + " IS NULL AND "
+				+ Outbox.GUID + " IN (SELECT " + GUID + " FROM " + TABLE + ")", null);
+		context.getContentResolver().delete(Tomdroid.REVISIONS_URI,
+				NoteRevisions.GUID + " IN (SELECT " + GUID + " FROM " + TABLE + ")", null);
+		int rows = context.getContentResolver().delete(Tomdroid.TOMBSTONES_URI, null, null);
+		TLog.v(TAG, "purged {0} deleted notes", rows);
+	}
+
+	private static Note toNote(Cursor cursor) {
+
+		Note note = new Note();
+		note.setGuid(cursor.getString(1));
+		note.setLastChangeDate(cursor.getString(2));
+		if (!cursor.isNull(3))
+			note.setServerRevision(cursor.getLong(3));
+		note.setTags(cursor.isNull(4) ? "" : cursor.getString(4));
+		note.addTag(DELETED_TAG);
+		return note;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.sync;
+
+import org.tomdroid.Note;
+import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.TLog;
+import org.tomdroid.util.TomboyDate;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Sync conflicts waiting for the user, kept in the content provider. Sync adds them and goes on with
+ * the other notes, CompareNotes shows them one after the other. The remote version is stored with the
+ * conflict, so it survives until it is resolved even when the app is closed in between.
+ */
+public class ConflictQueue {
+
+	private static final String TAG = "ConflictQueue";
+
+	// columns of the conflicts table, the remote note and how it compares to the local one
+	public static final String ID = "_id";
+	public static final String GUID = Note.GUID;
+	public static final String LOCAL_GUID = "local_guid";
+	public static final String TITLE = Note.TITLE;
+	public static final String FILE = Note.FILE;
+	public static final String MODIFIED_DATE = Note.MODIFIED_DATE;
+	public static final String CONTENT = Note.NOTE_CONTENT;
+	public static final String TAGS = Note.TAGS;
+	public static final String DATE_DIFF = "date_diff";
+
+	private static final String[] PROJECTION = { ID, GUID, LOCAL_GUID, TITLE, FILE, MODIFIED_DATE, CONTENT, TAGS, DATE_DIFF };
+
+	/**
+	 * Queues a conflict, replacing an older one for the same remote note
+	 */
+	public static void add(Context context, Note localNote, Note remoteNote) {
+
+		ContentResolver cr = context.getContentResolver();
+		cr.delete(Tomdroid.CONFLICTS_URI, GUID + " = ?", new String[] { remoteNote.getGuid() });
+
+		ContentValues values = new ContentValues();
+		values.put(GUID, remoteNote.getGuid());
+		// a different local note has the same title
+		if (!remoteNote.getGuid().equals(localNote.getGuid()))
+			values.put(LOCAL_GUID, localNote.getGuid());
+		values.put(TITLE, remoteNote.getTitle());
+		values.put(FILE, remoteNote.getFileName());
+		values.put(MODIFIED_DATE, TomboyDate.formatUtc(remoteNote.getLastChangeMillis()));
+		values.put(CONTENT, remoteNote.getXmlContent());
+		values.put(TAGS, remoteNote.getTags());
+		values.put(DATE_DIFF, TomboyDate.compare(localNote.getLastChangeMillis(), remoteNote.getLastChangeMillis()));
+		cr.insert(Tomdroid.CONFLICTS_URI, values);
+
+		TLog.v(TAG, "queued conflict TITLE:{0} GUID:{1}", remoteNote.getTitle(), remoteNote.getGuid());
+	}
+
+	/**
+	 * @return the oldest conflict with the keys CompareNotes reads (title, file, guid, date, content,
+	 * tags, datediff and localGUID if there is one) and id, null if there is none
+	 */
+	public static Bundle peek(Context context) {
+
+		Cursor cursor = context.getContentResolver().query(Tomdroid.CONFLICTS_URI, PROJECTION, null, null, null);
+		if (cursor == null)
+			return null;
+		try {
+			if (!cursor.moveToFirst())
+				return null;
+			Bundle conflict = new Bundle();
+			conflict.putLong("id", cursor.getLong(0));
+			conflict.putString("guid", cursor.getString(1));
+			if (!cursor.isNull(2))
+				conflict.putString("localGUID", cursor.getString(2));
+			conflict.putString("title", cursor.getString(3));
+			conflict.putString("file", cursor.getString(4));
+			conflict.putString("date", cursor.getString(5));
+			conflict.putString("content", cursor.getString(6));
+			conflict.putString("tags", cursor.getString(7));
+			conflict.putInt("datediff", cursor.getInt(8));
+			return conflict;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Removes a conflict once it is resolved
+	 */
+	public static void remove(Context context, long id) {
+
+		context.getContentResolver().delete(Uri.withAppendedPath(Tomdroid.CONFLICTS_URI, String.valueOf(id)), null, null);
+	}
+
+	public static int count(Context context) {
+
+		Cursor cursor = context.getContentResolver().query(Tomdroid.CONFLICTS_URI, new String[] { ID }, null, null, null);
+		if (cursor == null)
+			return 0;
+		int count = cursor.getCount();
+		cursor.close();
+		return count;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.tomdroid.util.TLog;
+import org.tomdroid.xml.NoteContentReader;
+import org.tomdroid.xml.SAXParsers;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import difflib.Delta;
+import difflib.DiffUtils;
+
+/**
+ * Merges the local and the remote version of a note's content, line by line (a line of a note is a
+ * paragraph), against the version both had after the last sync. Changes made on one side only are
+ * taken, the same change made on both sides is taken once. Changes to the same lines of the base,
+ * or additions at the same place, are a real conflict and left to the user. So is a merge that
+ * isn't well-formed anymore, when a tag is opened on a line one side changed and closed on a line the
+ * other side changed.
+ */
+public class NoteMerger {
+
+	private static final String TAG = "NoteMerger";
+
+	// a change of one side: the lines [start, end) of the base replaced by lines
+	private static class Change {
+		final int start;
+		final int end;
+		final List<?> lines;
+
+		Change(Delta delta) {
+			start = delta.getOriginal().getPosition();
+			end = start + delta.getOriginal().size();
+			lines = delta.getRevised().getLines();
+		}
+
+		boolean conflictsWith(Change other) {
+			if (start == other.start)
+				return true;
+			if (start == end)
+				return other.start < start && start < other.end;
+			if (other.start == other.end)
+				return start < other.start && other.start < end;
+			return start < other.end && other.start < end;
+		}
+
+		boolean sameAs(Change other) {
+			return start == other.start && end == other.end && lines.equals(other.lines);
+		}
+	}
+
+	private static final Comparator<Change> ORDER = new Comparator<Change>() {
+		public int compare(Change a, Change b) {
+			if (a.start != b.start)
+				return a.start < b.start ? -1 : 1;
+			return a.end < b.end ? -1 : (a.end == b.end ? 0 : 1);
+		}
+	};
+
+	/**
+	 * @return the merged content, null if both sides changed the same lines differently or the
+	 * merged tags don't match
+	 */
+	public static String merge(String base, String local, String remote) {
+
+		if (local.equals(remote))
+			return local;
+		if (base.equals(local))
+			return remote;
+		if (base.equals(remote))
+			return local;
+
+		List<String> baseLines = splitLines(base);
+		List<Change> changes = new ArrayList<Change>();
+		for (Delta delta : DiffUtils.diff(baseLines, splitLines(local)).getDeltas())
+			changes.add(new Change(delta));
+		for (Delta delta : DiffUtils.diff(baseLines, splitLines(remote)).getDeltas())
+			changes.add(new Change(delta));
+		Collections.sort(changes, ORDER);
+
+		StringBuilder merged = new StringBuilder(Math.max(local.length(), remote.length()));
+		int position = 0;
+		Change last = null;
+		for (Change change : changes) {
+			if (last != null && (change.start < last.end || change.conflictsWith(last))) {
+				if (change.sameAs(last))
+					continue;
+				return null;
+			}
+			for (; position < change.start; position++)
+				appendLine(merged, baseLines.get(position));
+			for (Object line : change.lines)
+				appendLine(merged, (String) line);
+			position = change.end;
+			last = change;
+		}
+		for (; position < baseLines.size(); position++)
+			appendLine(merged, baseLines.get(position));
+
+		// every line was followed by a line break, the last one isn't
+		if (merged.length() > 0)
+			merged.setLength(merged.length() - 1);
+		if (!isWellFormed(merged))
+			return null;
+		return merged.toString();
+	}
+
+	private static boolean isWellFormed(CharSequence content) {
+
+		try {
+			SAXParsers.getContentParser().parse(new InputSource(new NoteContentReader(content)), new DefaultHandler());
+			return true;
+		} catch (Exception e) {
+			TLog.d(TAG, "merged content isn't well-formed: {0}", e.getMessage());
+			return false;
+		}
+	}
+
+	// the lines between line breaks, an empty line after a final one
+	static List<String> splitLines(String text) {
+
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while ((end = text.indexOf('\n', start)) >= 0) {
+			lines.add(text.substring(start, end));
+			start = end + 1;
+		}
+		lines.add(text.substring(start));
+		return lines;
+	}
+
+	private static void appendLine(StringBuilder merged, String line) {
+
+		merged.append(line).append('\n');
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.sync;
+
+import java.util.ArrayList;
+
+import org.tomdroid.Note;
+import org.tomdroid.Tombstones;
+import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.TLog;
+import org.tomdroid.util.TomboyDate;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * The local changes the sync services still have to push, kept in the content provider. Saving or
+ * deleting a note appends its guid; the provider keeps one row per guid, so a note changed again
+ * moves to the end with the content hash of its latest change. A pushed note is only dequeued if it
+ * wasn't changed again since, so a save during a sync is pushed by the next one.
+ */
+public class Outbox {
+
+	private static final String TAG = "Outbox";
+
+	// columns of the outbox table
+	public static final String ID = "_id";
+	public static final String GUID = Note.GUID;
+	// null for a deletion
+	public static final String CONTENT_HASH = Note.CONTENT_HASH;
+	public static final String QUEUED_AT = "queued_at";
+
+	private static final String[] GUID_PROJECTION = { GUID };
+
+	// the table the provider keeps them in
+	public static final String TABLE = "outbox";
+
+	// notes pushed at once, each batch is dequeued as soon as it is pushed
+	public static final int BATCH_SIZE = 50;
+
+	/**
+	 * Queues the change of a note, replacing the one queued before for it
+	 * @param contentHash the hash of the saved note, null if it was deleted
+	 */
+	public static void add(Context context, String guid, String contentHash) {
+
+		ContentValues values = new ContentValues();
+		values.put(GUID, guid);
+		values.put(CONTENT_HASH, contentHash);
+		values.put(QUEUED_AT, TomboyDate.formatUtc(System.currentTimeMillis()));
+		context.getContentResolver().insert(Tomdroid.OUTBOX_URI, values);
+	}
+
+	/**
+	 * Dequeues a note the server has now, unless it was changed again since
+	 */
+	public static void removePushed(Context context, Note note) {
+
+		if (note.getTags().contains(Tombstones.DELETED_TAG))
+			context.getContentResolver().delete(Tomdroid.OUTBOX_URI, GUID + " = ? AND " + CONTENT_HASH + " IS NULL",
+					new String[] { note.getGuid() });
+		else
+			context.getContentResolver().delete(Tomdroid.OUTBOX_URI, GUID + " = ? AND " + CONTENT_HASH + " = ?",
+					new String[] { note.getGuid(), note.getContentHash() });
+	}
+
+	/**
+	 * Forgets whatever is queued for a note, it is gone or its changes were given up
+	 */
+	public static void remove(Context context, String guid) {
+
+		context.getContentResolver().delete(Tomdroid.OUTBOX_URI, GUID + " = ?", new String[] { guid });
+	}
+
+	/**
+	 * @return the guids of the queued notes, in the order of their latest change
+	 */
+	public static ArrayList<String> getGuids(Context context) {
+
+		ArrayList<String> guids = new ArrayList<String>();
+		Cursor cursor = context.getContentResolver().query(Tomdroid.OUTBOX_URI, GUID_PROJECTION, null, null, null);
+		if (cursor == null)
+			return guids;
+		while (cursor.moveToNext())
+			guids.add(cursor.getString(0));
+		cursor.close();
+		return guids;
+	}
+
+	public static int count(Context context) {
+
+		Cursor cursor = context.getContentResolver().query(Tomdroid.OUTBOX_URI, new String[] { ID }, null, null, null);
+		if (cursor == null)
+			return 0;
+		int count = cursor.getCount();
+		cursor.close();
+		return count;
+	}
+
+	public static void clear(Context context) {
+
+		int rows = context.getContentResolver().delete(Tomdroid.OUTBOX_URI, null, null);
+		TLog.v(TAG, "cleared {0} queued changes", rows);
+	}
+
+	/**
+	 * @return the notes split in batches of BATCH_SIZE, in their order
+	 */
+	public static ArrayList<ArrayList<Note>> batches(ArrayList<Note> notes) {
+
+		ArrayList<ArrayList<Note>> batches = new ArrayList<ArrayList<Note>>();
+		for (int from = 0; from < notes.size(); from += BATCH_SIZE)
+			batches.add(new ArrayList<Note>(notes.subList(from, Math.min(from + BATCH_SIZE, notes.size()))));
+		return batches;
+	}
+}
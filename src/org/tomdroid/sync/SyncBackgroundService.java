@@ -0,0 +1,274 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.sync;
+
+import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.Preferences;
+import org.tomdroid.util.TLog;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.PowerManager;
+
+/**
+ * Runs a sync of the current service without any Activity, holding a wake lock until the sync is
+ * over. The screens that show the sync observe it through SyncManager.addHandler(), like this does.
+ * Every trigger goes through the SyncScheduler, which also sets the alarm of the periodic sync. Its
+ * state is kept in the preferences and its times are wall clock times, so a new process carries on.
+ */
+public class SyncBackgroundService extends Service {
+
+	private static final String TAG = "SyncBackgroundService";
+
+	// whether local changes are pushed, true if missing
+	public static final String EXTRA_PUSH = "org.tomdroid.PUSH";
+	// the SyncScheduler trigger, MANUAL if missing
+	public static final String EXTRA_TRIGGER = "org.tomdroid.TRIGGER";
+
+	// in case a sync never reports its end
+	private static final long WAKE_LOCK_TIMEOUT = 10 * 60 * 1000;
+
+	private static SyncScheduler scheduler = null;
+
+	private PowerManager.WakeLock wakeLock;
+	private int lastStartId;
+	// whether the service couldn't be reached during the run, errors of single notes don't count
+	private boolean failed = false;
+
+	/**
+	 * Starts a sync in the background, joining the running one if there is one
+	 */
+	public static void start(Context context, boolean push) {
+		start(context, push, SyncScheduler.MANUAL);
+	}
+
+	public static void start(Context context, boolean push, int trigger) {
+
+		Intent intent = new Intent(context, SyncBackgroundService.class);
+		intent.putExtra(EXTRA_PUSH, push);
+		intent.putExtra(EXTRA_TRIGGER, trigger);
+		context.startService(intent);
+	}
+
+	/**
+	 * Pushes the queued local changes in the background, see SyncManager.pushQueuedNotes()
+	 */
+	public static void pushQueued(Context context) {
+		start(context, true, SyncScheduler.SAVE);
+	}
+
+	/**
+	 * Syncs what the user chose for the queued conflicts, once what runs now is over
+	 */
+	public static void resolvedConflicts(Context context) {
+		start(context, true, SyncScheduler.RESOLVED);
+	}
+
+	public static synchronized SyncScheduler getScheduler() {
+
+		if (scheduler == null) {
+			scheduler = new SyncScheduler(new SyncScheduler.Clock() {
+				public long now() {
+					return System.currentTimeMillis();
+				}
+			}, getInterval(Preferences.getString(Preferences.Key.SYNC_INTERVAL)), new SyncScheduler.Store() {
+				public long load(SyncScheduler.Field field) {
+					return Preferences.getLong(getKey(field));
+				}
+				public void save(SyncScheduler.Field field, long value) {
+					Preferences.putLong(getKey(field), value);
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	private static Preferences.Key getKey(SyncScheduler.Field field) {
+
+		switch (field) {
+			case CREATED:
+				return Preferences.Key.SYNC_SCHEDULER_CREATED;
+			case LAST_SYNC:
+				return Preferences.Key.SYNC_SCHEDULER_LAST_SYNC;
+			case FAILURES:
+				return Preferences.Key.SYNC_SCHEDULER_FAILURES;
+			case LAST_FAILURE:
+				return Preferences.Key.SYNC_SCHEDULER_LAST_FAILURE;
+			default:
+				return Preferences.Key.SYNC_SCHEDULER_PENDING;
+		}
+	}
+
+	/**
+	 * @return the interval in milliseconds for the minutes of the SYNC_INTERVAL preference
+	 */
+	public static long getInterval(String minutes) {
+
+		try {
+			return Long.parseLong(minutes) * 60 * 1000;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Sets the alarm of the next periodic sync or retry, or cancels it if there is none. The alarm
+	 * doesn't wake the device, the sync waits for it to be awake.
+	 */
+	public static void schedule(Context context) {
+
+		Intent intent = new Intent(context, SyncBackgroundService.class);
+		intent.putExtra(EXTRA_TRIGGER, SyncScheduler.ALARM);
+		PendingIntent operation = PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+		long next = getScheduler().getNextRun();
+		if (next < 0) {
+			alarms.cancel(operation);
+			return;
+		}
+		alarms.set(AlarmManager.RTC, next, operation);
+		TLog.v(TAG, "next background sync in {0} s", (next - System.currentTimeMillis()) / 1000);
+	}
+
+	private final Handler syncHandler = new Handler() {
+
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+				case SyncService.NO_INTERNET:
+				case SyncService.CONNECTING_FAILED:
+				case SyncService.NO_SD_CARD:
+				case SyncService.AUTH_FAILED:
+				case SyncService.NOTE_PUSH_ERROR:
+					failed = true;
+					break;
+				case SyncService.SYNC_PROGRESS:
+					// every way a sync ends sets the progress to 100, only the first 100 of a run ends
+					// it: a later one would end the run the scheduler started meanwhile
+					if (msg.arg1 == 100 && msg.arg2 != 100)
+						finished();
+					break;
+			}
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		// the process may have been started for this service alone
+		Preferences.init(this, false);
+		if (Tomdroid.NOTES_PATH == null)
+			Tomdroid.NOTES_PATH = Tomdroid.getNotesPath();
+		SyncManager.init(this);
+
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+		wakeLock.setReferenceCounted(false);
+		SyncManager.addHandler(syncHandler);
+	}
+
+	// onStartCommand() needs API level 5
+	@Override
+	public void onStart(Intent intent, int startId) {
+
+		lastStartId = startId;
+		boolean push = intent == null || intent.getBooleanExtra(EXTRA_PUSH, true);
+		int trigger = intent == null ? SyncScheduler.PERIODIC : intent.getIntExtra(EXTRA_TRIGGER, SyncScheduler.MANUAL);
+		SyncScheduler scheduler = getScheduler();
+
+		int action = scheduler.request(trigger);
+		if (action == SyncScheduler.NONE) {
+			TLog.d(TAG, "nothing to run for trigger {0}", trigger);
+			if (!scheduler.isRunning())
+				stop();
+			return;
+		}
+		run(action, push);
+	}
+
+	private void run(int action, boolean push) {
+
+		SyncManager manager = SyncManager.getInstance();
+		SyncService service = manager.getCurrentService();
+		// not configured, or busy with something the scheduler didn't start
+		if (!service.isSyncable()) {
+			TLog.d(TAG, "{0} can't sync now", service.getName());
+			getScheduler().cancelled();
+			stop();
+			return;
+		}
+
+		failed = false;
+		wakeLock.acquire(WAKE_LOCK_TIMEOUT);
+		if (action == SyncScheduler.PUSH) {
+			TLog.v(TAG, "pushing queued notes to {0}", service.getName());
+			manager.pushQueuedNotes();
+			return;
+		}
+		if (action == SyncScheduler.RESOLVE) {
+			TLog.v(TAG, "syncing resolved conflicts with {0}", service.getName());
+			manager.syncResolvedConflicts();
+			return;
+		}
+		TLog.v(TAG, "starting {0} sync, push: {1}", service.getName(), push);
+		manager.startSynchronization(push);
+	}
+
+	private void finished() {
+
+		int next = getScheduler().finished(!failed);
+		if (next == SyncScheduler.NONE)
+			stop();
+		else
+			run(next, true);
+	}
+
+	private void stop() {
+
+		schedule(this);
+		if (wakeLock.isHeld())
+			wakeLock.release();
+		TLog.v(TAG, "sync over");
+		stopSelf(lastStartId);
+	}
+
+	@Override
+	public void onDestroy() {
+
+		SyncManager.removeHandler(syncHandler);
+		if (wakeLock.isHeld())
+			wakeLock.release();
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+}
@@ -23,21 +23,22 @@
 package org.tomdroid.sync;
 
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.tomdroid.sync.sd.SdCardSyncService;
 import org.tomdroid.sync.web.SnowySyncService;
 import org.tomdroid.util.Preferences;
-import android.app.Activity;
+import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
 
 public class SyncManager {
 	
 	private static ArrayList<SyncService> services = new ArrayList<SyncService>();
 	private SyncService service;
 	
-	public SyncManager() {
+	private SyncManager() {
 		createServices();
-		service = getCurrentService();
 	}
 
 	public ArrayList<SyncService> getServices() {
@@ -62,38 +63,109 @@ public class SyncManager {
 		service.startSynchronization(push);
 	}
 	
+	/**
+	 * Pushes the queued local changes alone, see SyncService.pushQueuedNotes()
+	 */
+	public void pushQueuedNotes() {
+		
+		service = getCurrentService();
+		service.setCancelled(false);
+		service.pushQueuedNotes();
+	}
+	
+	/**
+	 * Syncs what the user chose for the queued conflicts, see SyncService.syncResolvedConflicts()
+	 */
+	public void syncResolvedConflicts() {
+		
+		service = getCurrentService();
+		service.setCancelled(false);
+		service.syncResolvedConflicts();
+	}
+	
 	public SyncService getCurrentService() {
 		String serviceName = Preferences.getString(Preferences.Key.SYNC_SERVICE);
 		return getService(serviceName);
 	}
+
+	/**
+	 * @return whether the current service is syncing
+	 */
+	public boolean isSyncing() {
+		return getCurrentService().getSyncProgress() != 100;
+	}
 	
 	private static SyncManager instance = null;
-	private static Activity activity;
-	private static Handler handler;
+	private static Context context;
+	// the observers of the sync, each gets its messages on its own thread
+	private static CopyOnWriteArrayList<Handler> handlers = new CopyOnWriteArrayList<Handler>();
+	
+	// saves closer than this are pushed together
+	public static final long PUSH_DELAY = 5000;
+	private static final Handler pushHandler = new Handler(Looper.getMainLooper());
+	private static final Runnable pushQueued = new Runnable() {
+		public void run() {
+			SyncBackgroundService.pushQueued(context);
+		}
+	};
 	
+	/**
+	 * @throws IllegalStateException before init, the services can't work without a context
+	 */
 	public static SyncManager getInstance() {
 		
 		if (instance == null)
-			instance = new SyncManager();
+			throw new IllegalStateException("SyncManager.init must be called first");
 		
 		return instance;
 	}
 	
-	public static void setActivity(Activity a) {
-		activity = a;
-		getInstance().createServices();
+	/**
+	 * Gives the services the application's context, once: they don't depend on the Activity that
+	 * calls this, and keep syncing when it is gone.
+	 */
+	public static void init(Context c) {
+		if (context != null)
+			return;
+		context = c.getApplicationContext();
+		instance = new SyncManager();
+	}
+	
+	/**
+	 * Lets a handler observe the sync, it gets the SyncService messages until it is removed
+	 */
+	public static void addHandler(Handler h) {
+		handlers.addIfAbsent(h);
 	}
 	
-	public static void setHandler(Handler h) {
-		handler = h;
-		getInstance().createServices();
+	public static void removeHandler(Handler h) {
+		handlers.remove(h);
+	}
+	
+	/**
+	 * Pushes the queued local changes PUSH_DELAY after the last call, if the user wants it: a note
+	 * saved again meanwhile is pushed once, with its latest content, the outbox keeps one per note.
+	 */
+	public static void pushSoon(Context c) {
+		if (!Preferences.getBoolean(Preferences.Key.SYNC_ON_SAVE))
+			return;
+		init(c);
+		pushHandler.removeCallbacks(pushQueued);
+		pushHandler.postDelayed(pushQueued, PUSH_DELAY);
+	}
+	
+	// sends a message to every handler observing the sync
+	static void publish(int what, int arg1, int arg2, Object obj) {
+		for (Handler handler : handlers)
+			handler.sendMessage(handler.obtainMessage(what, arg1, arg2, obj));
 	}
 
 	private void createServices() {
 		services.clear();
 		
-		services.add(new SnowySyncService(activity, handler));
-		services.add(new SdCardSyncService(activity, handler));
+		services.add(new SnowySyncService(context));
+		services.add(new SdCardSyncService(context));
+		service = getCurrentService();
 	}
 
 	// new methods to TEdit
@@ -0,0 +1,254 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.sync;
+
+/**
+ * Decides what SyncBackgroundService runs for each trigger, on a Clock so it can be tested without
+ * waiting. Triggers coming while something runs are collapsed into it, only a save the running sync
+ * may have missed is pushed after it. After a failure only a manual sync runs until the backoff is
+ * over, it doubles with each failure in a row; what failed is retried then.
+ * The state is kept in a Store, so a scheduler built by a new process carries on where the last one
+ * stopped; the Clock has to count across processes too.
+ */
+public class SyncScheduler {
+
+	public interface Clock {
+		long now();
+	}
+
+	// what the Store keeps
+	public enum Field { CREATED, LAST_SYNC, FAILURES, LAST_FAILURE, PENDING }
+
+	public interface Store {
+		/**
+		 * @return the value saved last, -1 if none was
+		 */
+		long load(Field field);
+		void save(Field field, long value);
+	}
+
+	// the triggers
+	public static final int PERIODIC = 0;
+	public static final int START = 1;
+	public static final int SAVE = 2;
+	public static final int MANUAL = 3;
+	// the alarm set for getNextRun(), PERIODIC that is due when nothing else is pending
+	public static final int ALARM = 4;
+	// the user is done with the conflicts queued by a sync
+	public static final int RESOLVED = 5;
+
+	// what runs for them, a sync pushes the queued notes too
+	public static final int NONE = 0;
+	public static final int PUSH = 1;
+	public static final int SYNC = 2;
+	// syncs what the user chose for the conflicts, runs after what runs and doesn't replace anything
+	public static final int RESOLVE = 3;
+
+	// starting the app again right after a sync doesn't sync again
+	public static final long START_SPACING = 60 * 1000;
+	public static final long MIN_BACKOFF = 60 * 1000;
+	public static final long MAX_BACKOFF = 4 * 60 * 60 * 1000;
+
+	private final Clock clock;
+	private final Store store;
+	// the periodic sync counts from here until a sync ran
+	private long created;
+	// 0 for no periodic sync
+	private long interval;
+
+	private int running = NONE;
+	private int pending = NONE;
+	private int failures = 0;
+	private long lastSync = -1;
+	private long lastFailure = -1;
+	// the choices are only in memory, so this isn't stored
+	private boolean resolvePending = false;
+
+	// the values in the store, by field
+	private final long[] saved = new long[Field.values().length];
+
+	public SyncScheduler(Clock clock, long interval, Store store) {
+		this.clock = clock;
+		this.interval = interval;
+		this.store = store;
+
+		for (Field field : Field.values())
+			saved[field.ordinal()] = store.load(field);
+		long now = clock.now();
+		// times after now are from before the clock was set back
+		created = saved[Field.CREATED.ordinal()] < 0 ? now : Math.min(saved[Field.CREATED.ordinal()], now);
+		lastSync = Math.min(saved[Field.LAST_SYNC.ordinal()], now);
+		failures = (int) Math.max(saved[Field.FAILURES.ordinal()], 0);
+		lastFailure = Math.min(saved[Field.LAST_FAILURE.ordinal()], now);
+		pending = (int) Math.min(Math.max(saved[Field.PENDING.ordinal()], NONE), SYNC);
+		save();
+	}
+
+	public synchronized void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * @return what to run now for the trigger, the caller calls finished() once it has run; NONE if
+	 * it is collapsed into what runs, isn't due or waits for the backoff
+	 */
+	public synchronized int request(int trigger) {
+
+		if (trigger == RESOLVED) {
+			// the user waits for it, even during a backoff
+			if (running != NONE) {
+				resolvePending = true;
+				return NONE;
+			}
+			running = RESOLVE;
+			save();
+			return running;
+		}
+
+		int action = trigger == SAVE ? PUSH : SYNC;
+		if (running != NONE) {
+			if (trigger == SAVE)
+				pending = PUSH;
+			return NONE;
+		}
+
+		long now = clock.now();
+		if (trigger != MANUAL && now < getBackoffEnd()) {
+			pending = Math.max(pending, action);
+			save();
+			return NONE;
+		}
+		if ((trigger == PERIODIC || trigger == ALARM) && !isPeriodicDue(now)) {
+			// without a pending action the alarm was set for the periodic sync
+			if (pending == NONE && (trigger == PERIODIC || interval == 0))
+				return NONE;
+			if (pending != NONE)
+				action = pending;
+		}
+		if (trigger == START && lastSync >= 0 && now < lastSync + START_SPACING)
+			return NONE;
+
+		running = Math.max(action, pending);
+		pending = NONE;
+		save();
+		return running;
+	}
+
+	/**
+	 * @return what to run right away for the triggers collapsed meanwhile, NONE if nothing or failed;
+	 * a resolve runs even after a failure
+	 */
+	public synchronized int finished(boolean success) {
+
+		if (running == NONE)
+			return NONE;
+
+		long now = clock.now();
+		if (!success) {
+			failures++;
+			lastFailure = now;
+			// the choices of a failed resolve are gone with it
+			if (running != RESOLVE)
+				pending = Math.max(pending, running);
+		} else {
+			failures = 0;
+			if (running == SYNC)
+				lastSync = now;
+		}
+
+		if (resolvePending) {
+			resolvePending = false;
+			running = RESOLVE;
+		} else if (success) {
+			running = pending;
+			pending = NONE;
+		} else {
+			running = NONE;
+		}
+		save();
+		return running;
+	}
+
+	/**
+	 * Forgets what request() returned, it couldn't run at all
+	 */
+	public synchronized void cancelled() {
+		running = NONE;
+		resolvePending = false;
+		save();
+	}
+
+	public synchronized boolean isRunning() {
+		return running != NONE;
+	}
+
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return the time after a failure before anything but a manual sync runs, 0 without one
+	 */
+	public synchronized long getBackoff() {
+
+		if (failures == 0)
+			return 0;
+		long backoff = MIN_BACKOFF << Math.min(failures - 1, 16);
+		return Math.min(backoff, MAX_BACKOFF);
+	}
+
+	/**
+	 * @return when request(PERIODIC) runs something, -1 if only another trigger will; while something
+	 * runs, the time is asked again once it has finished
+	 */
+	public synchronized long getNextRun() {
+
+		if (running != NONE)
+			return -1;
+		long next = -1;
+		if (interval > 0)
+			next = Math.max((lastSync < 0 ? created : lastSync) + interval, getBackoffEnd());
+		if (pending != NONE && (next < 0 || getBackoffEnd() < next))
+			next = getBackoffEnd();
+		return next;
+	}
+
+	// saves what changed, what runs is pending for a process that doesn't see it finish
+	private void save() {
+
+		long[] state = { created, lastSync, failures, lastFailure, Math.max(running == RESOLVE ? NONE : running, pending) };
+		for (Field field : Field.values()) {
+			int i = field.ordinal();
+			if (state[i] != saved[i]) {
+				store.save(field, state[i]);
+				saved[i] = state[i];
+			}
+		}
+	}
+
+	private long getBackoffEnd() {
+		return failures == 0 ? 0 : lastFailure + getBackoff();
+	}
+
+	private boolean isPeriodicDue(long now) {
+		return interval > 0 && now >= (lastSync < 0 ? created : lastSync) + interval;
+	}
+}
@@ -24,35 +24,36 @@
  */
 package org.tomdroid.sync;
 
-import android.app.Activity;
-import android.content.Intent;
+import android.content.Context;
 import android.database.Cursor;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 
 import org.tomdroid.Note;
 import org.tomdroid.NoteManager;
-import org.tomdroid.ui.CompareNotes;
 import org.tomdroid.util.ErrorList;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.TLog;
-import org.tomdroid.util.Time;
+import org.tomdroid.util.TomboyDate;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+/**
+ * A sync service works on the content provider through a Context only, the application's, so it
+ * runs without any Activity, from SyncBackgroundService. It reports through SyncManager, to the
+ * handlers observing it at the time.
+ */
 public abstract class SyncService {
 	
 	private static final String TAG = "SyncService";
 	
-	public Activity activity;
-	private final ExecutorService pool;
+	protected final Context context;
 	private final static int poolSize = 1;
+	// shared by the services, which live as long as the process
+	private final static ExecutorService pool = Executors.newFixedThreadPool(poolSize);
 	
-	private Handler handler;
 	protected static boolean push;
 	
 	/**
@@ -71,10 +72,13 @@ public abstract class SyncService {
 	private ArrayList<Note[]> comparableNotes;
 	private ArrayList<Note> deleteableNotes;
 	private ArrayList<Note[]> conflictingNotes;
-	
-	// number of conflicting notes
-	private int conflictCount;
-	private int resolvedCount;
+	// what the user chose in CompareNotes, null outside of a conflict session. Separate from the
+	// arrays above, which the pass in flight may still be pushing from
+	private ArrayList<Note> resolvedPullable;
+	private ArrayList<Note> resolvedPushable;
+	private ArrayList<Note> resolvedDeleteable;
+	// notes whose dates said to transfer them, but whose content hash said they are in sync
+	private int unchangedNotes;
 	
 	// handler messages
 	public final static int PARSING_COMPLETE = 1;
@@ -102,27 +106,29 @@ public abstract class SyncService {
 	public final static int SYNC_CANCELLED = 23;
 	public final static int LATEST_REVISION = 24;
 	public final static int SYNC_CONNECTED = 25;
+	public final static int CONFLICTS_QUEUED = 26;
 	
-	public SyncService(Activity activity, Handler handler) {
+	// request code of the CompareNotes session resolving the queued conflicts
+	public final static int CONFLICTS_REQUEST = 1;
+	
+	public SyncService(Context context) {
 		
-		this.activity = activity;
-		this.handler = handler;
-		pool = Executors.newFixedThreadPool(poolSize);
+		this.context = context;
 	}
 
 	public void startSynchronization(boolean push) {
 		
 		syncErrors = null;
 		
-		if (syncProgress != 100){
+		if (getSyncProgress() != 100){
 			sendMessage(IN_PROGRESS);
 			return;
 		}
 		
 		// deleting "First Note"
-		Note firstNote = NoteManager.getNoteByGuid(activity, "8f837a99-c920-4501-b303-6a39af57a714");
+		Note firstNote = NoteManager.getNoteByGuid(context, "8f837a99-c920-4501-b303-6a39af57a714");
 		if(firstNote != null)
-			NoteManager.deleteNote(activity, firstNote.getDbId());
+			NoteManager.deleteNote(context, firstNote.getDbId());
 		
 		getNotesForSync(push);
 	}
@@ -144,7 +150,7 @@ public abstract class SyncService {
 	public abstract int getDescriptionAsId();
 	
 	public String getDescription() {
-		return activity.getString(getDescriptionAsId());
+		return context.getString(getDescriptionAsId());
 	}
 	/**
 	 * Execute code in a separate thread.
@@ -171,6 +177,7 @@ public abstract class SyncService {
 				} catch(Exception e) {
 					TLog.e(TAG, e, "Problem syncing in thread");
 					sendMessage(PARSING_FAILED, ErrorList.createError("System Error", "system", e));
+					setSyncProgress(100);
 				}
 			}
 		};
@@ -185,26 +192,21 @@ public abstract class SyncService {
 	 */
 	
 	protected void insertNote(Note note) {
-		NoteManager.putNote(this.activity, note);
+		NoteManager.putNote(this.context, note);
 		sendMessage(INCREMENT_PROGRESS );
 	}	
 
-	// syncing based on updated local notes only
-	protected void prepareSyncableNotes(Cursor localGuids) {
+	// syncing based on updated local notes only, the outbox has them
+	protected void prepareOutboxNotes() {
 		remoteGuids = new ArrayList<String>();
-		pushableNotes = new ArrayList<Note>();
 		pullableNotes = new ArrayList<Note>();
 		comparableNotes = new ArrayList<Note[]>();
 		deleteableNotes = new ArrayList<Note>();
 		conflictingNotes = new ArrayList<Note[]>();
+		unchangedNotes = 0;
 		
-		localGuids.moveToFirst();
-		do {
-			Note note = NoteManager.getNoteByGuid(activity, localGuids.getString(localGuids.getColumnIndexOrThrow(Note.GUID)));
-			
-			if(!note.getTags().contains("system:template")) // don't push templates TODO: find out what's wrong with this, if anything
-				pushableNotes.add(note);
-		} while (localGuids.moveToNext());
+		pushableNotes = getOutboxNotes();
+		TLog.d(TAG, "Notes to push from the outbox: {0}", pushableNotes.size());
 		
 		if(cancelled) {
 			doCancel();
@@ -214,9 +216,75 @@ public abstract class SyncService {
 		doSyncNotes();
 	}
 
+	// the queued notes, deleted ones as their tombstones, without templates
+	private ArrayList<Note> getOutboxNotes() {
+		ArrayList<Note> notes = new ArrayList<Note>();
+		HashMap<String, Note> deletedNotes = null;
+		for (String guid : Outbox.getGuids(context)) {
+			Note note = NoteManager.getNoteByGuid(context, guid);
+			if(note == null) { // deletions to tell the server about
+				if(deletedNotes == null) {
+					deletedNotes = new HashMap<String, Note>();
+					for (Note deleted : NoteManager.getDeletedNotes(context))
+						deletedNotes.put(deleted.getGuid(), deleted);
+				}
+				note = deletedNotes.get(guid);
+			}
+			if(note == null) { // gone without a tombstone, nothing to tell
+				Outbox.remove(context, guid);
+				continue;
+			}
+			
+			if(!note.getTags().contains("system:template")) // don't push templates TODO: find out what's wrong with this, if anything
+				notes.add(note);
+		}
+		return notes;
+	}
+
+	/**
+	 * Pushes the queued local changes alone, without getting the remote notes: the fast path taken
+	 * after a save, see SyncManager.pushSoon(). If the remote changed since the last sync, the
+	 * service falls back to a full sync.
+	 */
+	public void pushQueuedNotes() {
+		
+		syncErrors = null;
+		
+		if (getSyncProgress() != 100)
+			return;
+		
+		setSyncProgress(0);
+		syncInThread(new Runnable() {
+			public void run() {
+				ArrayList<Note> notes = getOutboxNotes();
+				if(notes.isEmpty()) {
+					setSyncProgress(100);
+					return;
+				}
+				TLog.v(TAG, "pushing {0} queued notes", notes.size());
+				pushQueuedNotes(notes);
+			}
+		});
+	}
+
+	/**
+	 * Pushes the queued notes on the sync thread, calling notesPushed() like pushNotes(). Ends with
+	 * progress 100, or with getNotesForSync(true) if the remote changed since the last sync.
+	 */
+	protected abstract void pushQueuedNotes(ArrayList<Note> notes);
+
 	
 	// syncing with remote changes
 	protected void prepareSyncableNotes(ArrayList<Note> notesList) {
+		prepareSyncableNotes(notesList, null);
+	}
+
+	/**
+	 * Syncing with the remote notes changed since the last sync only.
+	 * @param allRemoteGuids the guids of all remote notes, those not in notesList are unchanged;
+	 * null if notesList has all of them
+	 */
+	protected void prepareSyncableNotes(ArrayList<Note> notesList, Collection<String> allRemoteGuids) {
 
 		remoteGuids = new ArrayList<String>();
 		pushableNotes = new ArrayList<Note>();
@@ -224,17 +292,39 @@ public abstract class SyncService {
 		comparableNotes = new ArrayList<Note[]>();
 		deleteableNotes = new ArrayList<Note>();
 		conflictingNotes = new ArrayList<Note[]>();
+		unchangedNotes = 0;
+		
+		HashMap<String, Note> deletedNotes = new HashMap<String, Note>();
+		for (Note deleted : NoteManager.getDeletedNotes(context))
+			deletedNotes.put(deleted.getGuid(), deleted);
 		
 		// check if remote notes are already in local
 		
 		for ( Note remoteNote : notesList) {
-			Note localNote = NoteManager.getNoteByGuid(activity,remoteNote.getGuid());
+			Note localNote = NoteManager.getNoteByGuid(context,remoteNote.getGuid());
 			remoteGuids.add(remoteNote.getGuid());
+			Note deleted = deletedNotes.get(remoteNote.getGuid());
+			if(deleted != null) {
+				// changed on the server after it was deleted here, it comes back
+				boolean changedSinceDeleted;
+				if(deleted.getServerRevision() >= 0 && remoteNote.getServerRevision() >= 0)
+					changedSinceDeleted = remoteNote.getServerRevision() > deleted.getServerRevision();
+				else
+					changedSinceDeleted = TomboyDate.compare(remoteNote.getLastChangeMillis(), deleted.getLastChangeMillis()) > 0;
+				
+				if(!push || changedSinceDeleted) {
+					TLog.i(TAG, "Deleted note changed on the server, pulling it back GUID:{0}", remoteNote.getGuid());
+					pullableNotes.add(remoteNote);
+				}
+				else
+					pushableNotes.add(deleted);
+				continue;
+			}
 			if(localNote == null) {
 				
 				// check to make sure there is no note with this title, otherwise show conflict dialogue
 
-				Cursor cursor = NoteManager.getTitles(activity);
+				Cursor cursor = NoteManager.getTitles(context);
 				
 				if (!(cursor == null || cursor.getCount() == 0)) {
 					
@@ -243,7 +333,7 @@ public abstract class SyncService {
 						String atitle = cursor.getString(cursor.getColumnIndexOrThrow(Note.TITLE));
 						if(atitle.equals(remoteNote.getTitle())) {
 							String aguid = cursor.getString(cursor.getColumnIndexOrThrow(Note.GUID));
-							localNote = NoteManager.getNoteByGuid(activity, aguid);
+							localNote = NoteManager.getNoteByGuid(context, aguid);
 							break;
 						}
 					} while (cursor.moveToNext());
@@ -271,7 +361,7 @@ public abstract class SyncService {
 		
 		// get non-remote notes; if newer than last sync, push, otherwise delete
 		
-		Cursor localGuids = NoteManager.getGuids(this.activity);
+		Cursor localGuids = NoteManager.getGuids(this.context);
 		if (!(localGuids == null || localGuids.getCount() == 0)) {
 			
 			String localGuid;
@@ -281,20 +371,49 @@ public abstract class SyncService {
 				localGuid = localGuids.getString(localGuids.getColumnIndexOrThrow(Note.GUID));
 				
 				if(!remoteGuids.contains(localGuid)) {
-					Note note = NoteManager.getNoteByGuid(this.activity, localGuid);
+					Note note = NoteManager.getNoteByGuid(this.context, localGuid);
+					
+					// the server has it like at the last sync, push it if it changed here
+					if(allRemoteGuids != null && allRemoteGuids.contains(localGuid)) {
+						if(!isUnchangedSinceSync(note) && !note.getTags().contains("system:template"))
+							pushableNotes.add(note);
+						continue;
+					}
+					
+					// it was on the server and isn't any more, keep it only if it changed here
+					if(note.getServerRevision() >= 0) {
+						if(isUnchangedSinceSync(note))
+							deleteableNotes.add(note);
+						else if(!note.getTags().contains("system:template"))
+							pushableNotes.add(note);
+						continue;
+					}
+					
 					String syncDateString = Preferences.getString(Preferences.Key.LATEST_SYNC_DATE);
-					Time syncDate = new Time();
-					syncDate.parseTomboy(syncDateString);
-					int compareSync = Time.compare(syncDate, note.getLastChangeDate());
+					int compareSync = TomboyDate.compare(TomboyDate.parse(syncDateString), note.getLastChangeMillis());
 					if(compareSync > 0) // older than last sync, means it's been deleted from server
 						deleteableNotes.add(note);
-					else if(!note.getTags().contains("system:template")) // don't push templates TODO: find out what's wrong with this, if anything
+					else if(note.getTags().contains("system:template")) // don't push templates TODO: find out what's wrong with this, if anything
+						continue;
+					else if(isUnchangedSinceSync(note)) // saved again without changes, the server has it already
+						unchangedNotes++;
+					else
 						pushableNotes.add(note);
 				}
 				
 			} while (localGuids.moveToNext());
 
 		}
+		if (localGuids != null)
+			localGuids.close();
+		
+		// deleted here and unchanged on the server since the last sync, delete there
+		if(push && allRemoteGuids != null) {
+			for (Note deleted : deletedNotes.values()) {
+				if(!remoteGuids.contains(deleted.getGuid()) && allRemoteGuids.contains(deleted.getGuid()))
+					pushableNotes.add(deleted);
+			}
+		}
 		TLog.d(TAG, "Notes to pull: {0}, Notes to push: {1}, Notes to delete: {2}, Notes to compare: {3}",pullableNotes.size(),pushableNotes.size(),deleteableNotes.size(),comparableNotes.size());
 
 		if(cancelled) {
@@ -306,8 +425,7 @@ public abstract class SyncService {
 	// deal with notes in both - compare and push, pull or diff
 		
 		String syncDateString = Preferences.getString(Preferences.Key.LATEST_SYNC_DATE);
-		Time syncDate = new Time();
-		syncDate.parseTomboy(syncDateString);
+		long syncDate = TomboyDate.parse(syncDateString);
 
 		for(Note[] notes : comparableNotes) {
 			
@@ -327,9 +445,55 @@ public abstract class SyncService {
 				return; 
 			}
 			
-			int compareSyncLocal = Time.compare(syncDate, localNote.getLastChangeDate());
-			int compareSyncRemote = Time.compare(syncDate, remoteNote.getLastChangeDate());
-			int compareBoth = Time.compare(localNote.getLastChangeDate(), remoteNote.getLastChangeDate());
+			int compareSyncLocal = TomboyDate.compare(syncDate, localNote.getLastChangeMillis());
+			int compareSyncRemote = TomboyDate.compare(syncDate, remoteNote.getLastChangeMillis());
+			int compareBoth = TomboyDate.compare(localNote.getLastChangeMillis(), remoteNote.getLastChangeMillis());
+
+		// same title, content and tags are in sync, whatever the dates say
+
+			if(localNote.getContentHash().equals(remoteNote.getContentHash())) {
+				if(compareBoth != 0 || remoteNote.getServerRevision() > localNote.getServerRevision()) {
+					TLog.i(TAG, "Notes have different dates or revisions but the same content, doing nothing: TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
+					unchangedNotes++;
+					localNote.setServerRevision(remoteNote.getServerRevision());
+					NoteManager.putSyncBase(context, localNote);
+				}
+				continue;
+			}
+
+		// with the server's revision of both, each side changed if it did since the last sync, whatever the dates say
+
+			String syncHash = NoteManager.getSyncHash(context, localNote.getGuid());
+			if(localNote.getServerRevision() >= 0 && remoteNote.getServerRevision() >= 0 && syncHash != null) {
+				boolean remoteChanged = remoteNote.getServerRevision() > localNote.getServerRevision();
+				boolean localChanged = !localNote.getContentHash().equals(syncHash);
+				TLog.v(TAG, "revision {0} synced, remote revision {1}, local changed: {2}", localNote.getServerRevision(), remoteNote.getServerRevision(), localChanged);
+				
+				if(remoteChanged && (!localChanged || !push)) {
+					TLog.i(TAG, "Remote note has a newer revision, updating in content provider TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
+					pullableNotes.add(remoteNote);
+					continue;
+				}
+				if(localChanged && !remoteChanged) {
+					if(push)
+						pushableNotes.add(localNote);
+					continue;
+				}
+				if(localChanged) { // both changed since the last sync
+					Note merged = mergeNotes(localNote, remoteNote);
+					if(merged != null) {
+						TLog.i(TAG, "Merged note changes: TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
+						pullableNotes.add(merged);
+						pushableNotes.add(merged);
+					}
+					else {
+						TLog.i(TAG, "Note Conflict: TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
+						conflictingNotes.add(notes);
+					}
+					continue;
+				}
+				// neither changed since the last sync but they differ, the dates have to decide
+			}
 
 		// if not two-way and not same date, overwrite the local version
 		
@@ -355,8 +519,16 @@ public abstract class SyncService {
 				TLog.v(TAG, "both either older or newer");
 				
 			if(compareBoth != 0 && ((compareSyncLocal < 0 && compareSyncRemote < 0) || (compareSyncLocal > 0 && compareSyncRemote > 0))) { // sync conflict!  both are older or newer than last sync
-				TLog.i(TAG, "Note Conflict: TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
-				conflictingNotes.add(notes);
+				Note merged = mergeNotes(localNote, remoteNote);
+				if(merged != null) { // changes didn't overlap, keep the merge on both sides
+					TLog.i(TAG, "Merged note changes: TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
+					pullableNotes.add(merged);
+					pushableNotes.add(merged);
+				}
+				else {
+					TLog.i(TAG, "Note Conflict: TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
+					conflictingNotes.add(notes);
+				}
 			}
 			else if(compareBoth > 0) // local newer, bundle in pushable
 				pushableNotes.add(localNote);
@@ -371,52 +543,69 @@ public abstract class SyncService {
 				}
 				else { // do nothing
 					TLog.i(TAG, "Notes are same date, doing nothing: TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
-					// NoteManager.putNote(activity, remoteNote);
+					// NoteManager.putNote(context, remoteNote);
 				}
 			}
 		}
-		if(conflictingNotes.isEmpty())
-			doSyncNotes();
-		else 
-			fixConflictingNotes();
+		fixConflictingNotes();
+	}
+
+	// the note is what the server got at the last sync, only its date changed
+	private boolean isUnchangedSinceSync(Note note) {
+		
+		return note.getContentHash().equals(NoteManager.getSyncHash(context, note.getGuid()));
+	}
+
+	/**
+	 * @return how many notes of the last sync were not transferred because their content hash showed
+	 * they were in sync, although their dates differed
+	 */
+	public int getUnchangedNotes() {
+		return unchangedNotes;
+	}
+
+	// merges both versions of a note with the content of the last sync, null if they can't be merged
+	private Note mergeNotes(Note localNote, Note remoteNote) {
+		
+		if(!localNote.getTitle().equals(remoteNote.getTitle()) || !localNote.getTags().equals(remoteNote.getTags()))
+			return null;
+		String base = NoteManager.getSyncBase(context, localNote.getGuid());
+		if(base == null)
+			return null;
+		String merged = NoteMerger.merge(base, localNote.getXmlContent(), remoteNote.getXmlContent());
+		if(merged == null)
+			return null;
+		
+		localNote.setXmlContent(merged);
+		localNote.setLastChangeDate();
+		return localNote;
 	}
 
-	// fix conflicting notes, putting sync on pause, to be resumed once conflicts are all resolved
+	// queue conflicting notes and sync the others right away, the user resolves the conflicts afterwards
 	private void fixConflictingNotes() {
 		
-		conflictCount = 0;
-		resolvedCount = 0;
 		for (Note[] notes : conflictingNotes) {
+			TLog.v(TAG, "note conflict... queueing for resolution TITLE:{0} GUID:{1}", notes[0].getTitle(), notes[0].getGuid());
+			ConflictQueue.add(context, notes[0], notes[1]);
+		}
+		
+		// conflicts may be left from an earlier sync too
+		int conflicts = ConflictQueue.count(context);
+		if(conflicts > 0) {
+			// the resolutions are collected for another pass once the user is done
+			synchronized (this) {
+				resolvedPullable = new ArrayList<Note>();
+				resolvedPushable = new ArrayList<Note>();
+				resolvedDeleteable = new ArrayList<Note>();
+			}
 			
-			Note localNote = notes[0];
-			Note remoteNote = notes[1];
-			int compareBoth = Time.compare(localNote.getLastChangeDate(), remoteNote.getLastChangeDate());
-			
-			TLog.v(TAG, "note conflict... showing resolution dialog TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
-			
-			// send everything to Tomdroid so it can show Sync Dialog
-			
-		    Bundle bundle = new Bundle();	
-			bundle.putString("title",remoteNote.getTitle());
-			bundle.putString("file",remoteNote.getFileName());
-			bundle.putString("guid",remoteNote.getGuid());
-			bundle.putString("date",remoteNote.getLastChangeDate().formatTomboy());
-			bundle.putString("content", remoteNote.getXmlContent());
-			bundle.putString("tags", remoteNote.getTags());
-			bundle.putInt("datediff", compareBoth);
-			
-			// put local guid if conflicting titles
-
-			if(!remoteNote.getGuid().equals(localNote.getGuid()))
-				bundle.putString("localGUID", localNote.getGuid());
-			
-			Intent intent = new Intent(activity.getApplicationContext(), CompareNotes.class);	
-			intent.putExtras(bundle);
-	
-			// let activity know each time the conflict is resolved, to let the service know to increment resolved conflicts.
-			// once all conflicts are resolved, start sync
-			activity.startActivityForResult(intent, conflictCount++);
-		}	
+			// the UI observing the sync starts CompareNotes, which steps through the queue, and tells
+			// SyncBackgroundService when it's done; without one the conflicts wait for the next sync.
+			// Sent before this pass completes, so observers see the conflicts as part of it
+			sendMessage(CONFLICTS_QUEUED, conflicts, 0);
+		}
+		
+		doSyncNotes();
 	}
 	
 	// actually do sync
@@ -442,8 +631,12 @@ public abstract class SyncService {
 
 	// deal with notes that are not in local content provider - always pull
 		
-		for(Note note : pullableNotes)
+		for(Note note : pullableNotes) {
 			insertNote(note);
+			// what was pulled is what both sides have now, unless it still has to be pushed
+			if(!pushableNotes.contains(note))
+				NoteManager.putSyncBase(context, note);
+		}
 
 		setSyncProgress(70);
 
@@ -476,14 +669,30 @@ public abstract class SyncService {
 		} 
 	}
 
+	/**
+	 * Called by services once notes were pushed, the remote has the same content as local now.
+	 * Services push Outbox.batches() and call this after each, so a failed push only repeats its batch.
+	 */
+	protected void notesPushed(ArrayList<Note> notes) {
+		
+		for(Note note : notes) {
+			if(!note.getTags().contains("system:deleted"))
+				NoteManager.putSyncBase(context, note);
+			else
+				Outbox.removePushed(context, note);
+		}
+	}
+
 	protected void deleteNotes(ArrayList<Note> notes) {
 		
-		for(Note note : notes)
-			NoteManager.deleteNote(this.activity, note.getDbId());
+		for(Note note : notes) {
+			NoteManager.deleteNote(this.context, note.getDbId());
+			Outbox.remove(context, note.getGuid());
+		}
 	}
 
 	/**
-	 * Send a message to the main UI.
+	 * Send a message to the handlers observing the sync, see SyncManager.addHandler().
 	 * 
 	 * @param message The message id to send, the PARSING_* or NO_INTERNET attributes can be used.
 	 */
@@ -491,18 +700,14 @@ public abstract class SyncService {
 	protected void sendMessage(int message) {
 		
 		if(!sendMessage(message, null)) {
-			handler.sendEmptyMessage(message);
+			SyncManager.publish(message, 0, 0, null);
 		}
 	}
 	protected void sendMessage(int message_id, int arg1, int arg2) {
-		Message message = handler.obtainMessage(message_id);
-		message.arg1 = arg1;
-		message.arg2 = arg2;
-		handler.sendMessage(message);
+		SyncManager.publish(message_id, arg1, arg2, null);
 	}	
 	protected boolean sendMessage(int message_id, HashMap<String, Object> payload) {
 
-		Message message;
 		switch(message_id) {
 			case PARSING_FAILED:
 			case NOTE_PUSH_ERROR:
@@ -514,8 +719,7 @@ public abstract class SyncService {
 				if(syncErrors == null)
 					syncErrors = new ErrorList();
 				syncErrors.add(payload);
-				message = handler.obtainMessage(message_id, syncErrors);
-				handler.sendMessage(message);
+				SyncManager.publish(message_id, 0, 0, syncErrors);
 				return true;
 		}
 		return false;
@@ -532,13 +736,10 @@ public abstract class SyncService {
 	public void setSyncProgress(int progress) {
 		synchronized (TAG) {
 			TLog.v(TAG, "sync progress: {0}", progress);
-			Message progressMessage = new Message();
-			progressMessage.what = SYNC_PROGRESS;
-			progressMessage.arg1 = progress;
-			progressMessage.arg2 = syncProgress;
-
-			handler.sendMessage(progressMessage);
+			// set first, an observer may start the next sync as soon as this one reports 100
+			int previous = syncProgress;
 			syncProgress = progress;
+			SyncManager.publish(SYNC_PROGRESS, progress, previous, null);
 		}
 	}
 	
@@ -552,6 +753,13 @@ public abstract class SyncService {
 		return getSyncProgress() == 100;
 	}
 
+	/**
+	 * @return whether a sync ran in this process, so CompareNotes can hand it what the user chose
+	 */
+	public synchronized boolean hasSyncSession() {
+		return resolvedPullable != null;
+	}
+
 	// new methods to T Edit
 	
 	protected abstract void pullNote(String guid);
@@ -579,21 +787,46 @@ public abstract class SyncService {
 		return true;
 	}
 
-	public void resolvedConflict(int requestCode) {
-		resolvedCount++;
-		if(resolvedCount == conflictCount)
-			doSyncNotes();
+	/**
+	 * Syncs what the user chose in CompareNotes on the sync thread, conflicts that weren't resolved
+	 * stay queued. Ends with progress 100 like a sync, SyncBackgroundService runs it.
+	 */
+	public void syncResolvedConflicts() {
+		
+		syncErrors = null;
+		
+		if (getSyncProgress() != 100)
+			return;
+		
+		setSyncProgress(0);
+		syncInThread(new Runnable() {
+			public void run() {
+				synchronized (SyncService.this) {
+					// without a session there is nothing to sync, the pass ends right away
+					pullableNotes = resolvedPullable != null ? resolvedPullable : new ArrayList<Note>();
+					pushableNotes = resolvedPushable != null ? resolvedPushable : new ArrayList<Note>();
+					deleteableNotes = resolvedDeleteable != null ? resolvedDeleteable : new ArrayList<Note>();
+					resolvedPullable = resolvedPushable = resolvedDeleteable = null;
+				}
+				TLog.v(TAG, "syncing resolved conflicts, pull: {0}, push: {1}, delete: {2}",
+						pullableNotes.size(), pushableNotes.size(), deleteableNotes.size());
+				doSyncNotes();
+			}
+		});
 	}
 
-	public void addPullable(Note note) {
-		this.pullableNotes.add(note);
+	public synchronized void addPullable(Note note) {
+		if(resolvedPullable != null)
+			resolvedPullable.add(note);
 	}
 
-	public void addPushable(Note note) {
-		this.pushableNotes.add(note);
+	public synchronized void addPushable(Note note) {
+		if(resolvedPushable != null)
+			resolvedPushable.add(note);
 	}
 
-	public void addDeleteable(Note note) {
-		this.deleteableNotes.add(note);
+	public synchronized void addDeleteable(Note note) {
+		if(resolvedDeleteable != null)
+			resolvedDeleteable.add(note);
 	}
 }
\ No newline at end of file
@@ -24,24 +24,24 @@
  */
 package org.tomdroid.sync.sd;
 
-import android.app.Activity;
-import android.os.Handler;
+import android.content.Context;
 import android.util.TimeFormatException;
 
 import org.tomdroid.Note;
 import org.tomdroid.NoteManager;
 import org.tomdroid.R;
+import org.tomdroid.sync.Outbox;
 import org.tomdroid.sync.SyncService;
 import org.tomdroid.ui.Tomdroid;
 import org.tomdroid.util.ErrorList;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.TLog;
 import org.tomdroid.util.Time;
+import org.tomdroid.xml.SAXParsers;
 import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
 
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -58,8 +58,8 @@ public class SdCardSyncService extends SyncService {
 	// logging related
 	private final static String TAG = "SdCardSyncService";
 	
-	public SdCardSyncService(Activity activity, Handler handler) {
-		super(activity, handler);
+	public SdCardSyncService(Context context) {
+		super(context);
 	}
 	
 	@Override
@@ -199,9 +199,8 @@ public class SdCardSyncService extends SyncService {
 			try {
 				// Parsing
 		    	// XML 
-		    	// Get a SAXParser from the SAXPArserFactory
-		        SAXParserFactory spf = SAXParserFactory.newInstance();
-		        SAXParser sp = spf.newSAXParser();
+		    	// Get this thread's SAXParser
+		    	SAXParser sp = SAXParsers.getFileParser();
 		
 		        // Get the XMLReader of the SAXParser we created
 		        XMLReader xr = sp.getXMLReader();
@@ -272,22 +271,76 @@ public class SdCardSyncService extends SyncService {
 		if(notes.size() == 0)
 			return;
 		
-		for (Note note : notes) {
-			if(note.getTags().contains("system:deleted")) // deleted note
-				deleteNote(note.getGuid());
-			else
-				pushNote(note);
+		// each batch leaves the outbox once written, like the web service's
+		for (ArrayList<Note> batch : Outbox.batches(notes)) {
+			ArrayList<Note> pushed = new ArrayList<Note>();
+			for (Note note : batch) {
+				if(note.getTags().contains("system:deleted") ? deleteNote(note.getGuid()) : pushNote(note))
+					pushed.add(note);
+			}
+			notesPushed(pushed);
 		}
 		finishSync(true);
 	}
 
+	// the files of the queued notes are written directly, unless one changed on the card since the last sync
+	@Override
+	protected void pushQueuedNotes(ArrayList<Note> notes) {
+		
+		for (Note note : notes) {
+			if (!isUnchangedOnCard(note.getGuid())) {
+				TLog.d(TAG, "note {0} changed on the card, syncing", note.getGuid());
+				getNotesForSync(true);
+				return;
+			}
+		}
+		for (ArrayList<Note> batch : Outbox.batches(notes)) {
+			ArrayList<Note> pushed = new ArrayList<Note>();
+			for (Note note : batch) {
+				if(note.getTags().contains("system:deleted") ? deleteNote(note.getGuid()) : pushNote(note))
+					pushed.add(note);
+			}
+			notesPushed(pushed);
+		}
+		setSyncProgress(100);
+	}
+
+	// whether the card has the note as it was last synced, or never had it; a deleted note has no sync
+	// hash left, so its deletion goes through a full sync
+	private boolean isUnchangedOnCard(String guid) {
+		
+		String syncHash = NoteManager.getSyncHash(context, guid);
+		File file = new File(Tomdroid.NOTES_PATH + "/" + guid + ".note");
+		if (!file.exists())
+			return syncHash == null;
+		if (syncHash == null)
+			return false;
+		
+		Note cardNote = new Note();
+		try {
+			String contents = readFile(file, new char[0x1000]);
+			XMLReader xr = SAXParsers.getFileParser().getXMLReader();
+			xr.setContentHandler(new NoteHandler(cardNote));
+			xr.parse(new InputSource(new StringReader(contents)));
+			Matcher m = note_content.matcher(contents);
+			if (!m.find())
+				return false;
+			cardNote.setXmlContent(NoteManager.stripTitleFromContent(m.group(1), cardNote.getTitle()));
+		} catch (Exception e) {
+			TLog.w(TAG, "couldn't read {0}", file.getName());
+			return false;
+		}
+		return syncHash.equals(cardNote.getContentHash());
+	}
+
 	// this function is a shell to allow backup function to push as well but send a different message... may not be necessary any more...
-	private void pushNote(Note note){
+	private boolean pushNote(Note note){
 		TLog.v(TAG, "pushing note to sdcard");
 		
 		int message = doPushNote(note);
 
 		sendMessage(message);
+		return message == NOTE_PUSHED;
 	}
 
 	// actually pushes a note to sdcard, with optional subdirectory (e.g. backup)
@@ -333,9 +386,8 @@ public class SdCardSyncService extends SyncService {
 				try {
 					// Parsing
 			    	// XML 
-			    	// Get a SAXParser from the SAXPArserFactory
-			        SAXParserFactory spf = SAXParserFactory.newInstance();
-			        SAXParser sp = spf.newSAXParser();
+			    	// Get this thread's SAXParser
+			    	SAXParser sp = SAXParsers.getFileParser();
 			
 			        // Get the XMLReader of the SAXParser we created
 			        XMLReader xr = sp.getXMLReader();
@@ -386,7 +438,7 @@ public class SdCardSyncService extends SyncService {
 		return NOTE_PUSHED;
 	}
 
-	private void deleteNote(String guid){
+	private boolean deleteNote(String guid){
 		try {
 			File path = new File(Tomdroid.NOTES_PATH + "/" + guid + ".note");
 			path.delete();
@@ -394,10 +446,10 @@ public class SdCardSyncService extends SyncService {
 		catch (Exception e) {
 			TLog.e(TAG, "delete from sd card didn't work");
 			sendMessage(NOTE_DELETE_ERROR);
-			return;
+			return false;
 		}
 		sendMessage(NOTE_DELETED);
-
+		return true;
 	}
 	
 	// pull note used for revert
@@ -429,7 +481,7 @@ public class SdCardSyncService extends SyncService {
 	// backup function accessed via preferences
 	@Override
 	public void backupNotes() {
-		Note[] notes = NoteManager.getAllNotesAsNotes(activity, true);
+		Note[] notes = NoteManager.getAllNotesAsNotes(context, true);
 		if(notes != null && notes.length > 0) 
 			for(Note note : notes)
 				doPushNote(note);
@@ -444,7 +496,7 @@ public class SdCardSyncService extends SyncService {
 	@Override
 	public void finishSync(boolean refresh) {
 		// delete leftover local notes
-		NoteManager.purgeDeletedNotes(activity);
+		NoteManager.purgeDeletedNotes(context);
 		
 		Time now = new Time();
 		now.setToNow();
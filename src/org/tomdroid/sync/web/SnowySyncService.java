@@ -22,8 +22,7 @@
  */
 package org.tomdroid.sync.web;
 
-import android.app.Activity;
-import android.database.Cursor;
+import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
@@ -34,6 +33,7 @@ import org.json.JSONObject;
 import org.tomdroid.Note;
 import org.tomdroid.NoteManager;
 import org.tomdroid.R;
+import org.tomdroid.sync.Outbox;
 import org.tomdroid.sync.ServiceAuth;
 import org.tomdroid.sync.SyncService;
 import org.tomdroid.util.ErrorList;
@@ -44,7 +44,7 @@ import org.tomdroid.xml.XmlUtils;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
 
 public class SnowySyncService extends SyncService implements ServiceAuth {
 
@@ -53,8 +53,8 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 	private long latestRemoteRevision = -1;
 	private long latestLocalRevision = -1;
 
-	public SnowySyncService(Activity activity, Handler handler) {
-		super(activity, handler);
+	public SnowySyncService(Context context) {
+		super(context);
 	}
 
 	@Override
@@ -194,6 +194,18 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 
 					try {
 						JSONObject response = new JSONObject(rawResponse);
+						
+						// the user resource has the revision too, nothing else is got if it is the
+						// one of the last sync and nothing is queued here
+						
+						long userRevision = response.optLong("latest-sync-revision", -1);
+						if (userRevision >= 0 && userRevision == Preferences.getLong(Preferences.Key.LATEST_SYNC_REVISION)
+								&& Outbox.count(context) == 0) {
+							TLog.v(TAG, "sync revision {0} unchanged and nothing queued, skipping", userRevision);
+							latestRemoteRevision = userRevision;
+							finishSync(true);
+							return;
+						}
 
 						// get notes list without content, to check for revision
 						
@@ -209,11 +221,11 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 						sendMessage(LATEST_REVISION,(int)latestRemoteRevision,0);
 						TLog.d(TAG, "old latest sync revision: {0}, remote latest sync revision: {1}", latestLocalRevision, latestRemoteRevision);
 
-						Cursor newLocalNotes = NoteManager.getNewNotes(activity); 
+						int queuedLocalNotes = Outbox.count(context);
 						
-						// same sync revision + no new local notes = no need to sync
+						// same sync revision + no new or deleted local notes = no need to sync
 						
-						if (latestRemoteRevision <= latestLocalRevision && newLocalNotes.getCount() == 0) {
+						if (latestRemoteRevision <= latestLocalRevision && queuedLocalNotes == 0) {
 							TLog.v(TAG, "old sync revision on server, cancelling");
 							finishSync(true);
 							return;
@@ -222,22 +234,33 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 						// don't get notes if older revision - only pushing notes
 						
 						if (push && latestRemoteRevision <= latestLocalRevision) {
-							TLog.v(TAG, "old sync revision on server, pushing new notes");
-							
-							JSONArray notes = response.getJSONArray("notes");
-							List<String> notesList = new ArrayList<String>();
-							for (int i = 0; i < notes.length(); i++)
-								notesList.add(notes.getJSONObject(i).optString("guid"));
-							prepareSyncableNotes(newLocalNotes);
+							TLog.v(TAG, "old sync revision on server, pushing {0} queued notes", queuedLocalNotes);
+							prepareOutboxNotes();
 							setSyncProgress(50);
 							return;
 						}
 						
-						// get notes list with content to find changes
+						// get notes list with content to find changes, only the changed ones if the
+						// revision of every local note on the server is known
+						
+						JSONArray allNotes = response.getJSONArray("notes");
+						HashSet<String> allRemoteGuids = new HashSet<String>();
+						for (int i = 0; i < allNotes.length(); i++)
+							allRemoteGuids.add(allNotes.getJSONObject(i).optString("guid"));
+						boolean incremental = latestLocalRevision >= 0;
+						for (String guid : NoteManager.getGuidsWithoutServerRevision(context)) {
+							if (allRemoteGuids.contains(guid)) {
+								incremental = false;
+								break;
+							}
+						}
 						
 						TLog.v(TAG, "contacting " + notesUrl);
 						sendMessage(SYNC_CONNECTED);
-						rawResponse = auth.get(notesUrl + "?include_notes=true");
+						if (incremental)
+							rawResponse = auth.get(notesUrl + "?include_notes=true&since=" + latestLocalRevision);
+						else
+							rawResponse = auth.get(notesUrl + "?include_notes=true");
 						if(cancelled) {
 							doCancel();
 							return; 
@@ -261,9 +284,8 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 							return; 
 						}						
 						
-						// close cursor
-						newLocalNotes.close();
-						prepareSyncableNotes(notesList);
+						TLog.v(TAG, "{0} of {1} remote notes changed", notesList.size(), incremental ? allRemoteGuids.size() : notesList.size());
+						prepareSyncableNotes(notesList, incremental ? allRemoteGuids : null);
 						
 					} catch (JSONException e) {
 						TLog.e(TAG, e, "Problem parsing the server response");
@@ -283,8 +305,6 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 					doCancel();
 					return; 
 				}
-				if (isSyncable())
-					finishSync(true);
 			}
 		});
 	}
@@ -292,7 +312,7 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 	public void finishSync(boolean refresh) {
 
 		// delete leftover local notes
-		NoteManager.purgeDeletedNotes(activity);
+		NoteManager.purgeDeletedNotes(context);
 		
 		Time now = new Time();
 		now.setToNow();
@@ -346,75 +366,57 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 		final String userRef = Preferences
 				.getString(Preferences.Key.SYNC_SERVER_USER_API);
 		
-		final long newRevision = Preferences.getLong(Preferences.Key.LATEST_SYNC_REVISION)+1;
+		final long firstRevision = Preferences.getLong(Preferences.Key.LATEST_SYNC_REVISION)+1;
 				
 		syncInThread(new Runnable() {
 			public void run() {
 				OAuthConnection auth = getAuthConnection();
 				try {
-					TLog.v(TAG, "pushing {0} notes to remote service, sending rev #{1}",notes.size(), newRevision);
 					String rawResponse = auth.get(userRef);
 					if(cancelled) {
 						doCancel();
 						return; 
 					}		
 					try {
-						TLog.v(TAG, "creating JSON");
-
-						JSONObject data = new JSONObject();
-						data.put("latest-sync-revision", newRevision);
-						JSONArray Jnotes = new JSONArray();
-						for(Note note : notes) {
-							JSONObject Jnote = new JSONObject();
-							Jnote.put("guid", note.getGuid());
-							
-							if(note.getTags().contains("system:deleted")) // deleted note
-								Jnote.put("command","delete");
-							else { // changed note
-								Jnote.put("title", XmlUtils.escape(note.getTitle()));
-								Jnote.put("note-content", note.getXmlContent());
-								Jnote.put("note-content-version", "0.1");
-								Jnote.put("last-change-date", note.getLastChangeDate());
-								Jnote.put("create-date", note.getCreateDate());
-								Jnote.put("last-metadata-change-date", note.getLastChangeDate());  // TODO: is this different?
-							}
-							Jnotes.put(Jnote);
-						}
-						data.put("note-changes", Jnotes);
-						
 						JSONObject response = new JSONObject(rawResponse);
-						if(cancelled) {
-							doCancel();
-							return; 
-						}		
 						String notesUrl = response.getJSONObject("notes-ref")
 								.getString("api-ref");
 
 						TLog.v(TAG, "put url: {0}", notesUrl);
 						
-						if(cancelled) {
-							doCancel();
-							return; 
-						}	
-						
-						TLog.v(TAG, "pushing data to remote service: {0}",data.toString());
-						response = new JSONObject(auth.put(notesUrl,
-								data.toString()));
-
-						TLog.v(TAG, "put response: {0}", response.toString());
-						latestRemoteRevision = response.getLong("latest-sync-revision");
-						sendMessage(LATEST_REVISION,(int)latestRemoteRevision,0);
+						// one revision per batch, the batches pushed stay pushed if a later one fails
+						long newRevision = firstRevision;
+						for(ArrayList<Note> batch : Outbox.batches(notes)) {
+							if(cancelled) {
+								doCancel();
+								return; 
+							}
+							TLog.v(TAG, "pushing {0} of {1} notes to remote service, sending rev #{2}", batch.size(), notes.size(), newRevision);
+							rawResponse = pushBatch(auth, notesUrl, batch, newRevision);
+							response = new JSONObject(rawResponse);
+							
+							TLog.v(TAG, "put response: {0}", response.toString());
+							latestRemoteRevision = response.getLong("latest-sync-revision");
+							sendMessage(LATEST_REVISION,(int)latestRemoteRevision,0);
+							
+							for(Note note : batch)
+								note.setServerRevision(latestRemoteRevision);
+							notesPushed(batch);
+							newRevision = latestRemoteRevision+1;
+						}
 
 					} catch (JSONException e) {
 						TLog.e(TAG, e, "Problem parsing the server response");
 						sendMessage(NOTE_PUSH_ERROR,
 								ErrorList.createErrorWithContents(
 										"JSON parsing", "json", e, rawResponse));
+						setSyncProgress(100);
 						return;
 					}
 				} catch (java.net.UnknownHostException e) {
 					TLog.e(TAG, "Internet connection not available");
 					sendMessage(NO_INTERNET);
+					setSyncProgress(100);
 					return;
 				}
 				// success, finish sync
@@ -424,6 +426,93 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 		});
 	}
 
+	// sends one note-changes PUT, returns the raw response
+	private String pushBatch(OAuthConnection auth, String notesUrl, ArrayList<Note> notes, long newRevision)
+			throws JSONException, UnknownHostException {
+
+		TLog.v(TAG, "creating JSON");
+
+		JSONObject data = new JSONObject();
+		data.put("latest-sync-revision", newRevision);
+		JSONArray Jnotes = new JSONArray();
+		for(Note note : notes) {
+			JSONObject Jnote = new JSONObject();
+			Jnote.put("guid", note.getGuid());
+			
+			if(note.getTags().contains("system:deleted")) // deleted note
+				Jnote.put("command","delete");
+			else { // changed note
+				Jnote.put("title", XmlUtils.escape(note.getTitle()));
+				Jnote.put("note-content", note.getXmlContent());
+				Jnote.put("note-content-version", "0.1");
+				Jnote.put("last-change-date", note.getLastChangeDate());
+				Jnote.put("create-date", note.getCreateDate());
+				Jnote.put("last-metadata-change-date", note.getLastChangeDate());  // TODO: is this different?
+			}
+			Jnotes.put(Jnote);
+		}
+		data.put("note-changes", Jnotes);
+		
+		TLog.v(TAG, "pushing data to remote service: {0}",data.toString());
+		return auth.put(notesUrl, data.toString());
+	}
+
+	// only the user resource is got, its revision tells whether anyone else synced since us
+	@Override
+	protected void pushQueuedNotes(ArrayList<Note> notes) {
+		
+		String userRef = Preferences.getString(Preferences.Key.SYNC_SERVER_USER_API);
+		long localRevision = Preferences.getLong(Preferences.Key.LATEST_SYNC_REVISION);
+		OAuthConnection auth = getAuthConnection();
+		String rawResponse = null;
+		try {
+			rawResponse = auth.get(userRef);
+			if (rawResponse == null) {
+				TLog.w(TAG, "couldn't contact {0}, the notes stay queued", userRef);
+				sendMessage(CONNECTING_FAILED);
+				setSyncProgress(100);
+				return;
+			}
+			JSONObject response = new JSONObject(rawResponse);
+			latestRemoteRevision = response.optLong("latest-sync-revision", -1);
+			if (localRevision < 0 || latestRemoteRevision != localRevision) {
+				TLog.d(TAG, "remote revision moved from {0} to {1}, syncing", localRevision, latestRemoteRevision);
+				getNotesForSync(true);
+				return;
+			}
+			String notesUrl = response.getJSONObject("notes-ref").getString("api-ref");
+			
+			for (ArrayList<Note> batch : Outbox.batches(notes)) {
+				long newRevision = latestRemoteRevision + 1;
+				TLog.v(TAG, "pushing {0} queued notes, sending rev #{1}", batch.size(), newRevision);
+				rawResponse = pushBatch(auth, notesUrl, batch, newRevision);
+				// a rejected revision doesn't come back as JSON
+				long revision = rawResponse == null ? -1 : new JSONObject(rawResponse).optLong("latest-sync-revision", -1);
+				if (revision != newRevision) {
+					TLog.d(TAG, "revision {0} not taken, syncing", newRevision);
+					getNotesForSync(true);
+					return;
+				}
+				latestRemoteRevision = revision;
+				sendMessage(LATEST_REVISION,(int)latestRemoteRevision,0);
+				for (Note note : batch)
+					note.setServerRevision(latestRemoteRevision);
+				notesPushed(batch);
+				Preferences.putLong(Preferences.Key.LATEST_SYNC_REVISION, latestRemoteRevision);
+			}
+		} catch (JSONException e) {
+			TLog.e(TAG, e, "Problem parsing the server response, syncing");
+			getNotesForSync(true);
+			return;
+		} catch (UnknownHostException e) {
+			TLog.w(TAG, "Internet connection not available, the notes stay queued");
+			sendMessage(NO_INTERNET);
+			setSyncProgress(100);
+			return;
+		}
+		setSyncProgress(100);
+	}
+
 	@Override
 	protected void pullNote(final String guid) {
 
@@ -467,7 +556,9 @@ public class SnowySyncService extends SyncService implements ServiceAuth {
 
 						TLog.v(TAG, "parsing remote note");
 
-						insertNote(new Note(jsonNote));
+						Note note = new Note(jsonNote);
+						insertNote(note);
+						NoteManager.putSyncBase(context, note);
 
 					} catch (JSONException e) {
 						TLog.e(TAG, e, "Problem parsing the server response");
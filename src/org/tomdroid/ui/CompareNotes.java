@@ -24,23 +24,19 @@
  */
 package org.tomdroid.ui;
 
-import java.util.Arrays;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.tomdroid.Note;
 import org.tomdroid.NoteManager;
 import org.tomdroid.R;
+import org.tomdroid.sync.ConflictQueue;
 import org.tomdroid.sync.SyncManager;
 import org.tomdroid.ui.actionbar.ActionBarActivity;
+import org.tomdroid.util.NoteDiffBuilder;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.TLog;
 import org.tomdroid.util.Time;
 
-import difflib.Delta;
-import difflib.DiffUtils;
-import difflib.Patch;
 import android.app.Activity;	
 import android.content.ContentValues;
 import android.content.Intent;	
@@ -48,8 +44,11 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.net.Uri;
 import android.os.Bundle;	
+import android.os.Handler;
+import android.os.Message;
 import android.text.Html;
-import android.text.TextUtils;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -65,26 +64,34 @@ public class CompareNotes extends ActionBarActivity {
 	private int dateDiff;
 	private boolean noRemote;
 	private float baseSize;;
+	private NoteDiffBuilder diffBuilder;
+	private Spanned diffHeader;
+	// showing a conflict of the queue, with this id
+	private boolean queued;
+	private long conflictId;
 
 	@Override	
 	public void onCreate(Bundle savedInstanceState) {	
 		super.onCreate(savedInstanceState);	
 		
 		Preferences.init(this, Tomdroid.CLEAR_PREFERENCES);
+		SyncManager.init(this);
 		baseSize = Float.parseFloat(Preferences.getString(Preferences.Key.BASE_TEXT_SIZE));
 		
-		if(!this.getIntent().hasExtra("datediff")) {
-			TLog.v(TAG, "no date diff");
+		// conflicts found by sync are queued, a received note (see Receive.java) comes with the intent
+		queued = !this.getIntent().hasExtra("datediff");
+		final Bundle extras = queued ? ConflictQueue.peek(this) : this.getIntent().getExtras();
+		if(extras == null) {
+			TLog.v(TAG, "no conflict to compare");
 			finish();
 			return;
 		}
+		conflictId = extras.getLong("id");
 		TLog.v(TAG, "starting CompareNotes");
 		
 		setContentView(R.layout.note_compare);
 		// Disable the tomdroid icon home button
 		setHomeButtonEnabled(false);
-		
-		final Bundle extras = this.getIntent().getExtras();
 
 		remoteNote = new Note();
 		remoteNote.setTitle(extras.getString("title"));
@@ -106,7 +113,7 @@ public class CompareNotes extends ActionBarActivity {
 		
 		// check if we're comparing two different notes with same title
 		
-		differentNotes = getIntent().hasExtra("localGUID"); 
+		differentNotes = extras.containsKey("localGUID"); 
 		if(differentNotes) {
 			localNote = NoteManager.getNoteByGuid(this, extras.getString("localGUID"));
 			TLog.v(TAG, "comparing two different notes with same title");
@@ -116,6 +123,12 @@ public class CompareNotes extends ActionBarActivity {
 			TLog.v(TAG, "comparing two versions of the same note");
 		}
 		
+		if(localNote == null) { // deleted since the conflict was queued
+			TLog.v(TAG, "local note is gone, dropping the conflict");
+			finishForResult(new Intent());
+			return;
+		}
+		
 		final boolean deleted = localNote.getTags().contains("system:deleted"); 
 		
 		String message;
@@ -195,7 +208,6 @@ public class CompareNotes extends ActionBarActivity {
 					if(extras.getInt("datediff") < 0) { // local older
 						TLog.v(TAG, "compared notes have same content and titles, pulling newer remote");
 						pullNote(remoteNote);
-						finish();
 					}
 					else if(extras.getInt("datediff") == 0 || noRemote) {
 						TLog.v(TAG, "compared notes have same content and titles, same date, doing nothing");
@@ -203,7 +215,6 @@ public class CompareNotes extends ActionBarActivity {
 					else {
 						TLog.v(TAG, "compared notes have same content and titles, pushing newer local");
 						pushNote(localNote);
-						finish();
 					}
 					
 					if(noRemote) {
@@ -213,8 +224,8 @@ public class CompareNotes extends ActionBarActivity {
 						returnIntent.putExtra("uri", uri.toString());
 						finishForResult(returnIntent);
 					}
-					else // do nothing
-						finish();
+					else
+						finishForResult(new Intent());
 					
 					return;
 				}
@@ -234,62 +245,16 @@ public class CompareNotes extends ActionBarActivity {
 				else
 	    			diff += "<br/><br/>";
 
-				Patch patch = DiffUtils.diff(Arrays.asList(TextUtils.split(localNote.getXmlContent(), "\\r?\\n|\\r")), Arrays.asList(TextUtils.split(extras.getString("content"), "\\r?\\n|\\r")));
-	            String diffResult = "";
-				for (Delta delta: patch.getDeltas()) {
-	            	diffResult += delta.toString()+"<br/>";
-	            }
-
-	            Pattern firstPattern = Pattern.compile("\\[ChangeDelta, position: ([0-9]+), lines: \\[([^]]+)\\] to \\[([^]]+)\\]\\]");
-	            Pattern secondPattern = Pattern.compile("\\[InsertDelta, position: ([0-9]+), lines: \\[([^]]+)\\]\\]");
-	            Pattern thirdPattern = Pattern.compile("\\[DeleteDelta, position: ([0-9]+), lines: \\[([^]]+)\\]\\]");
-	        	
-	            Matcher matcher = firstPattern.matcher(diffResult);
-	            StringBuffer result = new StringBuffer();
-	            while (matcher.find())
-	            {
-	                matcher.appendReplacement(
-	                	result, 
-                		"<b>"+String.format(getString(R.string.line_x),String.valueOf(Integer.parseInt(matcher.group(1)) + 1))+"</b><br/><i>"
-                		+getString(R.string.local_label)+":</i><br/>"+matcher.group(2)+"<br/><br/><i>"
-                		+getString(R.string.remote_label)+":</i><br/>"+matcher.group(3)+"<br/>"
-	                );
-	            }
-	            matcher.appendTail(result);
-
-	            matcher = secondPattern.matcher(result);
-	            result = new StringBuffer();
-	            while (matcher.find())
-	            {
-	                matcher.appendReplacement(
-	                	result, 
-						"<b>"+String.format(getString(R.string.line_x),String.valueOf(Integer.parseInt(matcher.group(1)) + 1))+"</b><br/><i>"
-	                	+getString(R.string.remote_label)+":</i><br/>"+matcher.group(2)+"<br/><br/>"
-
-	                );
-	            }
-	            matcher.appendTail(result);
-
-	            matcher = thirdPattern.matcher(result);
-	            result = new StringBuffer();
-	            while (matcher.find())
-	            {
-	                matcher.appendReplacement(
-	                	result, 
-						"<b>"+String.format(getString(R.string.line_x),String.valueOf(Integer.parseInt(matcher.group(1)) + 1))+"</b><br/><i>"
-	                	+getString(R.string.local_label)+":</i><br/>"+matcher.group(2)+"<br/><br/>"
-
-	                );
-	            }
-	            matcher.appendTail(result);
-	            
-				diff += "<b>"+getString(R.string.diff_content)+"</b><br/>";		
-	            
-	            diff += result;
-				
-	            diff = diff.replace("\n","<br/>");
-	            
-	            diffView.setText(Html.fromHtml(diff));
+				diff += "<b>"+getString(R.string.diff_content)+"</b><br/>";
+				diffHeader = Html.fromHtml(diff);
+				diffView.setText(diffHeader);
+
+				// the differences are found in the background and added once known
+				diffBuilder = new NoteDiffBuilder()
+					.setCaller(diffHandler)
+					.setTexts(localNote.getXmlContent(), extras.getString("content"))
+					.setLabels(getString(R.string.line_x), getString(R.string.local_label), getString(R.string.remote_label));
+				diffBuilder.build();
 				
 			}
 			
@@ -363,10 +328,28 @@ public class CompareNotes extends ActionBarActivity {
         });	
 	}
 	
+	@Override
+	public void onDestroy() {
+		if (diffBuilder != null)
+			diffBuilder.cancel();
+		super.onDestroy();
+	}
+	
+	private final Handler diffHandler = new Handler() {
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.what != NoteDiffBuilder.DIFF_OK || msg.obj != diffBuilder)
+				return;
+			SpannableStringBuilder diff = new SpannableStringBuilder(diffHeader);
+			diff.append(diffBuilder.getDiff());
+			((TextView)findViewById(R.id.diff)).setText(diff);
+		}
+	};
+	
 	@Override	
 	public void onResume() {
 		// if the SyncService was stopped because Android killed it, we should not show the progress dialog any more
-		if (SyncManager.getInstance().getCurrentService().activity == null) {
+		if (!SyncManager.getInstance().getCurrentService().hasSyncSession()) {
 			TLog.i(TAG, "Android killed the SyncService while in background. We will dismiss the compare view now.");
 			finish();
 		}
@@ -483,7 +466,7 @@ public class CompareNotes extends ActionBarActivity {
 
 		// this will delete the note, since it already has the "system:deleted" tag
 		pushNote(localNote);
-		finish();
+		finishForResult(new Intent());
 	}
 
 	private void pullNote(Note note) {
@@ -548,6 +531,17 @@ public class CompareNotes extends ActionBarActivity {
 	}
 
 	private void finishForResult(Intent data){
+		if (queued) {
+			// this conflict is resolved, the next one gets its own screen and our caller the result
+			ConflictQueue.remove(this, conflictId);
+			if (ConflictQueue.count(this) > 0) {
+				Intent next = new Intent(this, CompareNotes.class);
+				next.addFlags(Intent.FLAG_ACTIVITY_FORWARD_RESULT);
+				startActivity(next);
+				finish();
+				return;
+			}
+		}
 		if (getParent() == null) {
 		    setResult(Activity.RESULT_OK, data);
 		} else {
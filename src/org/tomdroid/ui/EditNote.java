@@ -24,12 +24,8 @@
  */
 package org.tomdroid.ui;
 
-import java.io.StringReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.tomdroid.Note;
 import org.tomdroid.NoteManager;
@@ -39,11 +35,14 @@ import org.tomdroid.sync.sd.SdCardSyncService;
 import org.tomdroid.ui.actionbar.ActionBarActivity;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.TLog;
-import org.tomdroid.xml.LinkInternalSpan;
-import org.tomdroid.xml.LinkifyPhone;
+import org.tomdroid.xml.IncrementalXMLContentBuilder;
 import org.tomdroid.xml.NoteContentBuilder;
+import org.tomdroid.xml.NoteContentCache;
+import org.tomdroid.xml.NoteLinkBuilder;
 import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.NoteContentReader;
 import org.tomdroid.xml.NoteXMLContentBuilder;
+import org.tomdroid.xml.SAXParsers;
 import org.xml.sax.InputSource;
 
 import android.app.AlertDialog;
@@ -68,9 +67,6 @@ import android.text.style.RelativeSizeSpan;
 import android.text.style.StrikethroughSpan;
 import android.text.style.StyleSpan;
 import android.text.style.TypefaceSpan;
-import android.text.util.Linkify;
-import android.text.util.Linkify.MatchFilter;
-import android.text.util.Linkify.TransformFilter;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -94,6 +90,8 @@ public class EditNote extends ActionBarActivity {
 	// Model objects
 	private Note note;
 	private SpannableStringBuilder noteContent;
+	// keeps the xml of unchanged paragraphs between saves
+	private IncrementalXMLContentBuilder xmlContentBuilder = new IncrementalXMLContentBuilder();
 	
 	// Logging info
 	private static final String TAG = "EditNote";
@@ -122,6 +120,8 @@ public class EditNote extends ActionBarActivity {
 	// remember if we are writing a BulletSpan at the moment
 	private boolean inBulletSpan = false;
 	private int listLevel = 1;
+	// the styles applied while typing
+	private StyleRuns styleRuns = new StyleRuns();
 	
 	// TODO extract methods in here
 	@Override
@@ -129,6 +129,8 @@ public class EditNote extends ActionBarActivity {
 		super.onCreate(savedInstanceState);
 
 		Preferences.init(this, Tomdroid.CLEAR_PREFERENCES);
+		SyncManager.init(this);
+		NoteContentCache.init(this);
 		
 		setContentView(R.layout.note_edit);
 		
@@ -185,6 +187,10 @@ public class EditNote extends ActionBarActivity {
 				
 				addFormatListeners();
 
+			//links found - show them
+			} else if(msg.what == NoteLinkBuilder.LINKS_OK) {
+				((NoteLinkBuilder) msg.obj).applyTo(content);
+
 			//parsed not ok - error
 			} else if(msg.what == NoteContentBuilder.PARSE_ERROR) {
 
@@ -229,6 +235,7 @@ public class EditNote extends ActionBarActivity {
 
     @Override
     protected void onDestroy() {
+    	NoteContentBuilder.cancel(noteContentHandler);
     	if(!forceClose) {
     		if(note.getTitle().length() == 0 && note.getXmlContent().length() == 0 && !textChanged) // if the note is empty, e.g. new
 				NoteManager.deleteNote(this, note);
@@ -321,6 +328,7 @@ public class EditNote extends ActionBarActivity {
 	
 	
 	private void showNote(boolean xml) {
+		styleRuns.close(content.getText());
 		if(xml) {
 
 			formatBar.setVisibility(View.GONE);
@@ -331,47 +339,13 @@ public class EditNote extends ActionBarActivity {
 			return;
 		}
 
-		LinkInternalSpan[] links = noteContent.getSpans(0, noteContent.length(), LinkInternalSpan.class);
-		MatchFilter noteLinkMatchFilter = LinkInternalSpan.getNoteLinkMatchFilter(noteContent, links);
-
 		// show the note (spannable makes the TextView able to output styled text)
 		content.setText(noteContent, TextView.BufferType.SPANNABLE);
+		xmlContentBuilder.attach(content.getText());
 
-		// add links to stuff that is understood by Android except phone numbers because it's too aggressive
-		// TODO this is SLOWWWW!!!!
-		int linkFlags = 0;
-		
-		if(Preferences.getBoolean(Preferences.Key.LINK_EMAILS))
-			linkFlags |= Linkify.EMAIL_ADDRESSES;
-		if(Preferences.getBoolean(Preferences.Key.LINK_URLS))
-			linkFlags |= Linkify.WEB_URLS;
-		if(Preferences.getBoolean(Preferences.Key.LINK_ADDRESSES))
-			linkFlags |= Linkify.MAP_ADDRESSES;
-		
-		Linkify.addLinks(content, linkFlags);
-
-		// Custom phone number linkifier (fixes lp:512204)
-		if(Preferences.getBoolean(Preferences.Key.LINK_PHONES))
-			Linkify.addLinks(content, LinkifyPhone.PHONE_PATTERN, "tel:", LinkifyPhone.sPhoneNumberMatchFilter, Linkify.sPhoneNumberTransformFilter);
-
-		// This will create a link every time a note title is found in the text.
-		// The pattern contains a very dumb (title1)|(title2) escaped correctly
-		// Then we transform the url from the note name to the note id to avoid characters that mess up with the URI (ex: ?)
-		if(Preferences.getBoolean(Preferences.Key.LINK_TITLES)) {
-			Pattern pattern = NoteManager.buildNoteLinkifyPattern(this, note.getTitle());
-	
-			if(pattern != null) {
-				Linkify.addLinks(
-					content,
-					pattern,
-					Tomdroid.CONTENT_URI+"/",
-					noteLinkMatchFilter,
-					noteTitleTransformFilter
-				);
-	
-				// content.setMovementMethod(LinkMovementMethod.getInstance());
-			}
-		}
+		// links are found in the background and show up when they are ready
+		new NoteLinkBuilder().setCaller(noteContentHandler).setContentResolver(getContentResolver())
+			.setNote(note).setContent(content.getText()).build();
 		title.setText((CharSequence) note.getTitle());
 	}
 	
@@ -421,37 +395,20 @@ public class EditNote extends ActionBarActivity {
 		}
 	};
 
-	// custom transform filter that takes the note's title part of the URI and translate it into the note id
-	// this was done to avoid problems with invalid characters in URI (ex: ? is the query separator but could be in a note title)
-	private TransformFilter noteTitleTransformFilter = new TransformFilter() {
-
-		public String transformUrl(Matcher m, String str) {
-
-			int id = NoteManager.getNoteId(EditNote.this, str);
-			
-			// return something like content://org.tomdroid.notes/notes/3
-			return Tomdroid.CONTENT_URI.toString()+"/"+id;
-		}  
-	};
 
 	private boolean updateNoteContent(boolean xml) {
 
 		SpannableStringBuilder newNoteContent = new SpannableStringBuilder();
 		if(xml) {
 			// parse XML
-			String xmlContent = "<note-content version=\"1.0\">"+this.content.getText().toString()+"</note-content>";
 			String subjectName = this.title.getText().toString();
-	        InputSource noteContentIs = new InputSource(new StringReader(xmlContent));
+			// read straight from the editor's text
+	        InputSource noteContentIs = new InputSource(new NoteContentReader(this.content.getText()));
 			try {
 				// Parsing
 		    	// XML 
-		    	// Get a SAXParser from the SAXPArserFactory
-		        SAXParserFactory spf = SAXParserFactory.newInstance();
-
-		        // trashing the namespaces but keep prefixes (since we don't have the xml header)
-		        spf.setFeature("http://xml.org/sax/features/namespaces", false);
-		        spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-		        SAXParser sp = spf.newSAXParser();
+		    	// Get this thread's SAXParser, namespaces are trashed but prefixes kept (since we don't have the xml header)
+		    	SAXParser sp = SAXParsers.getContentParser();
 
 		        sp.parse(noteContentIs, new NoteContentHandler(newNoteContent));
 			} catch (Exception e) {
@@ -465,13 +422,18 @@ public class EditNote extends ActionBarActivity {
 		else
 			newNoteContent = (SpannableStringBuilder) this.content.getText();
 
-		// store changed note content
-		String newXmlContent = new NoteXMLContentBuilder().setCaller(noteXMLWriteHandler).setInputSource(newNoteContent).build();
+		// store changed note content, only the paragraphs edited in the editor are serialized again
+		String newXmlContent;
+		if(xml)
+			newXmlContent = new NoteXMLContentBuilder().setCaller(noteXMLWriteHandler).setInputSource(newNoteContent).build();
+		else
+			newXmlContent = xmlContentBuilder.setCaller(noteXMLWriteHandler).setInputSource(newNoteContent).build();
 		
 		// Since 0.5 EditNote expects the redundant title being removed from the note content, but we still may need this for debugging:
 		//note.setXmlContent("<note-content version=\"0.1\">"+note.getTitle()+"\n\n"+newXmlContent+"</note-content>");
 		note.setXmlContent(newXmlContent);
-		noteContent = note.getNoteContent(noteXMLWriteHandler);
+		// the xml was just built from this content, no need to parse it back
+		noteContent = newNoteContent;
 		textChanged = true;
 		return true;
 	}
@@ -491,6 +453,7 @@ public class EditNote extends ActionBarActivity {
 
 		note.setLastChangeDate();
 		NoteManager.putNote( this, note);
+		SyncManager.pushSoon(this);
 		if(!SyncManager.getInstance().getCurrentService().needsLocation() && Preferences.getBoolean(Preferences.Key.AUTO_BACKUP_NOTES)) {
 			TLog.v(TAG, "backing note up");
 			SdCardSyncService.backupNote(note);
@@ -526,6 +489,9 @@ public class EditNote extends ActionBarActivity {
 	// generic function which does the magic as soon as a style-toggle button is clicked.
 	private void toggleButtonOnClick (ToggleButton button, Object span) {
 		
+		// the typed text gets the new style from here on
+		styleRuns.close(content.getText());
+		
 		int selectionStart = content.getSelectionStart();
 		styleStart = selectionStart;
 		int selectionEnd = content.getSelectionEnd();
@@ -692,7 +658,9 @@ public class EditNote extends ActionBarActivity {
         			position = 0;
         		}
             	
-        		if (position > 0){
+        		// the running styles already grew with the typed text, nothing to do
+        		if (position > 0 && !styleRuns.continues(s, position)){
+        			boolean cursorMoved = position != cursorLoc + 1;
         			
         			if (styleStart > position || position > (cursorLoc + 1)){
 						//user changed cursor location, reset
@@ -707,7 +675,8 @@ public class EditNote extends ActionBarActivity {
 					}
         			
         			// check if we are expanding a Bullet span at the end of a line and set the boolean variable accordingly
-        			if (!inBulletSpan && !(s.subSequence(position-1, position).toString().equals("\n"))) {
+        			// (only needed if the cursor was moved, typing can't reach the end of a bullet)
+        			if (cursorMoved && !inBulletSpan && s.charAt(position-1) != '\n') {
 	        			BulletSpan[] bulletSpans = s.getSpans(position, position, BulletSpan.class);
 	        			if (bulletSpans.length > 0) {
 	        				int bulletEnd = s.getSpanEnd(bulletSpans[0]);
@@ -720,94 +689,58 @@ public class EditNote extends ActionBarActivity {
         			}
         			
                 	if (boldButton.isChecked()){  
-                		StyleSpan[] ss = s.getSpans(styleStart, position, StyleSpan.class);
-
-                		for (int i = 0; i < ss.length; i++) {
-            				s.removeSpan(ss[i]);
-                        }
-                		s.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                		styleRuns.start(s, new StyleSpan(android.graphics.Typeface.BOLD), styleStart, position);
                 	}
                 	if (italicButton.isChecked()){
-                		StyleSpan[] ss = s.getSpans(styleStart, position, StyleSpan.class);
-                		
-                		for (int i = 0; i < ss.length; i++) {
-                    		if (ss[i].getStyle() == android.graphics.Typeface.ITALIC){
-                    			s.removeSpan(ss[i]);
-                    		}
-                        }
-                		s.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                		styleRuns.start(s, new StyleSpan(android.graphics.Typeface.ITALIC), styleStart, position);
                 	}
                 	if (strikeoutButton.isChecked()){
-                		StrikethroughSpan[] ss = s.getSpans(styleStart, position, StrikethroughSpan.class);
-                		
-                		for (int i = 0; i < ss.length; i++) {
-            				s.removeSpan(ss[i]);
-                        }
-            			s.setSpan(new StrikethroughSpan(), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                		styleRuns.start(s, new StrikethroughSpan(), styleStart, position);
                 	}
                 	if (highButton.isChecked()){
-                		BackgroundColorSpan[] ss = s.getSpans(styleStart, position, BackgroundColorSpan.class);
-                		
-                		for (int i = 0; i < ss.length; i++) {
-            				s.removeSpan(ss[i]);
-                        }
-            			s.setSpan(new BackgroundColorSpan(Note.NOTE_HIGHLIGHT_COLOR), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                		styleRuns.start(s, new BackgroundColorSpan(Note.NOTE_HIGHLIGHT_COLOR), styleStart, position);
                 	}
                 	if (monoButton.isChecked()){
-                		TypefaceSpan[] ss = s.getSpans(styleStart, position, TypefaceSpan.class);
-                		
-                		for (int i = 0; i < ss.length; i++) {
-                			if (ss[i].getFamily()==Note.NOTE_MONOSPACE_TYPEFACE){
-                				s.removeSpan(ss[i]);
-                			}
-                        }
-            			s.setSpan(new TypefaceSpan(Note.NOTE_MONOSPACE_TYPEFACE), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                		styleRuns.start(s, new TypefaceSpan(Note.NOTE_MONOSPACE_TYPEFACE), styleStart, position);
                 	}
                 	if (size != 1.0f){
-                		RelativeSizeSpan[] ss = s.getSpans(styleStart, position, RelativeSizeSpan.class);
-                		
-                		for (int i = 0; i < ss.length; i++) {
-                			s.removeSpan(ss[i]);
-                		}
-                		s.setSpan(new RelativeSizeSpan(size), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                		styleRuns.start(s, new RelativeSizeSpan(size), styleStart, position);
                 	}
                 	if (inBulletSpan) {
-                		LeadingMarginSpan[] ms = s.getSpans(styleStart, position, LeadingMarginSpan.class);
-                		for (int i = 0; i < ms.length; i++) {
-                			if( ms[i] instanceof LeadingMarginSpan.Standard ) {
-                				listLevel = ms[i].getLeadingMargin(true) / Note.NOTE_BULLET_INTENT_FACTOR;
-                			}
-                			s.removeSpan(ms[i]);
+                		LeadingMarginSpan.Standard[] ms = s.getSpans(styleStart, position, LeadingMarginSpan.Standard.class);
+                		if (ms.length > 0) {
+                			listLevel = ms[ms.length-1].getLeadingMargin(true) / Note.NOTE_BULLET_INTENT_FACTOR;
                 		}
-                		
-                		s.setSpan(new LeadingMarginSpan.Standard(Note.NOTE_BULLET_INTENT_FACTOR*listLevel), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                		s.setSpan(new BulletSpan(Integer.valueOf(6)), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                		styleRuns.start(s, new LeadingMarginSpan.Standard(Note.NOTE_BULLET_INTENT_FACTOR*listLevel), styleStart, position);
+                		styleRuns.start(s, new BulletSpan(Integer.valueOf(6)), styleStart, position);
                 	}
         		}
         		
         		// Recognise a \n to end a bullet span and start a new one
-        		if (position > 0 && inBulletSpan && content.getText().subSequence(position-1, position).toString().equals("\n")) {
+        		if (position > 0 && inBulletSpan && s.charAt(position-1) == '\n') {
         			inBulletSpan = false;
+        			styleRuns.close(s);
         		}
 
         		// Recognise "\n * " pattern and create bullet from it
-        		if (((position == 3) && (content.getText().subSequence(position-3, position-1).toString().equals("* "))) ||
-        		((position > 3) && (content.getText().subSequence(position-4, position-1).toString().equals("\n* ")))) {
+        		if ((position >= 3 && s.charAt(position-3) == '*' && s.charAt(position-2) == ' ') &&
+        				(position == 3 || s.charAt(position-4) == '\n')) {
     				s.replace(position-3, position-1, "");
     				position = Selection.getSelectionStart(content.getText());
     				styleStart = position-1;
-    				s.setSpan(new LeadingMarginSpan.Standard(Note.NOTE_BULLET_INTENT_FACTOR*listLevel), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            		s.setSpan(new BulletSpan(Integer.valueOf(6)), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    				styleRuns.close(s);
+    				styleRuns.start(s, new LeadingMarginSpan.Standard(Note.NOTE_BULLET_INTENT_FACTOR*listLevel), styleStart, position);
+    				styleRuns.start(s, new BulletSpan(Integer.valueOf(6)), styleStart, position);
     				inBulletSpan = true;
     			}
         		
         		cursorLoc = Selection.getSelectionStart(content.getText());
             } 
             public void beforeTextChanged(CharSequence s, int start, int count, int after) { 
-            	//unused
+            	styleRuns.beforeTextChanged(content.getText(), start, count, after);
             } 
             public void onTextChanged(CharSequence s, int start, int before, int count) {
-            	//unused
+            	styleRuns.onTextChanged(start, before, count);
             } 
         });
 
@@ -850,6 +783,9 @@ public class EditNote extends ActionBarActivity {
 	
 	private void changeTextSize() {
 		
+		// the typed text gets the new size from here on
+		styleRuns.close(content.getText());
+		
 		if (sizeSelectionStart > sizeSelectionEnd) {
 			int temp = sizeSelectionEnd;
 			sizeSelectionEnd = sizeSelectionStart;
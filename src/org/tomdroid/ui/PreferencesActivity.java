@@ -48,6 +48,7 @@ import android.widget.Toast;
 
 import org.tomdroid.NoteManager;
 import org.tomdroid.R;
+import org.tomdroid.sync.SyncBackgroundService;
 import org.tomdroid.sync.SyncManager;
 import org.tomdroid.sync.SyncService;
 import org.tomdroid.sync.web.OAuthConnection;
@@ -78,6 +79,7 @@ public class PreferencesActivity extends ActionBarPreferenceActivity {
 	// TODO: put the various preferences in fields and figure out what to do on activity suspend/resume
 	private EditTextPreference baseSize = null;
 	private ListPreference defaultSort = null;
+	private ListPreference syncInterval = null;
 	private EditTextPreference syncServer = null;
 	private ListPreference syncService = null;
 	private EditTextPreference sdLocation = null;
@@ -105,14 +107,14 @@ public class PreferencesActivity extends ActionBarPreferenceActivity {
 		super.onCreate(savedInstanceState);
 		
 		this.activity = this;
-		SyncManager.setActivity(this);
-		SyncManager.setHandler(this.preferencesMessageHandler);
+		SyncManager.init(this);
 		
 		addPreferencesFromResource(R.xml.preferences);
 		
 		// Fill the Preferences fields
 		baseSize = (EditTextPreference)findPreference(Preferences.Key.BASE_TEXT_SIZE.getName());
 		defaultSort = (ListPreference)findPreference(Preferences.Key.SORT_ORDER.getName());
+		syncInterval = (ListPreference)findPreference(Preferences.Key.SYNC_INTERVAL.getName());
 		syncServer = (EditTextPreference)findPreference(Preferences.Key.SYNC_SERVER.getName());
 		syncService = (ListPreference)findPreference(Preferences.Key.SYNC_SERVICE.getName());
 		sdLocation = (EditTextPreference)findPreference(Preferences.Key.SD_LOCATION.getName());
@@ -131,6 +133,8 @@ public class PreferencesActivity extends ActionBarPreferenceActivity {
 		// Fill the services combo list
 		fillSortOrders();
 		
+		fillSyncIntervals();
+		
 		// Enable or disable the server field depending on the selected sync service
 		setServer(syncService.getValue());
 		
@@ -260,6 +264,16 @@ public class PreferencesActivity extends ActionBarPreferenceActivity {
 				return true;
 			}
 		});
+		syncInterval.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+			
+			public boolean onPreferenceChange(Preference preference, Object newValue) {
+				String value = (String) newValue;
+				syncInterval.setSummary(syncInterval.getEntries()[syncInterval.findIndexOfValue(value)]);
+				SyncBackgroundService.getScheduler().setInterval(SyncBackgroundService.getInterval(value));
+				SyncBackgroundService.schedule(activity);
+				return true;
+			}
+		});
 		delNotes.setOnPreferenceClickListener(new OnPreferenceClickListener() {
 			
 	        public boolean onPreferenceClick(Preference preference) {
@@ -287,6 +301,18 @@ public class PreferencesActivity extends ActionBarPreferenceActivity {
 		});		
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		SyncManager.addHandler(this.preferencesMessageHandler);
+	}
+
+	@Override
+	protected void onPause() {
+		SyncManager.removeHandler(this.preferencesMessageHandler);
+		super.onPause();
+	}
+
 	private void reauthenticate() {
 
 		// don't do anything, we'll authenticate on sync instead
@@ -322,6 +348,23 @@ public class PreferencesActivity extends ActionBarPreferenceActivity {
 
 	}
 	
+	private void fillSyncIntervals()
+	{
+		final CharSequence[] entries = new CharSequence[] {getString(R.string.prefSyncIntervalOff),
+				String.format(getString(R.string.prefSyncIntervalMinutes), 15),
+				String.format(getString(R.string.prefSyncIntervalMinutes), 30),
+				getString(R.string.prefSyncIntervalHour),
+				String.format(getString(R.string.prefSyncIntervalHours), 6),
+				getString(R.string.prefSyncIntervalDay)};
+		final CharSequence[] entryValues = new CharSequence[] {"0", "15", "30", "60", "360", "1440"};
+		
+		syncInterval.setEntries(entries);
+		syncInterval.setEntryValues(entryValues);
+		
+		int index = syncInterval.findIndexOfValue(Preferences.getString(Preferences.Key.SYNC_INTERVAL));
+		syncInterval.setSummary(entries[index < 0 ? 0 : index]);
+	}
+	
 	private void setDefaults()
 	{
 		String defaultServer = (String)Preferences.Key.SYNC_SERVER.getDefault();
@@ -455,7 +498,8 @@ public class PreferencesActivity extends ActionBarPreferenceActivity {
 					Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
 					break;
 			}
-			syncProgressDialog.dismiss();
+			if(syncProgressDialog != null)
+				syncProgressDialog.dismiss();
 		}
 	}
 
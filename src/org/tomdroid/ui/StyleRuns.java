@@ -0,0 +1,113 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.ui;
+
+import java.util.ArrayList;
+
+import android.text.Spannable;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+
+/**
+ * The formatting applied while the user types. The spans of the current run are set inclusive at their
+ * end, so text typed right behind them is styled by the text itself without touching any span.
+ * The spans are only set when a run starts and made exclusive again when it is closed, which happens as
+ * soon as the text is changed anywhere else than at the end of the run.
+ *
+ * Call beforeTextChanged() and onTextChanged() from the editor's TextWatcher.
+ */
+public class StyleRuns {
+
+	private final ArrayList<Object> spans = new ArrayList<Object>();
+	private int end = -1;
+
+	/**
+	 * @return whether the run is still open and ends at the cursor, its spans then already cover
+	 * the text typed last. A run that doesn't end at the cursor is closed.
+	 */
+	public boolean continues(Spannable text, int position) {
+
+		if (spans.isEmpty())
+			return false;
+		if (position == end)
+			return true;
+		close(text);
+		return false;
+	}
+
+	/**
+	 * Starts styling a range with a span (or adds a span to the running styles). Spans of the same kind
+	 * in the range are removed, the new one grows with the text typed at the end of the range.
+	 */
+	public void start(Spannable text, Object span, int start, int end) {
+
+		if (start >= end)
+			return;
+		for (Object old : text.getSpans(start, end, span.getClass())) {
+			if (sameKind(old, span))
+				text.removeSpan(old);
+		}
+		text.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
+		spans.add(span);
+		this.end = end;
+	}
+
+	/**
+	 * Ends the run, its spans don't grow anymore
+	 */
+	public void close(Spannable text) {
+
+		for (Object span : spans) {
+			int start = text.getSpanStart(span);
+			int end = text.getSpanEnd(span);
+			if (start < 0)
+				continue;
+			if (start < end)
+				text.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			else
+				text.removeSpan(span);
+		}
+		spans.clear();
+		end = -1;
+	}
+
+	// anything but typing at the end of the run closes it before the text changes
+	public void beforeTextChanged(Spannable text, int start, int count, int after) {
+
+		if (!spans.isEmpty() && (count != 0 || start != end))
+			close(text);
+	}
+
+	public void onTextChanged(int start, int before, int count) {
+
+		if (!spans.isEmpty())
+			end = start + count;
+	}
+
+	private static boolean sameKind(Object old, Object span) {
+
+		if (span instanceof StyleSpan)
+			return ((StyleSpan) old).getStyle() == ((StyleSpan) span).getStyle();
+		if (span instanceof TypefaceSpan)
+			return ((TypefaceSpan) old).getFamily().equals(((TypefaceSpan) span).getFamily());
+		return old.getClass() == span.getClass();
+	}
+}
@@ -26,14 +26,14 @@
 package org.tomdroid.ui;
 
 import java.io.File;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.tomdroid.Note;
 import org.tomdroid.NoteManager;
 import org.tomdroid.R;
 import org.tomdroid.sync.ServiceAuth;
+import org.tomdroid.sync.SyncBackgroundService;
 import org.tomdroid.sync.SyncManager;
+import org.tomdroid.sync.SyncScheduler;
 import org.tomdroid.sync.SyncService;
 import org.tomdroid.util.ErrorList;
 import org.tomdroid.ui.actionbar.ActionBarListActivity;
@@ -43,13 +43,14 @@ import org.tomdroid.util.NewNote;
 import org.tomdroid.util.NoteViewShortcutsHelper;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.Receive;
+import org.tomdroid.util.ScrollFrameTimer;
 import org.tomdroid.util.SearchSuggestionProvider;
 import org.tomdroid.util.Send;
 import org.tomdroid.util.TLog;
 import org.tomdroid.util.Time;
-import org.tomdroid.xml.LinkInternalSpan;
-import org.tomdroid.xml.LinkifyPhone;
 import org.tomdroid.xml.NoteContentBuilder;
+import org.tomdroid.xml.NoteContentCache;
+import org.tomdroid.xml.NoteLinkBuilder;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -77,9 +78,6 @@ import android.os.Message;
 import android.provider.SearchRecentSuggestions;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
-import android.text.util.Linkify;
-import android.text.util.Linkify.MatchFilter;
-import android.text.util.Linkify.TransformFilter;
 import android.view.*;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.AdapterView.AdapterContextMenuInfo;
@@ -95,6 +93,12 @@ public class Tomdroid extends ActionBarListActivity {
 	// Global definition for Tomdroid
 	public static final String	AUTHORITY			= "org.tomdroid.notes";
 	public static final Uri		CONTENT_URI			= Uri.parse("content://" + AUTHORITY + "/notes");
+	public static final Uri		CONFLICTS_URI		= Uri.parse("content://" + AUTHORITY + "/conflicts");
+	public static final Uri		REVISIONS_URI		= Uri.parse("content://" + AUTHORITY + "/revisions");
+	public static final Uri		TOMBSTONES_URI		= Uri.parse("content://" + AUTHORITY + "/tombstones");
+	public static final Uri		OUTBOX_URI			= Uri.parse("content://" + AUTHORITY + "/outbox");
+	// deleted notes like NoteManager.LIST_PROJECTION, with the tombstone's id negated
+	public static final Uri		DELETED_NOTES_URI	= Uri.parse("content://" + AUTHORITY + "/deleted_notes");
 	public static final String	CONTENT_TYPE		= "vnd.android.cursor.dir/vnd.tomdroid.note";
 	public static final String	CONTENT_ITEM_TYPE	= "vnd.android.cursor.item/vnd.tomdroid.note";
 	public static final String	PROJECT_HOMEPAGE	= "http://www.launchpad.net/tomdroid/";
@@ -170,6 +174,8 @@ public class Tomdroid extends ActionBarListActivity {
 
 	private Note note;
 	private SpannableStringBuilder noteContent;
+	// whether parts of a large note are already shown while it is parsed
+	private boolean chunksShown = false;
 	private Uri uri;
 	private int lastIndex = -1;
 	public MenuItem syncMenuItem;
@@ -187,21 +193,18 @@ public class Tomdroid extends ActionBarListActivity {
 		super.onCreate(savedInstanceState);
 
 		Preferences.init(this, CLEAR_PREFERENCES);
+		NoteContentCache.init(this);
 		context = this;
-		SyncManager.setActivity(this);
-		SyncManager.setHandler(this.syncMessageHandler);
+		SyncManager.init(this);
+		SyncBackgroundService.schedule(this);
 		
         main =  View.inflate(this, R.layout.main, null);
 		
         setContentView(main);
+        ScrollFrameTimer.attach(getListView());
 		
 		// get the Path to the notes-folder from Preferences
-        if (Preferences.getString(Preferences.Key.SD_LOCATION).startsWith("/")) {
-        	NOTES_PATH = Preferences.getString(Preferences.Key.SD_LOCATION);
-        } else {
-        	NOTES_PATH = Environment.getExternalStorageDirectory()
-				+ "/" + Preferences.getString(Preferences.Key.SD_LOCATION) + "/";
-        }
+        NOTES_PATH = getNotesPath();
 		
 
 		// generate the http header we want to send on syncing
@@ -276,7 +279,7 @@ public class Tomdroid extends ActionBarListActivity {
 		
 		// Syncing if SyncOnStart (pref) set AND onCreate_SyncOnStart set false for syncing only on startup
 		if (Preferences.getBoolean(Preferences.Key.SYNC_ON_START) && first_onCreate_run) {
-			startSyncing(true);
+			startSyncing(true, SyncScheduler.START);
 			TLog.i(TAG, "SyncOnStart activated");	
 		}
 		
@@ -391,13 +394,18 @@ public class Tomdroid extends ActionBarListActivity {
 		long noteId = ((AdapterContextMenuInfo)menuInfo).id;
 		dialogPosition = ((AdapterContextMenuInfo)menuInfo).position;
 
-		Uri intentUri = Uri.parse(Tomdroid.CONTENT_URI+"/"+noteId);
-        dialogNote = NoteManager.getNote(this, intentUri);
-        
-        if(dialogNote.getTags().contains("system:deleted"))
-        	inflater.inflate(R.menu.main_longclick_deleted, menu);
-        else
-        	inflater.inflate(R.menu.main_longclick, menu);
+		// deleted notes are listed with negative ids, they only have a tombstone
+		if(noteId < 0) {
+			dialogNote = NoteManager.getDeletedNote(this, noteId);
+			if(dialogNote == null)
+				return;
+			inflater.inflate(R.menu.main_longclick_deleted, menu);
+		}
+		else {
+			Uri intentUri = Uri.parse(Tomdroid.CONTENT_URI+"/"+noteId);
+			dialogNote = NoteManager.getNote(this, intentUri);
+			inflater.inflate(R.menu.main_longclick, menu);
+		}
         
 	    menu.setHeaderTitle(getString(R.string.noteOptions));
 		super.onCreateContextMenu(menu, v, menuInfo);
@@ -446,18 +454,35 @@ public class Tomdroid extends ActionBarListActivity {
 		return super.onContextItemSelected(item);
 	}
 	
+	// the notes folder of the SD card sync, from the preferences
+	public static String getNotesPath() {
+        if (Preferences.getString(Preferences.Key.SD_LOCATION).startsWith("/")) {
+        	return Preferences.getString(Preferences.Key.SD_LOCATION);
+        } else {
+        	return Environment.getExternalStorageDirectory()
+				+ "/" + Preferences.getString(Preferences.Key.SD_LOCATION) + "/";
+        }
+	}
+	
     @Override
     protected void onDestroy() {
-    	SyncManager.getInstance().cancel();
+    	// the sync goes on in SyncBackgroundService
+    	NoteContentBuilder.cancel(noteContentHandler);
     	removeDialog(DIALOG_SYNC);
     	super.onDestroy();
     }
 
+    @Override
+    protected void onPause() {
+    	SyncManager.removeHandler(this.syncMessageHandler);
+    	super.onPause();
+    }
+
 	public void onResume() {
 		
-		// if the SyncService was stopped because Android killed it, we should not show the progress dialog any more
-		if (SyncManager.getInstance().getCurrentService().activity == null) {
-			TLog.i(TAG, "Android killed the SyncService while in background. We will remove the dialog now.");
+		// the sync ended while we weren't observing it, we should not show the progress dialog any more
+		if (!SyncManager.getInstance().isSyncing()) {
+			TLog.i(TAG, "The sync is over, removing its dialog.");
 			removeDialog(DIALOG_SYNC);
 		}
 		
@@ -490,8 +515,7 @@ public class Tomdroid extends ActionBarListActivity {
 			}
 		}
 
-		SyncManager.setActivity(this);
-		SyncManager.setHandler(this.syncMessageHandler);
+		SyncManager.addHandler(this.syncMessageHandler);
 		
 		// tablet refresh
 		if(rightPane != null) {
@@ -779,6 +803,10 @@ public class Tomdroid extends ActionBarListActivity {
 	@Override
 	protected void onListItemClick(ListView l, View v, int position, long id) {
 		super.onListItemClick(l, v, position, id);
+		if (id < 0) { // a deleted note, it can only be undeleted
+			v.showContextMenu();
+			return;
+		}
 		if (rightPane != null) {
 			if(position == lastIndex) // same index, edit
 				this.startEditNote();
@@ -799,6 +827,7 @@ public class Tomdroid extends ActionBarListActivity {
 	    super.onConfigurationChanged(newConfig);
         main =  View.inflate(this, R.layout.main, null);
         setContentView(main);
+        ScrollFrameTimer.attach(getListView());
 
         if (Build.VERSION.SDK_INT >= 11) {
             Honeycomb.invalidateOptionsMenuWrapper(this); 
@@ -895,6 +924,8 @@ public class Tomdroid extends ActionBarListActivity {
 		TLog.d(TAG, "Getting note {0}", position);
 
 		long noteId = item.getInt(item.getColumnIndexOrThrow(Note.ID));	
+		if (noteId < 0) // deleted notes aren't shown
+			return;
 		uri = Uri.parse(CONTENT_URI + "/" + noteId);
 
         note = NoteManager.getNote(this, uri);
@@ -902,7 +933,8 @@ public class Tomdroid extends ActionBarListActivity {
 
         if(note != null) {
         	TLog.d(TAG, "note {0} found", position);
-            noteContent = new NoteContentBuilder().setCaller(noteContentHandler).setInputSource(note.getXmlContent()).setTitle(note.getTitle()).build();
+            chunksShown = false;
+            noteContent = note.getNoteContent(noteContentHandler, true);
     		lastIndex = position;
         } else {
             TLog.d(TAG, "The note {0} doesn't exist", uri);
@@ -929,48 +961,15 @@ public class Tomdroid extends ActionBarListActivity {
 			return;
 		}
 
-		LinkInternalSpan[] links = noteContent.getSpans(0, noteContent.length(), LinkInternalSpan.class);
-		MatchFilter noteLinkMatchFilter = LinkInternalSpan.getNoteLinkMatchFilter(noteContent, links);
-
-		// show the note (spannable makes the TextView able to output styled text)
-		content.setText(noteContent, TextView.BufferType.SPANNABLE);
-
-		// add links to stuff that is understood by Android except phone numbers because it's too aggressive
-		// TODO this is SLOWWWW!!!!
-		
-		int linkFlags = 0;
-		
-		if(Preferences.getBoolean(Preferences.Key.LINK_EMAILS))
-			linkFlags |= Linkify.EMAIL_ADDRESSES;
-		if(Preferences.getBoolean(Preferences.Key.LINK_URLS))
-			linkFlags |= Linkify.WEB_URLS;
-		if(Preferences.getBoolean(Preferences.Key.LINK_ADDRESSES))
-			linkFlags |= Linkify.MAP_ADDRESSES;
-		
-		Linkify.addLinks(content, linkFlags);
+		// show the note (spannable makes the TextView able to output styled text),
+		// unless it was already shown in parts
+		if(!chunksShown)
+			content.setText(noteContent, TextView.BufferType.SPANNABLE);
+		chunksShown = false;
 
-		// Custom phone number linkifier (fixes lp:512204)
-		if(Preferences.getBoolean(Preferences.Key.LINK_PHONES))
-			Linkify.addLinks(content, LinkifyPhone.PHONE_PATTERN, "tel:", LinkifyPhone.sPhoneNumberMatchFilter, Linkify.sPhoneNumberTransformFilter);
-
-		// This will create a link every time a note title is found in the text.
-		// The pattern contains a very dumb (title1)|(title2) escaped correctly
-		// Then we transform the url from the note name to the note id to avoid characters that mess up with the URI (ex: ?)
-		if(Preferences.getBoolean(Preferences.Key.LINK_TITLES)) {
-			Pattern pattern = NoteManager.buildNoteLinkifyPattern(this, note.getTitle());
-	
-			if(pattern != null) {
-				Linkify.addLinks(
-					content,
-					pattern,
-					Tomdroid.CONTENT_URI+"/",
-					noteLinkMatchFilter,
-					noteTitleTransformFilter
-				);
-	
-				// content.setMovementMethod(LinkMovementMethod.getInstance());
-			}
-		}
+		// links are found in the background and show up when they are ready
+		new NoteLinkBuilder().setCaller(noteContentHandler).setContentResolver(getContentResolver())
+			.setNote(note).setContent(noteContent).build();
 		title.setText((CharSequence) note.getTitle());
 	}
 	
@@ -992,7 +991,28 @@ public class Tomdroid extends ActionBarListActivity {
 	
 			//parsed ok - show
 			if(msg.what == NoteContentBuilder.PARSE_OK) {
+				boolean first = !chunksShown;
 				showNote(false);
+				if(first)
+					((NoteContentBuilder) msg.obj).reportFirstPaint(content);
+	
+			//part of a large note parsed - show it already
+			} else if(msg.what == NoteContentBuilder.PARSE_CHUNK) {
+				NoteContentBuilder builder = (NoteContentBuilder) msg.obj;
+				SpannableStringBuilder chunk = builder.takeChunk();
+				if(chunk == null)
+					return;
+				if(!chunksShown) {
+					content.setText(chunk, TextView.BufferType.SPANNABLE);
+					title.setText((CharSequence) note.getTitle());
+					builder.reportFirstPaint(content);
+					chunksShown = true;
+				} else
+					content.append(chunk);
+	
+			//links found - show them
+			} else if(msg.what == NoteLinkBuilder.LINKS_OK) {
+				((NoteLinkBuilder) msg.obj).applyTo(content);
 	
 			//parsed not ok - error
 			} else if(msg.what == NoteContentBuilder.PARSE_ERROR) {
@@ -1001,22 +1021,14 @@ public class Tomdroid extends ActionBarListActivity {
 	    	}
 		}
 	};
-
-	// custom transform filter that takes the note's title part of the URI and translate it into the note id
-	// this was done to avoid problems with invalid characters in URI (ex: ? is the query separator but could be in a note title)
-	public TransformFilter noteTitleTransformFilter = new TransformFilter() {
-	
-		public String transformUrl(Matcher m, String str) {
 	
-			int id = NoteManager.getNoteId(Tomdroid.this, str);
-	
-			// return something like content://org.tomdroid.notes/notes/3
-			return Tomdroid.CONTENT_URI.toString()+"/"+id;
-		}
-	};
-	
-	@SuppressWarnings("deprecation")
 	private void startSyncing(boolean push) {
+		startSyncing(push, SyncScheduler.MANUAL);
+	}
+
+	// only a manual sync shows its dialog right away, the scheduler may not run the others
+	@SuppressWarnings("deprecation")
+	private void startSyncing(boolean push, int trigger) {
 
 		String serverUri = Preferences.getString(Preferences.Key.SYNC_SERVER);
 		SyncService currentService = SyncManager.getInstance().getCurrentService();
@@ -1056,9 +1068,11 @@ public class Tomdroid extends ActionBarListActivity {
 		else {
 			syncProcessedNotes = 0;
 			syncTotalNotes = 0;
-			dialogString = getString(R.string.syncing_connect);
-	        showDialog(DIALOG_SYNC);
-	        SyncManager.getInstance().startSynchronization(push); // push by default
+			if (trigger == SyncScheduler.MANUAL) {
+				dialogString = getString(R.string.syncing_connect);
+		        showDialog(DIALOG_SYNC);
+			}
+	        SyncBackgroundService.start(this, push, trigger); // push by default
 		}
 	}
 	
@@ -1156,6 +1170,8 @@ public class Tomdroid extends ActionBarListActivity {
 					if(errors == null || errors.isEmpty()) {
 						message = getString(R.string.messageSyncComplete);
 						message = String.format(message,serviceDescription);
+						if(currentService.getUnchangedNotes() > 0)
+							message += " " + String.format(getString(R.string.messageSyncUnchanged), currentService.getUnchangedNotes());
 						Toast.makeText(activity, message, Toast.LENGTH_SHORT).show();
 						finishSync();
 					} else {
@@ -1254,6 +1270,11 @@ public class Tomdroid extends ActionBarListActivity {
 				case SyncService.NOTES_BACKED_UP:
 					Toast.makeText(activity, activity.getString(R.string.messageNotesBackedUp), Toast.LENGTH_SHORT).show();
 					break;
+				case SyncService.CONFLICTS_QUEUED:
+					// CompareNotes steps through the queue, onActivityResult() tells the service when it's done
+					Intent intent = new Intent(activity, CompareNotes.class);
+					startActivityForResult(intent, SyncService.CONFLICTS_REQUEST);
+					break;
 				case SyncService.SYNC_CANCELLED:
 					dismiss = true;
 					message = getString(R.string.messageSyncCancelled);
@@ -1281,9 +1302,9 @@ public class Tomdroid extends ActionBarListActivity {
 			intent.setData(noteUri);
 			startActivity(intent);
 		}
-		else { // returning from sync conflict
-			SyncService currentService = SyncManager.getInstance().getCurrentService();
-			currentService.resolvedConflict(requestCode);			
+		else if(requestCode == SyncService.CONFLICTS_REQUEST) { // returning from sync conflicts
+			// synced on the sync thread, after whatever runs now
+			SyncBackgroundService.resolvedConflicts(this);
 		}
 	}
 	
@@ -37,9 +37,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.text.SpannableStringBuilder;
-import android.text.util.Linkify;
-import android.text.util.Linkify.MatchFilter;
-import android.text.util.Linkify.TransformFilter;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -54,12 +51,9 @@ import org.tomdroid.util.NoteViewShortcutsHelper;
 import org.tomdroid.util.Preferences;
 import org.tomdroid.util.Send;
 import org.tomdroid.util.TLog;
-import org.tomdroid.xml.LinkInternalSpan;
-import org.tomdroid.xml.LinkifyPhone;
 import org.tomdroid.xml.NoteContentBuilder;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import org.tomdroid.xml.NoteContentCache;
+import org.tomdroid.xml.NoteLinkBuilder;
 
 // TODO this class is starting to smell
 public class ViewNote extends ActionBarActivity {
@@ -74,6 +68,8 @@ public class ViewNote extends ActionBarActivity {
 	private Note note;
 
 	private SpannableStringBuilder noteContent;
+	// whether parts of a large note are already shown while it is parsed
+	private boolean chunksShown = false;
 
 	// Logging info
 	private static final String TAG = "ViewNote";
@@ -86,6 +82,7 @@ public class ViewNote extends ActionBarActivity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		Preferences.init(this, Tomdroid.CLEAR_PREFERENCES);
+		NoteContentCache.init(this);
 		setContentView(R.layout.note_view);
 		
 		content = (TextView) findViewById(R.id.content);
@@ -107,7 +104,8 @@ public class ViewNote extends ActionBarActivity {
 
         if(note != null) {
 			title.setText((CharSequence) note.getTitle());
-            noteContent = note.getNoteContent(noteContentHandler);
+            chunksShown = false;
+            noteContent = note.getNoteContent(noteContentHandler, true);
         } else {
             TLog.d(TAG, "The note {0} doesn't exist", uri);
             showNoteNotFoundDialog(uri);
@@ -161,6 +159,13 @@ public class ViewNote extends ActionBarActivity {
 		updateTextAttributes();
 	}
 	
+	@Override
+	protected void onPause() {
+		// the note is rendered again on resume, drop whatever is still in flight
+		NoteContentBuilder.cancel(noteContentHandler);
+		super.onPause();
+	}
+	
 	private void updateTextAttributes() {
 		float baseSize = Float.parseFloat(Preferences.getString(Preferences.Key.BASE_TEXT_SIZE));
 		content.setTextSize(baseSize);
@@ -275,47 +280,15 @@ public class ViewNote extends ActionBarActivity {
 			this.setTitle(this.getTitle() + " - XML");
 			return;
 		}
-		LinkInternalSpan[] links = noteContent.getSpans(0, noteContent.length(), LinkInternalSpan.class);
-		MatchFilter noteLinkMatchFilter = LinkInternalSpan.getNoteLinkMatchFilter(noteContent, links);
-
-		// show the note (spannable makes the TextView able to output styled text)
-		content.setText(noteContent, TextView.BufferType.SPANNABLE);
-
-		// add links to stuff that is understood by Android except phone numbers because it's too aggressive
-		// TODO this is SLOWWWW!!!!
-		int linkFlags = 0;
-		
-		if(Preferences.getBoolean(Preferences.Key.LINK_EMAILS))
-			linkFlags |= Linkify.EMAIL_ADDRESSES;
-		if(Preferences.getBoolean(Preferences.Key.LINK_URLS))
-			linkFlags |= Linkify.WEB_URLS;
-		if(Preferences.getBoolean(Preferences.Key.LINK_ADDRESSES))
-			linkFlags |= Linkify.MAP_ADDRESSES;
-		
-		Linkify.addLinks(content, linkFlags);
-
-		// Custom phone number linkifier (fixes lp:512204)
-		if(Preferences.getBoolean(Preferences.Key.LINK_PHONES))
-			Linkify.addLinks(content, LinkifyPhone.PHONE_PATTERN, "tel:", LinkifyPhone.sPhoneNumberMatchFilter, Linkify.sPhoneNumberTransformFilter);
-
-		// This will create a link every time a note title is found in the text.
-		// The pattern contains a very dumb (title1)|(title2) escaped correctly
-		// Then we transform the url from the note name to the note id to avoid characters that mess up with the URI (ex: ?)
-		if(Preferences.getBoolean(Preferences.Key.LINK_TITLES)) {
-			Pattern pattern = NoteManager.buildNoteLinkifyPattern(this, note.getTitle());
-	
-			if(pattern != null) {
-				Linkify.addLinks(
-					content,
-					pattern,
-					Tomdroid.CONTENT_URI+"/",
-					noteLinkMatchFilter,
-					noteTitleTransformFilter
-				);
-	
-				// content.setMovementMethod(LinkMovementMethod.getInstance());
-			}
-		}
+		// show the note (spannable makes the TextView able to output styled text),
+		// unless it was already shown in parts
+		if(!chunksShown)
+			content.setText(noteContent, TextView.BufferType.SPANNABLE);
+		chunksShown = false;
+
+		// links are found in the background and show up when they are ready
+		new NoteLinkBuilder().setCaller(noteContentHandler).setContentResolver(getContentResolver())
+			.setNote(note).setContent(noteContent).build();
 		title.setText((CharSequence) note.getTitle());
 	}
 
@@ -326,7 +299,28 @@ public class ViewNote extends ActionBarActivity {
 
 			//parsed ok - show
 			if(msg.what == NoteContentBuilder.PARSE_OK) {
+				boolean first = !chunksShown;
 				showNote(false);
+				if(first)
+					((NoteContentBuilder) msg.obj).reportFirstPaint(content);
+
+			//part of a large note parsed - show it already
+			} else if(msg.what == NoteContentBuilder.PARSE_CHUNK) {
+				NoteContentBuilder builder = (NoteContentBuilder) msg.obj;
+				SpannableStringBuilder chunk = builder.takeChunk();
+				if(chunk == null)
+					return;
+				if(!chunksShown) {
+					content.setText(chunk, TextView.BufferType.SPANNABLE);
+					title.setText((CharSequence) note.getTitle());
+					builder.reportFirstPaint(content);
+					chunksShown = true;
+				} else
+					content.append(chunk);
+
+			//links found - show them
+			} else if(msg.what == NoteLinkBuilder.LINKS_OK) {
+				((NoteLinkBuilder) msg.obj).applyTo(content);
 
 			//parsed not ok - error
 			} else if(msg.what == NoteContentBuilder.PARSE_ERROR) {
@@ -344,19 +338,6 @@ public class ViewNote extends ActionBarActivity {
 		}
 	};
 
-	// custom transform filter that takes the note's title part of the URI and translate it into the note id
-	// this was done to avoid problems with invalid characters in URI (ex: ? is the query separator but could be in a note title)
-	private TransformFilter noteTitleTransformFilter = new TransformFilter() {
-
-		public String transformUrl(Matcher m, String str) {
-
-			int id = NoteManager.getNoteId(ViewNote.this, str);
-
-			// return something like content://org.tomdroid.notes/notes/3
-			return Tomdroid.CONTENT_URI.toString()+"/"+id;
-		}
-	};
-
     protected void startEditNote() {
 		final Intent i = new Intent(Intent.ACTION_VIEW, uri, this, EditNote.class);
 		startActivity(i);
@@ -0,0 +1,297 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Message;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.StyleSpan;
+import difflib.Chunk;
+import difflib.Delta;
+import difflib.DiffUtils;
+import difflib.Patch;
+
+/**
+ * Compares the local and the remote version of a note line by line on a background thread and
+ * writes the differences as styled text. Inside changed lines the words that differ are highlighted.
+ * The caller gets a DIFF_OK message and shows getDiff().
+ *
+ * Huge inputs are kept cheap: the lines both versions start and end with are skipped before diffing,
+ * words are only compared in small changes and at most MAX_DELTAS differences are written.
+ */
+public class NoteDiffBuilder {
+
+	// 0 to 3 are taken by the note content and link builders' messages
+	public static final int DIFF_OK = 4;
+
+	private static final String TAG = "NoteDiffBuilder";
+
+	// lines left to diff after skipping the common start and end, more is shown as one change
+	static final int MAX_LINES = 2000;
+	// longest change in which words are compared, on each side
+	static final int MAX_WORDS_LENGTH = 2000;
+	static final int MAX_DELTAS = 200;
+
+	public static final int REMOVED_COLOR = 0xFFFFC0C0;
+	public static final int ADDED_COLOR = 0xFFC0FFC0;
+
+	private static final ExecutorService pool = Executors.newSingleThreadExecutor();
+
+	private Handler parentHandler;
+	private String localText = "";
+	private String remoteText = "";
+	private String lineFormat = "Line %1$s:";
+	private String localLabel = "Local";
+	private String remoteLabel = "Remote";
+	private volatile boolean cancelled = false;
+	private SpannableStringBuilder diff;
+
+	public NoteDiffBuilder setCaller(Handler parent) {
+
+		parentHandler = parent;
+		return this;
+	}
+
+	public NoteDiffBuilder setTexts(String local, String remote) {
+
+		localText = local;
+		remoteText = remote;
+		return this;
+	}
+
+	/**
+	 * @param lineFormat format of the line headers, with the line number as its argument
+	 */
+	public NoteDiffBuilder setLabels(String lineFormat, String localLabel, String remoteLabel) {
+
+		this.lineFormat = lineFormat;
+		this.localLabel = localLabel;
+		this.remoteLabel = remoteLabel;
+		return this;
+	}
+
+	public void build() {
+
+		pool.submit(new Runnable() {
+
+			public void run() {
+
+				long start = System.currentTimeMillis();
+				try {
+					diff = diff();
+				} catch (Exception e) {
+					e.printStackTrace();
+					TLog.e(TAG, "There was an error comparing the notes");
+					return;
+				}
+				if (cancelled)
+					return;
+				TLog.d(TAG, "compared {0} and {1} chars in {2} ms", localText.length(), remoteText.length(), System.currentTimeMillis() - start);
+
+				Message msg = Message.obtain();
+				msg.what = DIFF_OK;
+				msg.obj = NoteDiffBuilder.this;
+				parentHandler.sendMessage(msg);
+			}
+		});
+	}
+
+	/**
+	 * Don't send the result, the caller went away
+	 */
+	public void cancel() {
+
+		cancelled = true;
+	}
+
+	public Spanned getDiff() {
+
+		return diff;
+	}
+
+	/**
+	 * Compares the texts on the calling thread
+	 */
+	public SpannableStringBuilder diff() {
+
+		List<String> local = splitLines(localText);
+		List<String> remote = splitLines(remoteText);
+
+		// lines both versions share at the start and the end don't need the diff
+		int prefix = 0;
+		int max = Math.min(local.size(), remote.size());
+		while (prefix < max && local.get(prefix).equals(remote.get(prefix)))
+			prefix++;
+		int suffix = 0;
+		while (suffix < max - prefix && local.get(local.size() - 1 - suffix).equals(remote.get(remote.size() - 1 - suffix)))
+			suffix++;
+		local = local.subList(prefix, local.size() - suffix);
+		remote = remote.subList(prefix, remote.size() - suffix);
+
+		SpannableStringBuilder out = new SpannableStringBuilder();
+		if (local.isEmpty() && remote.isEmpty())
+			return out;
+
+		if (local.size() > MAX_LINES || remote.size() > MAX_LINES) {
+			// too many to diff in reasonable time, all of it is one change
+			appendDelta(out, prefix, local, remote);
+			return out;
+		}
+
+		Patch patch = DiffUtils.diff(local, remote);
+		int count = 0;
+		for (Delta delta : patch.getDeltas()) {
+			if (cancelled)
+				break;
+			if (count++ == MAX_DELTAS) {
+				out.append("...\n");
+				break;
+			}
+			Chunk original = delta.getOriginal();
+			appendDelta(out, prefix + original.getPosition(), original.getLines(), delta.getRevised().getLines());
+		}
+		return out;
+	}
+
+	private void appendDelta(SpannableStringBuilder out, int position, List<?> local, List<?> remote) {
+
+		appendStyled(out, String.format(lineFormat, String.valueOf(position + 1)), Typeface.BOLD);
+		out.append('\n');
+
+		String localLines = joinLines(local);
+		String remoteLines = joinLines(remote);
+		int localStart = 0, remoteStart = 0;
+		if (!local.isEmpty()) {
+			appendStyled(out, localLabel + ":", Typeface.ITALIC);
+			out.append('\n');
+			localStart = out.length();
+			out.append(localLines).append("\n\n");
+		}
+		if (!remote.isEmpty()) {
+			appendStyled(out, remoteLabel + ":", Typeface.ITALIC);
+			out.append('\n');
+			remoteStart = out.length();
+			out.append(remoteLines).append("\n\n");
+		}
+
+		if (!local.isEmpty() && !remote.isEmpty()
+				&& localLines.length() <= MAX_WORDS_LENGTH && remoteLines.length() <= MAX_WORDS_LENGTH)
+			highlightWords(out, localLines, localStart, remoteLines, remoteStart);
+	}
+
+	// marks the words removed from the local lines and those added in the remote ones
+	private static void highlightWords(SpannableStringBuilder out, String local, int localStart, String remote, int remoteStart) {
+
+		List<String> localWords = new ArrayList<String>();
+		List<String> remoteWords = new ArrayList<String>();
+		int[] localOffsets = splitWords(local, localWords);
+		int[] remoteOffsets = splitWords(remote, remoteWords);
+
+		Patch patch = DiffUtils.diff(localWords, remoteWords);
+		for (Delta delta : patch.getDeltas()) {
+			Chunk original = delta.getOriginal();
+			Chunk revised = delta.getRevised();
+			highlight(out, localStart, localOffsets, original, REMOVED_COLOR);
+			highlight(out, remoteStart, remoteOffsets, revised, ADDED_COLOR);
+		}
+	}
+
+	private static void highlight(SpannableStringBuilder out, int textStart, int[] offsets, Chunk chunk, int color) {
+
+		if (chunk.size() == 0)
+			return;
+		int start = textStart + offsets[chunk.getPosition()];
+		int end = textStart + offsets[chunk.getPosition() + chunk.size()];
+		out.setSpan(new BackgroundColorSpan(color), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+	}
+
+	private static void appendStyled(SpannableStringBuilder out, String text, int style) {
+
+		int start = out.length();
+		out.append(text);
+		out.setSpan(new StyleSpan(style), start, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+	}
+
+	// lines end with \n, \r\n or \r
+	static List<String> splitLines(String text) {
+
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == '\n' || c == '\r') {
+				lines.add(text.substring(start, i));
+				if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n')
+					i++;
+				start = i + 1;
+			}
+		}
+		lines.add(text.substring(start));
+		return lines;
+	}
+
+	private static String joinLines(List<?> lines) {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines.size(); i++) {
+			if (i > 0)
+				sb.append('\n');
+			sb.append(lines.get(i));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Splits text into words, runs of white space and single other characters
+	 * @return where each of them starts, followed by the text's length
+	 */
+	static int[] splitWords(String text, List<String> words) {
+
+		int length = text.length();
+		int[] offsets = new int[length + 1];
+		int count = 0;
+		int i = 0;
+		while (i < length) {
+			int start = i;
+			char c = text.charAt(i++);
+			if (Character.isLetterOrDigit(c)) {
+				while (i < length && Character.isLetterOrDigit(text.charAt(i)))
+					i++;
+			} else if (Character.isWhitespace(c)) {
+				while (i < length && Character.isWhitespace(text.charAt(i)))
+					i++;
+			}
+			offsets[count++] = start;
+			words.add(text.substring(start, i));
+		}
+		offsets[count] = length;
+		return offsets;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeSet;
+
+import org.tomdroid.NoteManager;
+
+/**
+ * A hash of what a note says, whatever its dates: the title, the content and the tags. The content
+ * is taken without the title doubled at its start, with Unix line breaks and without trailing
+ * whitespace, the tags in any order. Notes with the same hash need no sync.
+ */
+public class NoteHash {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * @return the SHA-1 of the canonical note, in hexadecimal
+	 */
+	public static String of(String title, String xmlContent, String tags) {
+
+		if (title == null)
+			title = "";
+		if (xmlContent == null)
+			xmlContent = "";
+		String content = xmlContent.substring(NoteManager.getContentStart(xmlContent, title))
+				.replace("\r\n", "\n").replace('\r', '\n');
+		int end = content.length();
+		while (end > 0 && Character.isWhitespace(content.charAt(end - 1)))
+			end--;
+
+		StringBuilder canonical = new StringBuilder(title.length() + end + 64);
+		canonical.append(title.trim()).append('\0');
+		canonical.append(content, 0, end).append('\0');
+		canonical.append(canonicalTags(tags));
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(canonical.toString().getBytes("UTF-8"));
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+				hex[2 * i + 1] = HEX[digest[i] & 0xf];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-1
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// sorted, without duplicates and empty ones
+	private static String canonicalTags(String tags) {
+
+		if (tags == null)
+			return "";
+		TreeSet<String> sorted = new TreeSet<String>();
+		for (String tag : tags.split(",")) {
+			tag = tag.trim();
+			if (tag.length() > 0)
+				sorted.add(tag);
+		}
+		StringBuilder canonical = new StringBuilder();
+		for (String tag : sorted)
+			canonical.append(tag).append(',');
+		return canonical.toString();
+	}
+}
@@ -23,6 +23,8 @@
 package org.tomdroid.util;
 
 import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
 
 import org.tomdroid.Note;
@@ -31,7 +33,6 @@ import org.tomdroid.R;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Paint;
-import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -54,6 +55,28 @@ public class NoteListCursorAdapter extends SimpleCursorAdapter {
     
     private int selectedIndex;
 
+    // column indices, looked up once per cursor
+    private Cursor indexedCursor;
+    private int titleCol;
+    private int modifiedCol;
+    private int tagsCol;
+
+    // labels are made once per row and kept until the day changes
+    private String textModified;
+    private String textToday;
+    private String textYesterday;
+    private long yesterdayStart;
+    private long todayStart;
+    private long tomorrowStart;
+    private String[] labelDates = new String[0];
+    private String[] labels = new String[0];
+
+    // the views of a row, so they are not looked up on every bind
+    private static class ViewHolder {
+    	TextView title;
+    	TextView modified;
+    	View triangle;
+    }
 
     public NoteListCursorAdapter (Context context, int layout, Cursor c, String[] from, int[] to, int selectedIndex) {
         super(context, layout, c, from, to);
@@ -63,19 +86,25 @@ public class NoteListCursorAdapter extends SimpleCursorAdapter {
         
         localeDateFormat = android.text.format.DateFormat.getDateFormat(context);
         localeTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
+        textModified = context.getString(R.string.textModified)+" ";
+        textToday = context.getString(R.string.textToday);
+        textYesterday = context.getString(R.string.textYexterday);
     }
     
 
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
 
-        Cursor c = getCursor();
-
         final LayoutInflater inflater = LayoutInflater.from(context);
         View v = inflater.inflate(layout, parent, false);
 
-        populateFields(v, c);
+        ViewHolder holder = new ViewHolder();
+        holder.title = (TextView) v.findViewById(R.id.note_title);
+        holder.modified = (TextView) v.findViewById(R.id.note_date);
+        holder.triangle = v.findViewById(R.id.triangle);
+        v.setTag(holder);
 
+        // bindView() fills it in
         return v;
     }
 
@@ -88,79 +117,105 @@ public class NoteListCursorAdapter extends SimpleCursorAdapter {
     @Override
 	public View getView(int position, View convertView, ViewGroup parent) {
     	View v = super.getView(position, convertView, parent);
+    	ViewHolder holder = (ViewHolder) v.getTag();
+    	int color = this.selectedIndex == position ? 0xFFFFFFFF : 0xFF000000;
+    	if (holder.title != null) {
+    		holder.title.setTextColor(color);
+    	}
+    	if (holder.modified != null) {
+    		holder.modified.setTextColor(color);
+    	}
     	if(this.selectedIndex == position) {
-            TextView note_title = (TextView) v.findViewById(R.id.note_title);
-            if (note_title != null) {
-            	note_title.setTextColor(0xFFFFFFFF);
-            }
-            TextView note_modified = (TextView) v.findViewById(R.id.note_date);
-            if (note_modified != null) {
-            	note_modified.setTextColor(0xFFFFFFFF);
-            }
     		v.setBackgroundResource(R.drawable.drop_shadow_selected);
-    		v.findViewById(R.id.triangle).setBackgroundResource(R.drawable.white_triangle);
+    		holder.triangle.setBackgroundResource(R.drawable.white_triangle);
     	}
     	else {
-            TextView note_title = (TextView) v.findViewById(R.id.note_title);
-            if (note_title != null) {
-            	note_title.setTextColor(0xFF000000);
-            }
-            TextView note_modified = (TextView) v.findViewById(R.id.note_date);
-            if (note_modified != null) {
-            	note_modified.setTextColor(0xFF000000);
-            }
     		v.setBackgroundResource(0);
-    		v.findViewById(R.id.triangle).setBackgroundResource(0);
+    		holder.triangle.setBackgroundResource(0);
     	}
     	return v;
 	}
     
     private void populateFields(View v, Cursor c){
 
-        int nameCol = c.getColumnIndex(Note.TITLE);
-        int modifiedCol = c.getColumnIndex(Note.MODIFIED_DATE);
-        int tagCol = c.getColumnIndex(Note.TAGS);
-        
-        String title = c.getString(nameCol);
-        String tags = c.getString(tagCol);
-        
-        //Format last modified dates to be similar to desktop Tomboy
-        //TODO this is messy - must be a better way than having 3 separate date types
-        Time lastModified = new Time();
-        lastModified.parseTomboy(c.getString(modifiedCol));
-        Long lastModifiedMillis = lastModified.toMillis(false);
-        Date lastModifiedDate = new Date(lastModifiedMillis);
-        
-        String strModified = this.context.getString(R.string.textModified)+" ";
-        //TODO this is very inefficient
-        if (DateUtils.isToday(lastModifiedMillis)){
-        	strModified += this.context.getString(R.string.textToday) +", " + localeTimeFormat.format(lastModifiedDate);
-        } else {
-        	// Add a day to the last modified date - if the date is now today, it means the note was edited yesterday
-        	Time yesterdayTest = lastModified;
-        	yesterdayTest.monthDay += 1;
-        	if (DateUtils.isToday(yesterdayTest.toMillis(false))){
-        		strModified += this.context.getString(R.string.textYexterday) +", " + localeTimeFormat.format(lastModifiedDate);
-        	} else {
-        		strModified += localeDateFormat.format(lastModifiedDate) + ", " + localeTimeFormat.format(lastModifiedDate);
-        	}
+        if (c != indexedCursor) {
+        	titleCol = c.getColumnIndex(Note.TITLE);
+        	modifiedCol = c.getColumnIndex(Note.MODIFIED_DATE);
+        	tagsCol = c.getColumnIndex(Note.TAGS);
+        	indexedCursor = c;
         }
+        
+        String title = c.getString(titleCol);
+        String tags = c.getString(tagsCol);
+        String strModified = getModifiedLabel(c.getPosition(), c.getString(modifiedCol));
+
+        ViewHolder holder = (ViewHolder) v.getTag();
 
         /**
          * Next set the name of the entry.
          */
-        TextView note_title = (TextView) v.findViewById(R.id.note_title);
-        if (note_title != null) {
-        	note_title.setText(title);
+        if (holder.title != null) {
+        	holder.title.setText(title);
             if(tags.contains("system:deleted"))
-            	note_title.setPaintFlags(note_title.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+            	holder.title.setPaintFlags(holder.title.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
             else
-            	note_title.setPaintFlags(note_title.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
+            	holder.title.setPaintFlags(holder.title.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
         }
-        TextView note_modified = (TextView) v.findViewById(R.id.note_date);
-        if (note_modified != null) {
-        	note_modified.setText(strModified);
+        if (holder.modified != null) {
+        	holder.modified.setText(strModified);
         }
     }
 
+    // Formats last modified dates to be similar to desktop Tomboy. The label of a row is reused while
+    // the row still has the same date and we are on the same day.
+    private String getModifiedLabel(int position, String modified) {
+
+    	long now = System.currentTimeMillis();
+    	if (now >= tomorrowStart || now < todayStart) {
+    		findDayBoundaries(now);
+    		Arrays.fill(labels, null);
+    	}
+    	if (position >= labels.length) {
+    		int size = Math.max(position + 1, getCount());
+    		String[] newLabelDates = new String[size];
+    		String[] newLabels = new String[size];
+    		System.arraycopy(labelDates, 0, newLabelDates, 0, labelDates.length);
+    		System.arraycopy(labels, 0, newLabels, 0, labels.length);
+    		labelDates = newLabelDates;
+    		labels = newLabels;
+    	}
+    	if (labels[position] != null && labelDates[position].equals(modified))
+    		return labels[position];
+
+        long lastModifiedMillis = TomboyDate.parse(modified);
+        Date lastModifiedDate = new Date(lastModifiedMillis);
+        String label;
+        if (lastModifiedMillis >= todayStart && lastModifiedMillis < tomorrowStart) {
+        	label = textModified + textToday + ", " + localeTimeFormat.format(lastModifiedDate);
+        } else if (lastModifiedMillis >= yesterdayStart && lastModifiedMillis < todayStart) {
+        	label = textModified + textYesterday + ", " + localeTimeFormat.format(lastModifiedDate);
+        } else {
+        	label = textModified + localeDateFormat.format(lastModifiedDate) + ", " + localeTimeFormat.format(lastModifiedDate);
+        }
+        labelDates[position] = modified;
+        labels[position] = label;
+        return label;
+    }
+
+    // local midnights of yesterday, today and tomorrow
+    private void findDayBoundaries(long now) {
+
+    	Calendar calendar = Calendar.getInstance();
+    	calendar.setTimeInMillis(now);
+    	calendar.set(Calendar.HOUR_OF_DAY, 0);
+    	calendar.set(Calendar.MINUTE, 0);
+    	calendar.set(Calendar.SECOND, 0);
+    	calendar.set(Calendar.MILLISECOND, 0);
+    	todayStart = calendar.getTimeInMillis();
+    	calendar.add(Calendar.DAY_OF_MONTH, -1);
+    	yesterdayStart = calendar.getTimeInMillis();
+    	calendar.add(Calendar.DAY_OF_MONTH, 2);
+    	tomorrowStart = calendar.getTimeInMillis();
+    }
+
 }
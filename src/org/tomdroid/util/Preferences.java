@@ -37,6 +37,14 @@ public class Preferences {
 		SD_LOCATION ("sd_location", "tomdroid"),
 		LAST_FILE_PATH ("last_file_path", "/"),
 		SYNC_ON_START("sync_on_start",false),
+		SYNC_ON_SAVE("sync_on_save",false),
+		SYNC_INTERVAL("sync_interval", "0"), // minutes, 0 for no periodic sync
+		// the state of the SyncScheduler, -1 if not saved yet
+		SYNC_SCHEDULER_CREATED("sync_scheduler_created", -1L),
+		SYNC_SCHEDULER_LAST_SYNC("sync_scheduler_last_sync", -1L),
+		SYNC_SCHEDULER_FAILURES("sync_scheduler_failures", -1L),
+		SYNC_SCHEDULER_LAST_FAILURE("sync_scheduler_last_failure", -1L),
+		SYNC_SCHEDULER_PENDING("sync_scheduler_pending", -1L),
 		INCLUDE_NOTE_TEMPLATES("include_note_templates", false),
 		INCLUDE_DELETED_NOTES("include_deleted_notes", false),
 		LINK_TITLES("link_titles", true),
@@ -36,7 +36,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.tomdroid.Note;
 import org.tomdroid.NoteManager;
@@ -47,7 +46,9 @@ import org.tomdroid.ui.EditNote;
 import org.tomdroid.ui.Tomdroid;
 import org.tomdroid.ui.actionbar.ActionBarActivity;
 import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.NoteContentReader;
 import org.tomdroid.xml.NoteXMLContentBuilder;
+import org.tomdroid.xml.SAXParsers;
 import org.tomdroid.xml.XmlUtils;
 import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
@@ -144,9 +145,8 @@ public class Receive extends ActionBarActivity {
 			try {
 				// Parsing
 		    	// XML 
-		    	// Get a SAXParser from the SAXPArserFactory
-		        SAXParserFactory spf = SAXParserFactory.newInstance();
-		        SAXParser sp = spf.newSAXParser();
+		    	// Get this thread's SAXParser
+		    	SAXParser sp = SAXParsers.getFileParser();
 		
 		        // Get the XMLReader of the SAXParser we created
 		        XMLReader xr = sp.getXMLReader();
@@ -193,7 +193,7 @@ public class Receive extends ActionBarActivity {
 		Note localNote = NoteManager.getNoteByGuid(this, remoteNote.getGuid()); 
 		
 		if(localNote != null) {
-			int compareBoth = Time.compare(localNote.getLastChangeDate(), remoteNote.getLastChangeDate());
+			int compareBoth = TomboyDate.compare(localNote.getLastChangeMillis(), remoteNote.getLastChangeMillis());
 			
 			TLog.v(TAG, "note conflict... showing resolution dialog TITLE:{0} GUID:{1}", localNote.getTitle(), localNote.getGuid());
 			
@@ -203,7 +203,7 @@ public class Receive extends ActionBarActivity {
 			bundle.putString("title",remoteNote.getTitle());
 			bundle.putString("file",remoteNote.getFileName());
 			bundle.putString("guid",remoteNote.getGuid());
-			bundle.putString("date",remoteNote.getLastChangeDate().formatTomboy());
+			bundle.putString("date",TomboyDate.formatUtc(remoteNote.getLastChangeMillis()));
 			bundle.putString("content", remoteNote.getXmlContent());
 			bundle.putString("tags", remoteNote.getTags());
 			bundle.putInt("datediff", compareBoth);
@@ -237,18 +237,12 @@ public class Receive extends ActionBarActivity {
 			// parse XML
 			SpannableStringBuilder newNoteContent = new SpannableStringBuilder();
 			
-			String xmlContent = "<note-content version=\"1.0\">"+sharedContent+"</note-content>";
-	        InputSource noteContentIs = new InputSource(new StringReader(xmlContent));
+	        InputSource noteContentIs = new InputSource(new NoteContentReader(sharedContent));
 			try {
 				// Parsing
 		    	// XML 
-		    	// Get a SAXParser from the SAXPArserFactory
-		        SAXParserFactory spf = SAXParserFactory.newInstance();
-
-		        // trashing the namespaces but keep prefixes (since we don't have the xml header)
-		        spf.setFeature("http://xml.org/sax/features/namespaces", false);
-		        spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-		        SAXParser sp = spf.newSAXParser();
+		    	// Get this thread's SAXParser, namespaces are trashed but prefixes kept (since we don't have the xml header)
+		    	SAXParser sp = SAXParsers.getContentParser();
 
 		        sp.parse(noteContentIs, new NoteContentHandler(newNoteContent));
 			} catch (Exception e) {
@@ -0,0 +1,103 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import difflib.Chunk;
+import difflib.Delta;
+import difflib.DiffUtils;
+
+/**
+ * Encodes a revision of a note as the line changes from the revision before it, so only what changed
+ * is stored. Each change is a header line "position removed added" (in lines of the older text)
+ * followed by the added lines. Lines never contain line breaks, so the encoding needs no escaping.
+ */
+public class RevisionDelta {
+
+	/**
+	 * @return the delta turning from into to
+	 */
+	public static String encode(String from, String to) {
+
+		StringBuilder delta = new StringBuilder();
+		for (Delta change : DiffUtils.diff(splitLines(from), splitLines(to)).getDeltas()) {
+			Chunk original = change.getOriginal();
+			List<?> added = change.getRevised().getLines();
+			delta.append(original.getPosition()).append(' ').append(original.size()).append(' ').append(added.size()).append('\n');
+			for (Object line : added)
+				delta.append((String) line).append('\n');
+		}
+		return delta.toString();
+	}
+
+	/**
+	 * @return the text the delta was made for, from the text it was made from
+	 * @throws IllegalArgumentException if the delta doesn't fit the text
+	 */
+	public static String apply(String from, String delta) {
+
+		List<String> lines = splitLines(from);
+		List<String> changes = splitLines(delta);
+		StringBuilder to = new StringBuilder(from.length() + delta.length());
+		int position = 0;
+		int i = 0;
+		// the delta ends with a line break, the empty line after it isn't a change
+		while (i < changes.size() - 1) {
+			String[] header = changes.get(i++).split(" ");
+			if (header.length != 3)
+				throw new IllegalArgumentException("not a revision delta: " + changes.get(i - 1));
+			int start = Integer.parseInt(header[0]);
+			int removed = Integer.parseInt(header[1]);
+			int added = Integer.parseInt(header[2]);
+			if (start < position || start + removed > lines.size() || i + added > changes.size() - 1)
+				throw new IllegalArgumentException("revision delta doesn't fit the text");
+
+			for (; position < start; position++)
+				to.append(lines.get(position)).append('\n');
+			for (int j = 0; j < added; j++)
+				to.append(changes.get(i++)).append('\n');
+			position += removed;
+		}
+		for (; position < lines.size(); position++)
+			to.append(lines.get(position)).append('\n');
+
+		// every line was followed by a line break, the last one isn't
+		if (to.length() > 0)
+			to.setLength(to.length() - 1);
+		return to.toString();
+	}
+
+	// the lines between line breaks, an empty line after a final one
+	private static List<String> splitLines(String text) {
+
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while ((end = text.indexOf('\n', start)) >= 0) {
+			lines.add(text.substring(start, end));
+			start = end + 1;
+		}
+		lines.add(text.substring(start));
+		return lines;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.util;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
+
+/**
+ * Measures the time between the frames drawn while a list is scrolled and logs the average and the
+ * worst of them once the list comes to rest. Frames are timed at each pre-draw of the list's view tree.
+ * Only debuggable builds are measured, a release build doesn't pay for it.
+ */
+public class ScrollFrameTimer implements AbsListView.OnScrollListener, ViewTreeObserver.OnPreDrawListener {
+
+	private static final String TAG = "ScrollFrameTimer";
+
+	// frames slower than this are dropped frames at 60 fps
+	private static final long SLOW_FRAME = 17;
+
+	private static long lastAverageFrameTime = -1;
+	private static long lastWorstFrameTime = -1;
+
+	private boolean scrolling = false;
+	private long lastFrame;
+	private long totalTime;
+	private long worstTime;
+	private int frames;
+	private int slowFrames;
+
+	/**
+	 * Starts measuring the scrolling of a list if the app is debuggable, this replaces its scroll listener
+	 */
+	public static void attach(AbsListView list) {
+
+		ApplicationInfo info = list.getContext().getApplicationInfo();
+		if ((info.flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0)
+			return;
+
+		ScrollFrameTimer timer = new ScrollFrameTimer();
+		list.setOnScrollListener(timer);
+		list.getViewTreeObserver().addOnPreDrawListener(timer);
+	}
+
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+
+		if (scrollState != SCROLL_STATE_IDLE) {
+			if (!scrolling) {
+				scrolling = true;
+				lastFrame = SystemClock.elapsedRealtime();
+				totalTime = worstTime = 0;
+				frames = slowFrames = 0;
+			}
+			return;
+		}
+		if (!scrolling)
+			return;
+		scrolling = false;
+		if (frames == 0)
+			return;
+
+		lastAverageFrameTime = totalTime / frames;
+		lastWorstFrameTime = worstTime;
+		TLog.d(TAG, "scrolled {0} items in {1} frames: average {2} ms, worst {3} ms, {4} slower than {5} ms",
+				view.getCount(), frames, lastAverageFrameTime, lastWorstFrameTime, slowFrames, SLOW_FRAME);
+	}
+
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+	}
+
+	public boolean onPreDraw() {
+
+		if (scrolling) {
+			long now = SystemClock.elapsedRealtime();
+			long frameTime = now - lastFrame;
+			lastFrame = now;
+			totalTime += frameTime;
+			worstTime = Math.max(worstTime, frameTime);
+			frames++;
+			if (frameTime > SLOW_FRAME)
+				slowFrames++;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the average time between frames of the last scrolling that was measured in ms, -1 if none was yet
+	 */
+	public static long getLastAverageFrameTime() {
+
+		return lastAverageFrameTime;
+	}
+
+	/**
+	 * @return the longest frame of the last scrolling that was measured in ms, -1 if none was yet
+	 */
+	public static long getLastWorstFrameTime() {
+
+		return lastWorstFrameTime;
+	}
+}
@@ -45,6 +45,10 @@ public class Send {
 		@Override
 		public void handleMessage(Message msg) {
 			
+			// nothing else comes for this send once it is parsed
+			if(msg.what == NoteContentBuilder.PARSE_OK || msg.what == NoteContentBuilder.PARSE_ERROR)
+				NoteContentBuilder.cancel(this);
+			
 			//parsed ok - show
 			if(msg.what == NoteContentBuilder.PARSE_OK) {
 				if(sendAsFile)
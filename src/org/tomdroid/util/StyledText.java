@@ -0,0 +1,163 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.util;
+
+/**
+ * The text of a note with its formatting, kept in a char buffer and a few int arrays.
+ * Every formatting run is a (start, end, tag type, list level) entry, in the order the runs were added.
+ *
+ * This is what the note content parser fills and what the XML serializer reads, the spans shown by
+ * the views are only made from it at the end. It doesn't depend on Android.
+ */
+public class StyledText implements CharSequence {
+
+	private static final int INITIAL_LENGTH = 256;
+	private static final int INITIAL_RUNS = 16;
+
+	private char[] text = new char[INITIAL_LENGTH];
+	private int length = 0;
+
+	private int[] starts = new int[INITIAL_RUNS];
+	private int[] ends = new int[INITIAL_RUNS];
+	private int[] types = new int[INITIAL_RUNS];
+	private int[] levels = new int[INITIAL_RUNS];
+	private int runCount = 0;
+
+	private static final TagType[] TAG_TYPES = TagType.values();
+
+	public StyledText append(char[] chars, int offset, int count) {
+
+		ensureLength(length + count);
+		System.arraycopy(chars, offset, text, length, count);
+		length += count;
+		return this;
+	}
+
+	public StyledText append(CharSequence chars) {
+
+		int count = chars.length();
+		ensureLength(length + count);
+		if (chars instanceof String) {
+			((String) chars).getChars(0, count, text, length);
+		} else {
+			for (int i = 0; i < count; i++)
+				text[length + i] = chars.charAt(i);
+		}
+		length += count;
+		return this;
+	}
+
+	/**
+	 * Adds a formatting run. Runs are kept in the order they are added, which decides between runs of
+	 * the same range like the order spans were set in.
+	 * @param level the list level for MARGIN runs, 0 otherwise
+	 */
+	public void addRun(TagType type, int start, int end, int level) {
+
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException("run " + start + "-" + end + " in text of length " + length);
+		if (runCount == starts.length) {
+			int size = runCount * 2;
+			starts = grow(starts, size);
+			ends = grow(ends, size);
+			types = grow(types, size);
+			levels = grow(levels, size);
+		}
+		starts[runCount] = start;
+		ends[runCount] = end;
+		types[runCount] = type.ordinal();
+		levels[runCount] = level;
+		runCount++;
+	}
+
+	public int getRunCount() {
+		return runCount;
+	}
+
+	public int getRunStart(int run) {
+		return starts[run];
+	}
+
+	public int getRunEnd(int run) {
+		return ends[run];
+	}
+
+	public TagType getRunType(int run) {
+		return TAG_TYPES[types[run]];
+	}
+
+	public int getRunLevel(int run) {
+		return levels[run];
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+
+		if (index >= length)
+			throw new IndexOutOfBoundsException("index " + index + " in text of length " + length);
+		return text[index];
+	}
+
+	/**
+	 * Copies a range of the text without its runs
+	 */
+	public void getChars(int start, int end, char[] dest, int destoff) {
+
+		if (end > length)
+			throw new IndexOutOfBoundsException("end " + end + " in text of length " + length);
+		System.arraycopy(text, start, dest, destoff, end - start);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return substring(start, end);
+	}
+
+	public String substring(int start, int end) {
+
+		if (end > length)
+			throw new IndexOutOfBoundsException("end " + end + " in text of length " + length);
+		return new String(text, start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return new String(text, 0, length);
+	}
+
+	private void ensureLength(int needed) {
+
+		if (needed <= text.length)
+			return;
+		char[] grown = new char[Math.max(needed, text.length * 2)];
+		System.arraycopy(text, 0, grown, 0, length);
+		text = grown;
+	}
+
+	private static int[] grow(int[] array, int size) {
+
+		int[] grown = new int[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
@@ -40,15 +40,11 @@
 
 package org.tomdroid.util;
 
-import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Time extends android.text.format.Time {
 
-    // 2000-02-01T01:00:00.0000000		Zone will be added below +01:00
-    private static final String Y_M_D_T_H_M_S_0000000 = "%Y-%m-%dT%H:%M:%S.0000000";
-        
 	/**
      * Return a string in the RFC 3339 format with adoptions to Tomboy format (extra Milliseconds). 
      * <p>
@@ -59,15 +55,10 @@ public class Time extends android.text.format.Time {
      */
 
     public String formatTomboy() {
-        	Locale locale = Locale.getDefault();
-        	Locale.setDefault(Locale.US);
-            String base = format(Y_M_D_T_H_M_S_0000000);
-            String sign = (gmtoff < 0) ? "-" : "+";
-            int offset = (int)Math.abs(gmtoff);
-            int minutes = (offset % 3600) / 60;
-            int hours = offset / 3600;
-            Locale.setDefault(locale);
-            return String.format(Locale.US, "%s%s%02d:%02d", base, sign, hours, minutes);
+            // written by hand, formatting through the locale needed the default locale to be swapped
+            StringBuilder sb = new StringBuilder();
+            TomboyDate.appendDate(sb, year, month + 1, monthDay, hour, minute, second, 0, (int) (gmtoff / 60));
+            return sb.toString();
     }
     
     @Override
@@ -115,6 +106,18 @@ public class Time extends android.text.format.Time {
      */
      public boolean parseTomboy(String s) {
          
+    	// the usual case, a full date with a zone, is read by hand
+    	if (hasZone(s)) {
+    		try {
+    			long millis = TomboyDate.parse(s);
+    			timezone = TIMEZONE_UTC;
+    			set(millis);
+    			return true;
+    		} catch (IllegalArgumentException e) {
+    			// let parse3339 say what is wrong
+    		}
+    	}
+    	
     	// regexp out the sub-milliseconds from tomboy's datetime format
  		// Normal RFC 3339 format: 			2008-10-13T16:00:00.000-07:00
  		// Tomboy's (C# library) format: 	2010-01-23T12:07:38.7743020-05:00
@@ -126,4 +129,13 @@ public class Time extends android.text.format.Time {
  		}
          return parse3339(s);
      }
+     
+     private static boolean hasZone(String s) {
+    	 int length = s.length();
+    	 if (length <= 19)
+    		 return false;
+    	 char last = s.charAt(length - 1);
+    	 char sign = s.charAt(length - 6);
+    	 return last == 'Z' || last == 'z' || sign == '+' || sign == '-';
+     }
 }
@@ -0,0 +1,239 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.util;
+
+import java.util.TimeZone;
+
+/**
+ * Reads and writes Tomboy's dates (2010-01-23T12:07:38.7743020-05:00) as milliseconds since the epoch,
+ * without regular expressions, Time objects or locales. Parsing doesn't allocate anything.
+ *
+ * The calendar math is the proleptic Gregorian one, days are converted with the algorithms from
+ * http://howardhinnant.github.io/date_algorithms.html
+ */
+public class TomboyDate {
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	// 2000-02-01T01:00:00.0000000+01:00
+	private static final int LENGTH = 33;
+
+	/**
+	 * @param date a date in Tomboy's or RFC 3339 format, the fraction of the seconds may have any number
+	 * of digits. Without a time it is midnight, without a zone the local time.
+	 * @return the milliseconds since the epoch
+	 * @throws IllegalArgumentException if it isn't such a date
+	 */
+	public static long parse(CharSequence date) {
+
+		int length = date.length();
+		if (length < 10 || date.charAt(4) != '-' || date.charAt(7) != '-')
+			throw invalid(date);
+		int year = digits(date, 0, 4);
+		int month = digits(date, 5, 2);
+		int day = digits(date, 8, 2);
+		if (month < 1 || month > 12 || day < 1 || day > 31)
+			throw invalid(date);
+
+		int hour = 0, minute = 0, second = 0, millis = 0;
+		int position = 10;
+		if (position < length) {
+			if (length < 19 || (date.charAt(10) != 'T' && date.charAt(10) != 't')
+					|| date.charAt(13) != ':' || date.charAt(16) != ':')
+				throw invalid(date);
+			hour = digits(date, 11, 2);
+			minute = digits(date, 14, 2);
+			second = digits(date, 17, 2);
+			if (hour > 23 || minute > 59 || second > 60)
+				throw invalid(date);
+			position = 19;
+
+			// only milliseconds are kept of the fraction
+			if (position < length && date.charAt(position) == '.') {
+				position++;
+				int start = position;
+				while (position < length && isDigit(date.charAt(position))) {
+					if (position - start < 3)
+						millis = millis * 10 + date.charAt(position) - '0';
+					position++;
+				}
+				if (position == start)
+					throw invalid(date);
+				for (int i = position - start; i < 3; i++)
+					millis *= 10;
+			}
+		}
+
+		long local = (daysFromCivil(year, month, day) * 24 + hour) * 3600000L + minute * 60000L + second * 1000L + millis;
+
+		if (position == length) {
+			// no zone: local time
+			TimeZone zone = TimeZone.getDefault();
+			long utc = local - zone.getOffset(local);
+			return local - zone.getOffset(utc);
+		}
+
+		char sign = date.charAt(position);
+		if ((sign == 'Z' || sign == 'z') && position + 1 == length)
+			return local;
+		if ((sign != '+' && sign != '-') || position + 6 != length || date.charAt(position + 3) != ':')
+			throw invalid(date);
+		int offset = digits(date, position + 1, 2) * 60 + digits(date, position + 4, 2);
+		return sign == '+' ? local - offset * 60000L : local + offset * 60000L;
+	}
+
+	/**
+	 * @return the date in Tomboy's format, as local time of a zone with the given offset
+	 */
+	public static String format(long millis, int offsetMinutes) {
+
+		StringBuilder sb = new StringBuilder(LENGTH);
+		appendTo(sb, millis, offsetMinutes);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the date in Tomboy's format in UTC, the way dates are stored in the database
+	 */
+	public static String formatUtc(long millis) {
+
+		return format(millis, 0);
+	}
+
+	/**
+	 * @return now in Tomboy's format, in the local time zone
+	 */
+	public static String now() {
+
+		long now = System.currentTimeMillis();
+		return format(now, TimeZone.getDefault().getOffset(now) / 60000);
+	}
+
+	public static void appendTo(StringBuilder sb, long millis, int offsetMinutes) {
+
+		long local = millis + offsetMinutes * 60000L;
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int time = (int) (local - days * MILLIS_PER_DAY);
+
+		// civil date from days since the epoch
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+		appendDate(sb, (int) year, month, day, time / 3600000, time / 60000 % 60, time / 1000 % 60, time % 1000, offsetMinutes);
+	}
+
+	/**
+	 * Writes a date given by its fields in Tomboy's format
+	 * @param month 1 to 12
+	 */
+	public static void appendDate(StringBuilder sb, int year, int month, int day, int hour, int minute, int second,
+			int millis, int offsetMinutes) {
+
+		appendDigits(sb, year, 4);
+		sb.append('-');
+		appendDigits(sb, month, 2);
+		sb.append('-');
+		appendDigits(sb, day, 2);
+		sb.append('T');
+		appendDigits(sb, hour, 2);
+		sb.append(':');
+		appendDigits(sb, minute, 2);
+		sb.append(':');
+		appendDigits(sb, second, 2);
+		sb.append('.');
+		appendDigits(sb, millis, 3);
+		sb.append("0000");
+		sb.append(offsetMinutes < 0 ? '-' : '+');
+		int offset = Math.abs(offsetMinutes);
+		appendDigits(sb, offset / 60, 2);
+		sb.append(':');
+		appendDigits(sb, offset % 60, 2);
+	}
+
+	/**
+	 * Compares like Time.compare() did, to the second
+	 */
+	public static int compare(long a, long b) {
+
+		long secondsA = floorDiv(a, 1000);
+		long secondsB = floorDiv(b, 1000);
+		return secondsA < secondsB ? -1 : (secondsA == secondsB ? 0 : 1);
+	}
+
+	// days since the epoch of a date, month 1 to 12
+	static long daysFromCivil(int year, int month, int day) {
+
+		if (month <= 2)
+			year--;
+		long era = floorDiv(year, 400);
+		int yoe = (int) (year - era * 400);
+		int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static int digits(CharSequence s, int start, int count) {
+
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if (!isDigit(c))
+				throw invalid(s);
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static void appendDigits(StringBuilder sb, int value, int count) {
+
+		for (int divisor = pow10(count - 1); divisor > 0; divisor /= 10)
+			sb.append((char) ('0' + value / divisor % 10));
+	}
+
+	private static int pow10(int exponent) {
+
+		int value = 1;
+		for (int i = 0; i < exponent; i++)
+			value *= 10;
+		return value;
+	}
+
+	private static long floorDiv(long a, long b) {
+
+		long q = a / b;
+		return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+	}
+
+	private static IllegalArgumentException invalid(CharSequence date) {
+		return new IllegalArgumentException("not a Tomboy date: " + date);
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.xml;
+
+import java.util.ArrayList;
+
+import org.tomdroid.util.TagType;
+
+import android.os.Handler;
+import android.os.Message;
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+
+/**
+ * Serializes the note being edited paragraph by paragraph and keeps the xml of every paragraph,
+ * so that a save only rebuilds the paragraphs that were edited since the last one.
+ *
+ * The text is only split after a newline that no formatting span starts at, ends at or crosses.
+ * Such a position is always inside a plain text node of the note, so putting the pieces back
+ * together gives the same xml as serializing the whole note at once.
+ *
+ * The builder watches the text it is attached to (as a span, so it is dropped when the text is
+ * replaced) and forgets the xml of every paragraph whose characters or formatting change.
+ */
+public class IncrementalXMLContentBuilder implements TextWatcher, SpanWatcher, NoCopySpan {
+
+	private static class Fragment {
+		int start;
+		int end;
+		boolean firstList;
+		String text;
+		String xml;
+	}
+
+	private Spannable attachedText;
+	private ArrayList<Fragment> fragments = new ArrayList<Fragment>();
+	private int nextFragment;
+	// paragraphs serialized by the last build
+	private int rebuilt;
+
+	// last text change, to tell spans that only moved along with the text from edited ones
+	private int changeStart = -1;
+	private int changeBefore;
+	private int changeCount;
+
+	private SpannableStringBuilder noteContent;
+	private Handler parentHandler;
+
+	/**
+	 * Starts watching a text, forgetting everything known about the previous one
+	 * @param text the editor's text
+	 */
+	public void attach(Spannable text) {
+
+		if (attachedText != null)
+			attachedText.removeSpan(this);
+		fragments.clear();
+		attachedText = text;
+		if (text != null)
+			text.setSpan(this, 0, text.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+	}
+
+	public IncrementalXMLContentBuilder setCaller(Handler parent) {
+
+		parentHandler = parent;
+		return this;
+	}
+
+	public IncrementalXMLContentBuilder setInputSource(SpannableStringBuilder nc) {
+
+		noteContent = nc;
+		return this;
+	}
+
+	/**
+	 * Serializes the note content, reusing the xml of all paragraphs that didn't change
+	 * since the last build of the attached text
+	 * @return the note's xml content, an empty string if it couldn't be built
+	 */
+	public String build() {
+
+		// paragraphs can only be remembered for the text we are watching
+		boolean cached = noteContent == attachedText;
+		int length = noteContent.length();
+
+		// for every position, the number of formatting spans starting at, ending at or crossing it
+		int[] covered = new int[length + 2];
+		int firstList = -1;
+		for (Object span : noteContent.getSpans(0, length, Object.class)) {
+			TagType type = StyledTextSpans.getTagType(span);
+			int start = noteContent.getSpanStart(span);
+			int end = noteContent.getSpanEnd(span);
+			if (type == TagType.OTHER || start >= end)
+				continue;
+			covered[start]++;
+			covered[end + 1]--;
+			if (type == TagType.MARGIN && (firstList == -1 || start < firstList))
+				firstList = start;
+		}
+
+		ArrayList<Fragment> built = new ArrayList<Fragment>();
+		StringBuilder xml = new StringBuilder(length + length / 4);
+		int depth = 0;
+		int start = 0;
+		boolean successful = true;
+		nextFragment = 0;
+		rebuilt = 0;
+		for (int i = 0; i <= length && successful; i++) {
+			depth += covered[i];
+			if (i == length || (i > 0 && depth == 0 && noteContent.charAt(i - 1) == '\n')) {
+				if (i == start)
+					continue;
+				boolean holdsFirstList = firstList >= start && firstList < i;
+				Fragment fragment = cached ? findFragment(start, i, holdsFirstList) : null;
+				if (fragment == null) {
+					fragment = buildFragment(start, i, holdsFirstList);
+					successful = fragment != null;
+					rebuilt++;
+				}
+				if (fragment != null) {
+					xml.append(fragment.xml);
+					built.add(fragment);
+				}
+				start = i;
+			}
+		}
+
+		if (cached)
+			fragments = successful ? built : new ArrayList<Fragment>();
+		warnHandler(successful);
+		return successful ? xml.toString() : "";
+	}
+
+	/**
+	 * @return how many paragraphs the last build() had to serialize, the others were reused
+	 */
+	public int getRebuiltParagraphs() {
+
+		return rebuilt;
+	}
+
+	// returns the unchanged xml of a paragraph, if still known. Paragraphs are looked up in text order
+	private Fragment findFragment(int start, int end, boolean firstList) {
+
+		while (nextFragment < fragments.size() && fragments.get(nextFragment).start < start)
+			nextFragment++;
+		if (nextFragment == fragments.size())
+			return null;
+		Fragment fragment = fragments.get(nextFragment);
+		if (fragment.start == start && fragment.end == end && fragment.firstList == firstList
+				&& TextUtils.regionMatches(noteContent, start, fragment.text, 0, end - start))
+			return fragment;
+		return null;
+	}
+
+	private Fragment buildFragment(int start, int end, boolean firstList) {
+
+		NoteXMLContentBuilder builder = new NoteXMLContentBuilder()
+				.setInputSource((SpannableStringBuilder) noteContent.subSequence(start, end))
+				.setCutAtFirstList(firstList);
+		Fragment fragment = new Fragment();
+		fragment.start = start;
+		fragment.end = end;
+		fragment.firstList = firstList;
+		fragment.xml = builder.build();
+		if (!builder.successful)
+			return null;
+		fragment.text = noteContent.subSequence(start, end).toString();
+		return fragment;
+	}
+
+	/**
+	 * Forgets the xml of the paragraphs touching a range of the attached text
+	 */
+	public void markDirty(int start, int end) {
+
+		for (int i = fragments.size() - 1; i >= 0; i--) {
+			Fragment fragment = fragments.get(i);
+			if (fragment.end >= start && fragment.start <= end)
+				fragments.remove(i);
+		}
+	}
+
+	public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+	}
+
+	public void onTextChanged(CharSequence s, int start, int before, int count) {
+
+		markDirty(start, start + before);
+
+		// paragraphs after the change only move
+		int delta = count - before;
+		for (Fragment fragment : fragments) {
+			if (fragment.start > start) {
+				fragment.start += delta;
+				fragment.end += delta;
+			}
+		}
+
+		changeStart = start;
+		changeBefore = before;
+		changeCount = count;
+	}
+
+	public void afterTextChanged(Editable s) {
+	}
+
+	public void onSpanAdded(Spannable text, Object what, int start, int end) {
+
+		if (StyledTextSpans.getTagType(what) != TagType.OTHER)
+			markDirty(start, end);
+	}
+
+	public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+
+		if (StyledTextSpans.getTagType(what) != TagType.OTHER)
+			markDirty(start, end);
+	}
+
+	public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+
+		if (StyledTextSpans.getTagType(what) == TagType.OTHER)
+			return;
+		// spans that were only pushed around by the last text change don't change any paragraph
+		if (changeStart != -1 && movedByChange(ostart) == nstart && movedByChange(oend) == nend)
+			return;
+		markDirty(ostart, oend);
+		markDirty(nstart, nend);
+	}
+
+	// where a position before the last text change ended up after it
+	private int movedByChange(int position) {
+
+		if (position <= changeStart)
+			return position;
+		if (position >= changeStart + changeBefore)
+			return position + changeCount - changeBefore;
+		return changeStart + changeCount;
+	}
+
+	private void warnHandler(boolean successful) {
+
+		// notify the main UI that we are done here (sends an ok or error msg)
+		int warning;
+		if (successful) {
+			warning = NoteXMLContentBuilder.PARSE_OK;
+		} else {
+			warning = NoteXMLContentBuilder.PARSE_ERROR;
+		}
+
+		if (parentHandler != null) {
+			Message msg = Message.obtain();
+			msg.what = warning;
+			parentHandler.sendMessage(msg);
+		}
+	}
+}
@@ -29,7 +29,7 @@ import org.tomdroid.util.TLog;
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
-import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.style.ClickableSpan;
 import android.text.util.Linkify.MatchFilter;
 import android.view.View;
@@ -65,16 +65,22 @@ public class LinkInternalSpan extends ClickableSpan {
 		act.startActivity(i);
 	}
 	
-	public static MatchFilter getNoteLinkMatchFilter(final SpannableStringBuilder noteContent, final LinkInternalSpan[] links) {
+	// the ranges of the note's internal links are taken now, the filter can be used on another thread later
+	public static MatchFilter getNoteLinkMatchFilter(Spanned noteContent) {
+		
+		LinkInternalSpan[] links = noteContent.getSpans(0, noteContent.length(), LinkInternalSpan.class);
+		final int[] spanstarts = new int[links.length];
+		final int[] spanends = new int[links.length];
+		for(int i = 0; i < links.length; i++) {
+			spanstarts[i] = noteContent.getSpanStart(links[i]);
+			spanends[i] = noteContent.getSpanEnd(links[i]);
+		}
 		
 		return new MatchFilter() {
 			
 			public boolean acceptMatch(CharSequence s, int start, int end) {
-				int spanstart, spanend;
-				for(LinkInternalSpan link: links) {
-					spanstart = noteContent.getSpanStart(link);
-					spanend = noteContent.getSpanEnd(link);
-					if(!(end <= spanstart || spanend <= start)) {
+				for(int i = 0; i < spanstarts.length; i++) {
+					if(!(end <= spanstarts[i] || spanends[i] <= start)) {
 						return false;
 					}
 				}
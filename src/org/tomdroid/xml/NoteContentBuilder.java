@@ -24,32 +24,79 @@ package org.tomdroid.xml;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.SpannableStringBuilder;
+import android.view.View;
+import android.view.ViewTreeObserver;
 
+import org.tomdroid.util.StyledText;
 import org.tomdroid.util.TLog;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class NoteContentBuilder {
 	
 	public static final int PARSE_OK = 0;
 	public static final int PARSE_ERROR = 1;
+	// a part of a large note is ready, see setChunked(). (2 is NoteLinkBuilder.LINKS_OK, both go to the same handlers)
+	public static final int PARSE_CHUNK = 3;
+	
+	// notes with more xml than this are shown in chunks if the caller wants it
+	private static final int CHUNKED_MIN_LENGTH = 64 * 1024;
+	// about a screen of text for the first chunk, bigger ones afterwards
+	private static final int FIRST_CHUNK_LENGTH = 2 * 1024;
+	private static final int CHUNK_LENGTH = 32 * 1024;
+	
+	// all renders share this pool instead of starting a thread each
+	private final static int poolSize = 2;
+	private static final ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+	
+	// latest render request per caller, older requests are cancelled when a new one comes in; a request
+	// leaves it when it is done or cancelled, each one refers to its caller so a weak map wouldn't do
+	private static final Map<Handler, NoteContentBuilder> latestRequests = new HashMap<Handler, NoteContentBuilder>();
 	
 	private InputSource noteContentIs;
 	
 	// this is what we are building here
 	private SpannableStringBuilder noteContent = new SpannableStringBuilder();
+	// the parser fills this, the spans are only made from it at the end (and for every chunk)
+	private final StyledText styledContent = new StyledText();
 	
 	private final String TAG = "NoteContentBuilder";
 	
 	// thread related
 	private Runnable runner;
+	private Future<?> task;
+	private volatile boolean cancelled = false;
 	private Handler parentHandler;
 	private String subjectName;
-	private String noteContentString;
+	
+	// rendered notes are cached under these
+	private String cacheGuid;
+	private String cacheDate;
+	private String xmlContent;
+	private int xmlContentStart;
+	
+	// chunked rendering
+	private boolean chunked = false;
+	private int chunkStart = 0;
+	private int chunkRun = 0;
+	private boolean chunkSent = false;
+	private final ConcurrentLinkedQueue<SpannableStringBuilder> chunks = new ConcurrentLinkedQueue<SpannableStringBuilder>();
+	
+	// time to first paint
+	private long requestTime;
+	private boolean firstPaintReported = false;
+	private static volatile long lastTimeToFirstPaint = -1;
 	
 	public NoteContentBuilder () {}
 	
@@ -71,15 +118,70 @@ public class NoteContentBuilder {
 		return this;
 	}
 	
+	/**
+	 * Lets the rendered content be served from and stored into the NoteContentCache.
+	 * @param guid the Note's guid
+	 * @param modifiedDate the Note's last change date as stored
+	 * @return this (builder pattern)
+	 */
+	public NoteContentBuilder setCacheKey(String guid, String modifiedDate) {
+		
+		cacheGuid = guid;
+		cacheDate = modifiedDate;
+		return this;
+	}
+	
+	/**
+	 * Lets large notes be shown before they are parsed completely. The caller gets a PARSE_CHUNK message
+	 * for every part of the note that is ready, the first one about a screen long, and takes the part
+	 * with takeChunk(). The chunks are cut between paragraphs, so they can simply be appended to each other.
+	 * PARSE_OK still comes at the end, with the whole note in the content returned by build().
+	 * @param chunked whether to send chunks for large notes
+	 * @return this (builder pattern)
+	 */
+	public NoteContentBuilder setChunked(boolean chunked) {
+		
+		this.chunked = chunked;
+		return this;
+	}
+	
 	public NoteContentBuilder setInputSource(String nc) {
 		
-		noteContentString = "<note-content>"+nc+"</note-content>";
-		noteContentIs = new InputSource(new StringReader(noteContentString));
+		return setInputSource(nc, 0);
+	}
+	
+	/**
+	 * Parses the note content from an offset on, so a title in front of it doesn't have to be cut off first.
+	 * @param nc the note content, maybe with something to skip in front
+	 * @param start where the note content starts
+	 * @return this (builder pattern)
+	 */
+	public NoteContentBuilder setInputSource(String nc, int start) {
+		
+		xmlContent = nc;
+		xmlContentStart = start;
+		noteContentIs = new InputSource(new NoteContentReader(nc, start, nc.length()));
 		return this;
 	}
 	
 	public SpannableStringBuilder build() {
 		
+		requestTime = SystemClock.elapsedRealtime();
+		final boolean chunking = chunked && xmlContent != null && xmlContent.length() - xmlContentStart >= CHUNKED_MIN_LENGTH;
+		
+		SpannableStringBuilder cached = NoteContentCache.get(cacheGuid, cacheDate, xmlContent, xmlContentStart);
+		if (cached != null) {
+			TLog.v(TAG, "using cached content for note {0}", subjectName);
+			noteContent = cached;
+			synchronized (latestRequests) {
+				NoteContentBuilder previous = latestRequests.put(parentHandler, this);
+				if (previous != null)
+					previous.cancel();
+			}
+			warnHandler(true);
+			return noteContent;
+		}
+		
 		runner = new Runnable() {
 			
 			public void run() {
@@ -90,38 +192,185 @@ public class NoteContentBuilder {
 				try {
 					// Parsing
 			    	// XML 
-			    	// Get a SAXParser from the SAXPArserFactory
-			        SAXParserFactory spf = SAXParserFactory.newInstance();
-
-			        // trashing the namespaces but keep prefixes (since we don't have the xml header)
-			        spf.setFeature("http://xml.org/sax/features/namespaces", false);
-			        spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-			        SAXParser sp = spf.newSAXParser();
+			    	// Get this thread's SAXParser, namespaces are trashed but prefixes kept (since we don't have the xml header)
+			    	SAXParser sp = SAXParsers.getContentParser();
 
 					TLog.v(TAG, "parsing note {0}", subjectName);
 					
-			        sp.parse(noteContentIs, new NoteContentHandler(noteContent));
+			        sp.parse(noteContentIs, new NoteContentHandler(styledContent) {
+			        	
+			        	// bail out as soon as a newer request for the same caller came in
+						@Override
+						public void startElement(String uri, String localName, String name, Attributes attributes) throws SAXException {
+							checkCancelled();
+							super.startElement(uri, localName, name, attributes);
+						}
+						
+						@Override
+						public void characters(char[] ch, int start, int length) throws SAXException {
+							checkCancelled();
+							int topLevelStart = styledContent.length();
+							super.characters(ch, start, length);
+							if (chunking && isAtTopLevel())
+								sendChunk(topLevelStart);
+						}
+					});
 			        
+			        // the rest of a note that was sent in chunks
+			        if (chunkSent && chunkStart < styledContent.length())
+			        	postChunk(styledContent.length());
+				} catch (Exception e) {
+					if(cancelled) {
+						TLog.v(TAG, "parsing of note {0} was cancelled", subjectName);
+						return;
+					}
+					e.printStackTrace();
+					// TODO handle error in a more granular way
+					TLog.e(TAG, "There was an error parsing the note {0}", subjectName);
+					successful = false;
+				}
+				
+				// whatever was parsed is shown, even after an error
+				StyledTextSpans.appendTo(noteContent, styledContent);
+				
+				if (successful) {
 					// error finding
 					Object[] allSpans = noteContent.getSpans(0, noteContent.length(), Object.class);
 					for (Object span : allSpans) {
 						TLog.v(TAG, "({0}/{1}) {2}", noteContent.getSpanStart(span), noteContent.getSpanEnd(span), span.getClass().toString());
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
-					// TODO handle error in a more granular way
-					TLog.e(TAG, "There was an error parsing the note {0}", noteContentString);
-					successful = false;
+					
+					NoteContentCache.put(cacheGuid, cacheDate, xmlContent, xmlContentStart, noteContent);
 				}
 				
 				warnHandler(successful);
 			}
 		};
-		Thread thread = new Thread(runner);
-		thread.start();
+		
+		synchronized (latestRequests) {
+			NoteContentBuilder previous = latestRequests.put(parentHandler, this);
+			if (previous != null)
+				previous.cancel();
+			task = pool.submit(runner);
+		}
 				
 		return noteContent;
 	}
+	
+	/**
+	 * Cancels whatever render is still pending for the given caller.
+	 * Nothing will be sent to the caller for the cancelled render.
+	 * @param caller the handler that was given to setCaller()
+	 */
+	public static void cancel(Handler caller) {
+		
+		synchronized (latestRequests) {
+			NoteContentBuilder previous = latestRequests.remove(caller);
+			if (previous != null)
+				previous.cancel();
+		}
+		// a finished render isn't in latestRequests any more, its result may still be queued
+		caller.removeMessages(PARSE_OK);
+		caller.removeMessages(PARSE_ERROR);
+		caller.removeMessages(PARSE_CHUNK);
+	}
+	
+	// must be called with the latestRequests lock held
+	private void cancel() {
+		
+		cancelled = true;
+		if (task != null)
+			task.cancel(true);
+		
+		// drop the result if it was already posted but not handled yet
+		parentHandler.removeMessages(PARSE_OK, this);
+		parentHandler.removeMessages(PARSE_ERROR, this);
+		parentHandler.removeMessages(PARSE_CHUNK, this);
+	}
+	
+	// sends the text parsed since the last chunk if there is enough of it, cut after the last paragraph
+	// of the text appended outside of any tag (from topLevelStart on), where no span can be cut
+	private void sendChunk(int topLevelStart) {
+		
+		int wanted = chunkSent ? CHUNK_LENGTH : FIRST_CHUNK_LENGTH;
+		if (styledContent.length() - chunkStart < wanted)
+			return;
+		
+		int from = Math.max(topLevelStart, chunkStart);
+		int cut = styledContent.length();
+		while (cut > from && styledContent.charAt(cut - 1) != '\n')
+			cut--;
+		if (cut > chunkStart && styledContent.charAt(cut - 1) == '\n')
+			postChunk(cut);
+	}
+	
+	// all runs added so far lie before the cut, all later ones after it
+	private void postChunk(int cut) {
+		
+		SpannableStringBuilder chunk = new SpannableStringBuilder();
+		StyledTextSpans.appendTo(chunk, styledContent, chunkStart, cut, chunkRun, styledContent.getRunCount());
+		chunks.add(chunk);
+		chunkStart = cut;
+		chunkRun = styledContent.getRunCount();
+		chunkSent = true;
+		
+		Message msg = Message.obtain();
+		msg.what = PARSE_CHUNK;
+		msg.obj = this;
+		synchronized (latestRequests) {
+			if (cancelled || latestRequests.get(parentHandler) != this)
+				return;
+			parentHandler.sendMessage(msg);
+		}
+	}
+	
+	/**
+	 * @return the next part of the note, one for each PARSE_CHUNK message
+	 */
+	public SpannableStringBuilder takeChunk() {
+		
+		return chunks.poll();
+	}
+	
+	/**
+	 * Measures the time from build() until the view showing the note is drawn first. Call it right after
+	 * the first text of the note (the first chunk or the whole note) was given to the view.
+	 */
+	public void reportFirstPaint(final View view) {
+		
+		if (firstPaintReported)
+			return;
+		firstPaintReported = true;
+		
+		final ViewTreeObserver observer = view.getViewTreeObserver();
+		observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+			
+			public boolean onPreDraw() {
+				
+				lastTimeToFirstPaint = SystemClock.elapsedRealtime() - requestTime;
+				TLog.d(TAG, "time to first paint of note {0}: {1} ms", subjectName, lastTimeToFirstPaint);
+				if (observer.isAlive())
+					observer.removeOnPreDrawListener(this);
+				else
+					view.getViewTreeObserver().removeOnPreDrawListener(this);
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * @return how long it took the last note reported with reportFirstPaint() to show up in ms, -1 if none was yet
+	 */
+	public static long getLastTimeToFirstPaint() {
+		
+		return lastTimeToFirstPaint;
+	}
+	
+	private void checkCancelled() throws SAXException {
+		
+		if (cancelled)
+			throw new SAXException("parsing cancelled");
+	}
 
 	
     private void warnHandler(boolean successful) {
@@ -134,7 +383,14 @@ public class NoteContentBuilder {
 			
 			msg.what = PARSE_ERROR;
 		}
+		msg.obj = this;
 		
-		parentHandler.sendMessage(msg);
+		// only the latest request for this caller gets to reach the UI, and it is done with it
+		synchronized (latestRequests) {
+			if (cancelled || latestRequests.get(parentHandler) != this)
+				return;
+			latestRequests.remove(parentHandler);
+			parentHandler.sendMessage(msg);
+		}
     }
 }
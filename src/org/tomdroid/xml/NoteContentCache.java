@@ -0,0 +1,201 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.xml;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
+import android.os.Build;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.TLog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently rendered notes around so that reopening a note doesn't need another parse.
+ * Entries are keyed by guid and modification date, the whole cache is dropped whenever the notes
+ * provider reports a change and it shrinks when the system runs low on memory.
+ */
+public class NoteContentCache {
+
+	private static final String TAG = "NoteContentCache";
+
+	// rough cost of a span (the span object plus its slot in the builder's arrays)
+	private static final int SPAN_SIZE = 64;
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private static final long maxSize = Math.min(Runtime.getRuntime().maxMemory() / 16, 4 * 1024 * 1024);
+	private static long size = 0;
+
+	// access ordered, so the eldest entry is the least recently used one
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private static boolean initialized = false;
+
+	private static class Entry {
+		final String xmlContent;
+		final int xmlContentStart;
+		final SpannableStringBuilder content;
+		final long size;
+
+		Entry(String xmlContent, int xmlContentStart, SpannableStringBuilder content) {
+			this.xmlContent = xmlContent;
+			this.xmlContentStart = xmlContentStart;
+			this.content = content;
+			this.size = sizeOf(xmlContent, content);
+		}
+	}
+
+	/**
+	 * Hooks the cache up to the notes provider and to the memory callbacks. Safe to call more than once.
+	 * @param context any context, only the application context is kept
+	 */
+	public static void init(Context context) {
+
+		synchronized (entries) {
+			if (initialized)
+				return;
+			initialized = true;
+		}
+
+		Context appContext = context.getApplicationContext();
+		appContext.getContentResolver().registerContentObserver(Tomdroid.CONTENT_URI, true, new ContentObserver(null) {
+			@Override
+			public void onChange(boolean selfChange) {
+				TLog.v(TAG, "notes changed, dropping cached content");
+				clear();
+			}
+		});
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+			MemoryCallbacks.register(appContext);
+	}
+
+	/**
+	 * @return a copy of the cached content or null if the note with this guid and date wasn't rendered yet
+	 * from the same xml content
+	 * @param xmlContentStart where the note content starts in xmlContent
+	 */
+	public static SpannableStringBuilder get(String guid, String modifiedDate, String xmlContent, int xmlContentStart) {
+
+		if (guid == null || modifiedDate == null || xmlContent == null)
+			return null;
+
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key(guid, modifiedDate));
+		}
+		// the content may have been edited without touching the date yet
+		if (entry == null || entry.xmlContentStart != xmlContentStart || !entry.xmlContent.equals(xmlContent))
+			return null;
+
+		// callers get their own copy so that nothing they do ends up in the cache
+		return new SpannableStringBuilder(entry.content);
+	}
+
+	public static void put(String guid, String modifiedDate, String xmlContent, int xmlContentStart, SpannableStringBuilder content) {
+
+		if (guid == null || modifiedDate == null || xmlContent == null)
+			return;
+
+		Entry entry = new Entry(xmlContent, xmlContentStart, new SpannableStringBuilder(content));
+		if (entry.size > maxSize)
+			return;
+
+		synchronized (entries) {
+			Entry previous = entries.put(key(guid, modifiedDate), entry);
+			if (previous != null)
+				size -= previous.size;
+			size += entry.size;
+			trimToSize(maxSize);
+		}
+	}
+
+	public static void clear() {
+
+		synchronized (entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Shrinks the cache according to a level given to ComponentCallbacks2.onTrimMemory().
+	 */
+	public static void trimMemory(int level) {
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			TLog.d(TAG, "trim level {0}, dropping all cached content", level);
+			clear();
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			TLog.d(TAG, "trim level {0}, halving cached content", level);
+			synchronized (entries) {
+				trimToSize(maxSize / 2);
+			}
+		}
+	}
+
+	// must be called with the entries lock held
+	private static void trimToSize(long max) {
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > max && it.hasNext()) {
+			size -= it.next().getValue().size;
+			it.remove();
+		}
+	}
+
+	private static String key(String guid, String modifiedDate) {
+		return guid + "@" + modifiedDate;
+	}
+
+	private static long sizeOf(String xmlContent, Spanned content) {
+		return ENTRY_OVERHEAD
+				+ 2L * xmlContent.length()
+				+ 2L * content.length()
+				+ SPAN_SIZE * content.getSpans(0, content.length(), Object.class).length;
+	}
+
+	@TargetApi(14)
+	private static class MemoryCallbacks implements ComponentCallbacks2 {
+
+		static void register(Context context) {
+			context.registerComponentCallbacks(new MemoryCallbacks());
+		}
+
+		public void onTrimMemory(int level) {
+			trimMemory(level);
+		}
+
+		public void onLowMemory() {
+			clear();
+		}
+
+		public void onConfigurationChanged(Configuration newConfig) {}
+	}
+}
@@ -24,46 +24,29 @@
  */
 package org.tomdroid.xml;
 
-import java.util.ArrayList;
-
-import org.tomdroid.Note;
-import org.tomdroid.util.TLog;
+import org.tomdroid.util.StyledText;
+import org.tomdroid.util.TagType;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import android.text.Spannable;
 import android.text.SpannableStringBuilder;
-import android.text.style.BackgroundColorSpan;
-import android.text.style.BulletSpan;
-import android.text.style.LeadingMarginSpan;
-import android.text.style.RelativeSizeSpan;
-import android.text.style.StrikethroughSpan;
-import android.text.style.StyleSpan;
-import android.text.style.TypefaceSpan;
 
 /*
  * This class is responsible for parsing the xml note content
- * and formatting the contents in a SpannableStringBuilder
+ * and formatting the contents in a StyledText (or a SpannableStringBuilder)
+ * 
+ * Open tags are kept on a stack together with the position they started at,
+ * their run is added once they are closed. This way the same tag can be nested
+ * in itself (bold in bold) without the inner one overwriting the outer one.
+ * 
+ * When a SpannableStringBuilder is given, the text and its spans are appended to it
+ * at the end of the document.
  */
 public class NoteContentHandler extends DefaultHandler {
 
 	private String TAG = "NoteContentHandler";
 	
-	// position keepers
-	private boolean inNoteContentTag = false;
-	private boolean inBoldTag = false;
-	private boolean inItalicTag = false;
-	private boolean inStrikeTag = false;
-	private boolean inHighlighTag = false;
-	private boolean inMonospaceTag = false;
-	private boolean inSizeSmallTag = false;
-	private boolean inSizeLargeTag = false;
-	private boolean inSizeHugeTag = false;
-	private boolean inLinkInternalTag = false;
-	private int inListLevel = 0;
-	private boolean inListItem = false;
-	
 	// -- Tomboy's notes XML tags names -- 
 	// Style related
 	private final static String NOTE_CONTENT = "note-content";
@@ -80,96 +63,73 @@ public class NoteContentHandler extends DefaultHandler {
 	private final static String LIST = "list";
 	private final static String LIST_ITEM = "list-item";
 	
-	// holding state for tags
-	private int boldStartPos = -1;
-	private int boldEndPos = -1;
-	private int italicStartPos = -1;
-	private int italicEndPos = -1;
-	private int strikethroughStartPos = -1;
-	private int strikethroughEndPos = -1;
-	private int highlightStartPos = -1;
-	private int highlightEndPos = -1;
-	private int monospaceStartPos = -1;
-	private int monospaceEndPos = -1;
-	private int smallStartPos = -1;
-	private int smallEndPos = -1;
-	private int largeStartPos = -1;
-	private int largeEndPos = -1;
-	private int hugeStartPos = -1;
-	private int hugeEndPos = -1;
-	private int linkinternalStartPos = -1;
-	private int linkinternalEndPos = -1;
-	private ArrayList<Integer> listItemStartPos = new ArrayList<Integer>(0);
-	private ArrayList<Integer> listItemEndPos = new ArrayList<Integer>(0);
-	private ArrayList<Boolean> listItemIsEmpty =  new ArrayList<Boolean>(0);
+	private final static int INITIAL_DEPTH = 16;
+	
+	// position keepers
+	private int noteContentDepth = 0;
+	private int inListLevel = 0;
+	
+	// stack of the open tags, all arrays are indexed by depth
+	private TagType[] tagStack = new TagType[INITIAL_DEPTH];
+	private int[] startStack = new int[INITIAL_DEPTH];
+	// for list items: where the last text directly inside them ended (-1 while empty)
+	private int[] endStack = new int[INITIAL_DEPTH];
+	// for list items: depth of the list item they are nested in
+	private int[] outerItemStack = new int[INITIAL_DEPTH];
+	private int depth = 0;
+	
+	// depth of the innermost open list item, -1 when not in a list item
+	private int currentItem = -1;
 	
 	// accumulate note-content in this var since it spans multiple xml tags
+	private StyledText text;
 	private SpannableStringBuilder ssb;
 	
+	public NoteContentHandler(StyledText noteContent) {
+		
+		this.text = noteContent;
+	}
+	
 	public NoteContentHandler(SpannableStringBuilder noteContent) {
 		
+		this.text = new StyledText();
 		this.ssb = noteContent;
 	}
 	
+	@Override
+	public void endDocument() throws SAXException {
+		
+		if (ssb != null)
+			StyledTextSpans.appendTo(ssb, text);
+	}
+	
 	@Override
 	public void startElement(String uri, String localName, String name,	Attributes attributes) throws SAXException {
 		
 		if (name.equals(NOTE_CONTENT)) {
 
-			// we are under the note-content tag
-			// we will append all its nested tags so I create a string builder to do that
-			inNoteContentTag = true;
+			// we are under the note-content tag, all its nested tags will be appended
+			noteContentDepth++;
+			return;
 		}
 
 		// if we are in note-content, keep and convert formatting tags
 		// TODO is XML CaSe SeNsItIve? if not change equals to equalsIgnoreCase and apply to endElement()
-		if (inNoteContentTag) {
-			if (name.equals(BOLD)) {
-				inBoldTag = true;
-			} else if (name.equals(ITALIC)) {
-				inItalicTag = true;
-			} else if (name.equals(STRIKETHROUGH)) {
-				inStrikeTag = true;
-			} else if (name.equals(HIGHLIGHT)) {
-				inHighlighTag = true;
-			} else if (name.equals(MONOSPACE)) {
-				inMonospaceTag = true;
-			} else if (name.equals(SMALL)) {
-				inSizeSmallTag = true;
-			} else if (name.equals(LARGE)) {
-				inSizeLargeTag = true;
-			} else if (name.equals(HUGE)) {
-				inSizeHugeTag = true;
-			} else if (name.equals(LINK_INTERNAL)) {
-				inLinkInternalTag = true;
-			} else if (name.equals(LIST)) {
-				inListLevel++;
-			} else if (name.equals(LIST_ITEM)) {
-				// Book keeping of where the list-items started and where they end.
-				// we need to do this here because a list-item must always have a start,
-				// but it doesn't always have any content--so we must assume that a list-item
-				// is empty until characters() gets called and proves otherwise.
-				
-				if (listItemIsEmpty.size() < inListLevel) {
-					listItemIsEmpty.add(Boolean.valueOf(true));
-				}
-				// if listItem's position not already in tracking array, add it.
-				// Otherwise if the start position equals 0 then set
-				if (listItemStartPos.size() < inListLevel) {
-					listItemStartPos.add(Integer.valueOf(ssb.length()));
-				} else if (listItemStartPos.get(inListLevel-1) == 0) { 
-					listItemStartPos.set(inListLevel-1, Integer.valueOf(ssb.length()));					
-				}
-				// no matter what, we track the end (we add if array not big enough or set otherwise) 
-				if (listItemEndPos.size() < inListLevel) {
-					listItemEndPos.add(Integer.valueOf(ssb.length()));
-				} else {
-					listItemEndPos.set(inListLevel-1, ssb.length());					
-				}
-				inListItem = true;
-			}
+		if (noteContentDepth == 0)
+			return;
+		
+		TagType type = getTagType(name);
+		push(type);
+		
+		if (type == TagType.LIST) {
+			inListLevel++;
+		} else if (type == TagType.LIST_ITEM) {
+			// a list-item must always have a start, but it doesn't always have any content
+			// so we assume that it is empty until characters() proves otherwise.
+			endStack[depth-1] = -1;
+			outerItemStack[depth-1] = currentItem;
+			currentItem = depth-1;
 		}
-
 	}
 
 	@Override
@@ -177,112 +137,42 @@ public class NoteContentHandler extends DefaultHandler {
 			throws SAXException {
 
 		if (name.equals(NOTE_CONTENT)) {
-			inNoteContentTag = false;
+			noteContentDepth--;
+			return;
 		}
 		
-		// if we are in note-content, keep and convert formatting tags
-		if (inNoteContentTag) {
-			if (name.equals(BOLD)) {
-				if(boldStartPos == boldEndPos) return;
-				//TLog.d(TAG, "Bold span: {0} to {1} is {2}",boldStartPos,boldEndPos, ssb.subSequence(boldStartPos, boldEndPos).toString());
-				inBoldTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), boldStartPos, boldEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				boldStartPos = -1;
-				boldEndPos = -1;
-
-			} else if (name.equals(ITALIC)) {
-				TLog.d(TAG, "Italic span: {0} to {1} is {2}",italicStartPos,italicEndPos, ssb.subSequence(italicStartPos, italicEndPos).toString());
-				if(italicStartPos == italicEndPos) return;
-				inItalicTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), italicStartPos, italicEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				italicStartPos = -1;
-				italicEndPos = -1;
-
-			} else if (name.equals(STRIKETHROUGH)) {
-				if(strikethroughStartPos == strikethroughEndPos)
-					return;
-				inStrikeTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new StrikethroughSpan(), strikethroughStartPos, strikethroughEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				strikethroughStartPos = -1;
-				strikethroughEndPos = -1;
-
-			} else if (name.equals(HIGHLIGHT)) {
-				if(highlightStartPos == highlightEndPos) return;
-				inHighlighTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new BackgroundColorSpan(Note.NOTE_HIGHLIGHT_COLOR), highlightStartPos, highlightEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				highlightStartPos = -1;
-				highlightEndPos = -1;
-				
-			} else if (name.equals(MONOSPACE)) {
-				if(monospaceStartPos == monospaceEndPos) return;
-				inMonospaceTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new TypefaceSpan(Note.NOTE_MONOSPACE_TYPEFACE), monospaceStartPos, monospaceEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				monospaceStartPos = -1;
-				monospaceEndPos = -1;
-
-			} else if (name.equals(SMALL)) {
-				if(smallStartPos == smallEndPos) return;
-				inSizeSmallTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new RelativeSizeSpan(Note.NOTE_SIZE_SMALL_FACTOR), smallStartPos, smallEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				smallStartPos = -1;
-				smallEndPos = -1;
-				
-			} else if (name.equals(LARGE)) {
-				if(largeStartPos == largeEndPos) return;
-				inSizeLargeTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new RelativeSizeSpan(Note.NOTE_SIZE_LARGE_FACTOR), largeStartPos, largeEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				largeStartPos = -1;
-				largeEndPos = -1;
-
-			} else if (name.equals(HUGE)) {
-				if(hugeStartPos == hugeEndPos) return;
-				inSizeHugeTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new RelativeSizeSpan(Note.NOTE_SIZE_HUGE_FACTOR), hugeStartPos, hugeEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				hugeStartPos = -1;
-				hugeEndPos = -1;
-
-			} else if (name.equals(LINK_INTERNAL)) {
-				if(linkinternalStartPos == linkinternalEndPos) return;
-				inLinkInternalTag = false;
-				// apply style and reset position keepers
-				ssb.setSpan(new LinkInternalSpan(ssb.toString().substring(linkinternalStartPos, linkinternalEndPos)), linkinternalStartPos, linkinternalEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				linkinternalStartPos = -1;
-				linkinternalEndPos = -1;
-
-			} else if (name.equals(LIST)) {
-				inListLevel--;
-			} else if (name.equals(LIST_ITEM)) {
-				
-				// if this list item is "empty" then we don't need to try rendering anything.
-				if (!inListItem && listItemIsEmpty.get(inListLevel-1))
-				{
-					listItemStartPos.set(inListLevel-1, Integer.valueOf(0));
-					listItemEndPos.set(inListLevel-1, Integer.valueOf(0));
-					listItemIsEmpty.set(inListLevel-1, Boolean.valueOf(true));
-					
-					return;					
-				}
-				// here, we apply margin and create a bullet span. Plus, we need to reset position keepers.
-				// TODO new sexier bullets?
-				// Show a leading margin that is as wide as the nested level we are in
-				LeadingMarginSpan.Standard ms = new LeadingMarginSpan.Standard(Note.NOTE_BULLET_INTENT_FACTOR*inListLevel);
-				ssb.setSpan(ms, listItemStartPos.get(inListLevel-1), listItemEndPos.get(inListLevel-1), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);		
-				BulletSpan bs = new BulletSpan(Integer.valueOf(6));
-				ssb.setSpan(bs, listItemStartPos.get(inListLevel-1), listItemEndPos.get(inListLevel-1), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				listItemStartPos.set(inListLevel-1, Integer.valueOf(0));
-				listItemEndPos.set(inListLevel-1, Integer.valueOf(0));
-				listItemIsEmpty.set(inListLevel-1, Boolean.valueOf(true));
-				
-				inListItem = false;
-			}
+		if (noteContentDepth == 0 || depth == 0)
+			return;
+		
+		// the parser guarantees that tags are closed in order
+		depth--;
+		TagType type = tagStack[depth];
+		int start = startStack[depth];
+		int end = text.length();
+		
+		switch (type) {
+		case LIST:
+			inListLevel--;
+			break;
+		case LIST_ITEM:
+			currentItem = outerItemStack[depth];
+			end = endStack[depth];
+			
+			// if this list item is "empty" then we don't need to try rendering anything.
+			if (end == -1)
+				break;
+			
+			// here, we apply margin as wide as the nested level we are in and add a bullet
+			text.addRun(TagType.MARGIN, start, end, inListLevel);
+			text.addRun(TagType.LIST_ITEM, start, end, 0);
+			break;
+		case OTHER:
+			break;
+		default:
+			// empty tags don't get a run
+			if (start == end)
+				break;
+			text.addRun(type, start, end, 0);
 		}
 	}
 
@@ -290,96 +180,74 @@ public class NoteContentHandler extends DefaultHandler {
 	public void characters(char[] ch, int start, int length)
 			throws SAXException {
 		
-		String currentString = new String(ch, start, length);
+		if (noteContentDepth == 0 || length == 0)
+			return;
+		
+		// while we are in note-content, append straight from the parser's buffer
+		text.append(ch, start, length);
+		
+		// this list item is not empty anymore and its end is now further.
+		// Text of nested list items only counts for the innermost one.
+		if (currentItem != -1)
+			endStack[currentItem] = text.length();
+	}
+	
+	/**
+	 * @return whether no tag inside note-content is open, so no run will cover the text appended from here
+	 */
+	public boolean isAtTopLevel() {
 
-		if (inNoteContentTag) {
-			// while we are in note-content, append
-			ssb.append(currentString, start, length);
-			int strLenStart = ssb.length()-length;
-			int strLenEnd = ssb.length();
-			
-			// apply style if required
-			// TODO I haven't tested nested tags yet
-			if (inBoldTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (boldStartPos == -1) {
-					boldStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				boldEndPos = strLenEnd;
-			}
-			if (inItalicTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (italicStartPos == -1) {
-					italicStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				italicEndPos = strLenEnd;
-			}
-			if (inStrikeTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (strikethroughStartPos == -1) {
-					strikethroughStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				strikethroughEndPos = strLenEnd;
-			}
-			if (inHighlighTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (highlightStartPos == -1) {
-					highlightStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				highlightEndPos = strLenEnd;
-			}
-			if (inMonospaceTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (monospaceStartPos == -1) {
-					monospaceStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				monospaceEndPos = strLenEnd;
-			}
-			if (inSizeSmallTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (smallStartPos == -1) {
-					smallStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				smallEndPos = strLenEnd;
-			}
-			if (inSizeLargeTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (largeStartPos == -1) {
-					largeStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				largeEndPos = strLenEnd;
-			}
-			if (inSizeHugeTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (hugeStartPos == -1) {
-					hugeStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				hugeEndPos = strLenEnd;
-			}
-			if (inLinkInternalTag) {
-				// if tag is not equal to 0 then we are already in it: no need to reset it's position again 
-				if (linkinternalStartPos == -1) {
-					linkinternalStartPos = strLenStart;
-				}
-				// no matter what, if we are still in the tag, end is now further
-				linkinternalEndPos = strLenEnd;
-			}
-			if (inListItem) {
-				// this list item is not empty, so we mark it as such. We keep track of this to avoid any
-				// problems with list items nested like this: <item><item><item>Content!</item></item></item>
-				listItemIsEmpty.set(inListLevel-1, Boolean.valueOf(false));
-				
-				// no matter what, if we are still in the tag, end is now further
-				listItemEndPos.set(inListLevel-1, strLenEnd);					
-			}
+		return depth == 0;
+	}
+
+	private void push(TagType type) {
+		
+		if (depth == tagStack.length) {
+			int size = depth * 2;
+			TagType[] types = new TagType[size];
+			System.arraycopy(tagStack, 0, types, 0, depth);
+			tagStack = types;
+			startStack = grow(startStack, size);
+			endStack = grow(endStack, size);
+			outerItemStack = grow(outerItemStack, size);
+		}
+		tagStack[depth] = type;
+		startStack[depth] = text.length();
+		depth++;
+	}
+	
+	private static int[] grow(int[] array, int size) {
+		
+		int[] grown = new int[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+	
+	private static TagType getTagType(String name) {
+		
+		if (name.equals(BOLD)) {
+			return TagType.BOLD;
+		} else if (name.equals(ITALIC)) {
+			return TagType.ITALIC;
+		} else if (name.equals(STRIKETHROUGH)) {
+			return TagType.STRIKETHROUGH;
+		} else if (name.equals(HIGHLIGHT)) {
+			return TagType.HIGHLIGHT;
+		} else if (name.equals(MONOSPACE)) {
+			return TagType.MONOSPACE;
+		} else if (name.equals(SMALL)) {
+			return TagType.SIZE_SMALL;
+		} else if (name.equals(LARGE)) {
+			return TagType.SIZE_LARGE;
+		} else if (name.equals(HUGE)) {
+			return TagType.SIZE_HUGE;
+		} else if (name.equals(LINK_INTERNAL)) {
+			return TagType.LINK_INTERNAL;
+		} else if (name.equals(LIST)) {
+			return TagType.LIST;
+		} else if (name.equals(LIST_ITEM)) {
+			return TagType.LIST_ITEM;
 		}
+		return TagType.OTHER;
 	}
 }
@@ -0,0 +1,93 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.xml;
+
+import java.io.Reader;
+
+import android.text.TextUtils;
+
+/**
+ * Reads a note's content wrapped in a note-content tag, as the content handler expects it, without
+ * concatenating the tags and the content into a new string. The content is copied straight into the
+ * parser's buffer from a range of the given text, so the title in front of it can be skipped by offset.
+ */
+public class NoteContentReader extends Reader {
+
+	private static final String PREFIX = "<note-content>";
+	private static final String SUFFIX = "</note-content>";
+
+	private final CharSequence content;
+	private final int start;
+	private final int bodyEnd;
+	private final int length;
+	private int position = 0;
+
+	public NoteContentReader(CharSequence content) {
+
+		this(content, 0, content.length());
+	}
+
+	/**
+	 * @param content text holding the note content
+	 * @param start where the note content starts in it
+	 * @param end where it ends
+	 */
+	public NoteContentReader(CharSequence content, int start, int end) {
+
+		this.content = content;
+		this.start = start;
+		bodyEnd = PREFIX.length() + end - start;
+		length = bodyEnd + SUFFIX.length();
+	}
+
+	@Override
+	public int read(char[] buffer, int offset, int count) {
+
+		if (position >= length)
+			return -1;
+
+		int read = 0;
+		while (read < count && position < length) {
+			int n;
+			if (position < PREFIX.length()) {
+				n = Math.min(count - read, PREFIX.length() - position);
+				PREFIX.getChars(position, position + n, buffer, offset + read);
+			} else if (position < bodyEnd) {
+				n = Math.min(count - read, bodyEnd - position);
+				int from = start + position - PREFIX.length();
+				TextUtils.getChars(content, from, from + n, buffer, offset + read);
+			} else {
+				n = Math.min(count - read, length - position);
+				int from = position - bodyEnd;
+				SUFFIX.getChars(from, from + n, buffer, offset + read);
+			}
+			position += n;
+			read += n;
+		}
+		return read;
+	}
+
+	@Override
+	public void close() {
+
+		position = length;
+	}
+}
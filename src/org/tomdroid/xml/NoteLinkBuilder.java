@@ -0,0 +1,277 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.xml;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.tomdroid.Note;
+import org.tomdroid.NoteManager;
+import org.tomdroid.ui.Tomdroid;
+import org.tomdroid.util.Preferences;
+import org.tomdroid.util.TLog;
+import org.tomdroid.util.TomboyDate;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Message;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.method.LinkMovementMethod;
+import android.text.method.MovementMethod;
+import android.text.style.URLSpan;
+import android.text.util.Linkify;
+import android.text.util.Linkify.MatchFilter;
+import android.text.util.Linkify.TransformFilter;
+import android.widget.TextView;
+
+/**
+ * Finds the links of a note (emails, urls, addresses, phone numbers and other notes' titles) on a
+ * background thread. The links found are stored with the note, so the regular expressions only run
+ * again when the note, the link preferences or the note titles changed.
+ * The caller gets a LINKS_OK message and applies the links to what it shows with applyTo().
+ */
+public class NoteLinkBuilder {
+
+	public static final int LINKS_OK = 2;
+
+	private static final String TAG = "NoteLinkBuilder";
+
+	// finding links is not urgent, one thread is enough
+	private static final ExecutorService pool = Executors.newSingleThreadExecutor();
+
+	private Handler parentHandler;
+	private ContentResolver resolver;
+	private int noteId;
+	private String noteTitle;
+	private String modifiedDate;
+	private String text;
+	private MatchFilter noteLinkMatchFilter;
+
+	// the links found, by position in the text
+	private int[] starts = new int[0];
+	private int[] ends = new int[0];
+	private String[] urls = new String[0];
+
+	public NoteLinkBuilder setCaller(Handler parent) {
+
+		parentHandler = parent;
+		return this;
+	}
+
+	public NoteLinkBuilder setContentResolver(ContentResolver cr) {
+
+		resolver = cr;
+		return this;
+	}
+
+	public NoteLinkBuilder setNote(Note note) {
+
+		noteId = note.getDbId();
+		noteTitle = note.getTitle();
+		modifiedDate = TomboyDate.formatUtc(note.getLastChangeMillis());
+		return this;
+	}
+
+	/**
+	 * @param content the text the links will be applied to. Links to other notes are not put
+	 * on top of the note's own internal links.
+	 */
+	public NoteLinkBuilder setContent(Spanned content) {
+
+		text = content.toString();
+		noteLinkMatchFilter = LinkInternalSpan.getNoteLinkMatchFilter(content);
+		return this;
+	}
+
+	public void build() {
+
+		int flags = 0;
+		if(Preferences.getBoolean(Preferences.Key.LINK_EMAILS))
+			flags |= Linkify.EMAIL_ADDRESSES;
+		if(Preferences.getBoolean(Preferences.Key.LINK_URLS))
+			flags |= Linkify.WEB_URLS;
+		if(Preferences.getBoolean(Preferences.Key.LINK_ADDRESSES))
+			flags |= Linkify.MAP_ADDRESSES;
+		final int linkFlags = flags;
+		final boolean linkPhones = Preferences.getBoolean(Preferences.Key.LINK_PHONES);
+		final boolean linkTitles = Preferences.getBoolean(Preferences.Key.LINK_TITLES);
+
+		if (linkFlags == 0 && !linkPhones && !linkTitles)
+			return;
+
+		pool.submit(new Runnable() {
+
+			public void run() {
+
+				try {
+					findLinks(linkFlags, linkPhones, linkTitles);
+				} catch (Exception e) {
+					e.printStackTrace();
+					TLog.e(TAG, "There was an error finding the links of note {0}", noteTitle);
+					return;
+				}
+
+				Message msg = Message.obtain();
+				msg.what = LINKS_OK;
+				msg.obj = NoteLinkBuilder.this;
+				parentHandler.sendMessage(msg);
+			}
+		});
+	}
+
+	private void findLinks(int linkFlags, boolean linkPhones, boolean linkTitles) {
+
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		Pattern titles = null;
+		if (linkTitles)
+			titles = NoteManager.buildNoteLinkifyPattern(resolver, noteTitle, ids);
+
+		// links to other notes change with their titles
+		int titlesHash = 0;
+		for (Map.Entry<String, Integer> id : ids.entrySet())
+			titlesHash += id.getKey().hashCode() * 31 + id.getValue();
+		String key = modifiedDate + "|" + linkFlags + "|" + linkPhones + "|" + (titles == null ? "" : titlesHash);
+
+		Uri uri = Uri.parse(Tomdroid.CONTENT_URI + "/" + noteId);
+		if (readLinks(uri, key)) {
+			TLog.v(TAG, "using stored links for note {0}", noteTitle);
+			return;
+		}
+
+		SpannableString linked = new SpannableString(text);
+
+		// add links to stuff that is understood by Android except phone numbers because it's too aggressive
+		if (linkFlags != 0)
+			Linkify.addLinks(linked, linkFlags);
+
+		// Custom phone number linkifier (fixes lp:512204)
+		if (linkPhones)
+			Linkify.addLinks(linked, LinkifyPhone.PHONE_PATTERN, "tel:", LinkifyPhone.sPhoneNumberMatchFilter, Linkify.sPhoneNumberTransformFilter);
+
+		// This will create a link every time a note title is found in the text.
+		// Then we transform the url from the note name to the note id to avoid characters that mess up with the URI (ex: ?)
+		if (titles != null) {
+			Linkify.addLinks(linked, titles, Tomdroid.CONTENT_URI+"/", noteLinkMatchFilter, new TransformFilter() {
+
+				public String transformUrl(Matcher m, String str) {
+
+					Integer id = ids.get(str.toUpperCase());
+					// return something like content://org.tomdroid.notes/notes/3
+					return Tomdroid.CONTENT_URI.toString()+"/"+(id == null ? 0 : id);
+				}
+			});
+		}
+
+		URLSpan[] spans = linked.getSpans(0, linked.length(), URLSpan.class);
+		starts = new int[spans.length];
+		ends = new int[spans.length];
+		urls = new String[spans.length];
+		for (int i = 0; i < spans.length; i++) {
+			starts[i] = linked.getSpanStart(spans[i]);
+			ends[i] = linked.getSpanEnd(spans[i]);
+			urls[i] = spans[i].getURL();
+		}
+
+		writeLinks(uri, key);
+	}
+
+	// stored links are a line with the key they were found for, then one "start end url" line per link
+	private boolean readLinks(Uri uri, String key) {
+
+		String stored = null;
+		Cursor cursor = resolver.query(uri, new String[] { Note.LINKS }, null, null, null);
+		if (cursor != null) {
+			if (cursor.moveToFirst())
+				stored = cursor.getString(0);
+			cursor.close();
+		}
+		if (stored == null || !stored.startsWith(key + "\n"))
+			return false;
+
+		String[] lines = stored.substring(key.length() + 1).split("\n");
+		int count = lines.length == 1 && lines[0].length() == 0 ? 0 : lines.length;
+		int[] storedStarts = new int[count];
+		int[] storedEnds = new int[count];
+		String[] storedUrls = new String[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				int first = lines[i].indexOf(' ');
+				int second = lines[i].indexOf(' ', first + 1);
+				storedStarts[i] = Integer.parseInt(lines[i].substring(0, first));
+				storedEnds[i] = Integer.parseInt(lines[i].substring(first + 1, second));
+				storedUrls[i] = lines[i].substring(second + 1);
+				if (storedEnds[i] > text.length())
+					return false;
+			}
+		} catch (Exception e) {
+			TLog.w(TAG, "Stored links of note {0} can't be read", noteTitle);
+			return false;
+		}
+
+		starts = storedStarts;
+		ends = storedEnds;
+		urls = storedUrls;
+		return true;
+	}
+
+	private void writeLinks(Uri uri, String key) {
+
+		StringBuilder stored = new StringBuilder(key).append('\n');
+		for (int i = 0; i < urls.length; i++)
+			stored.append(starts[i]).append(' ').append(ends[i]).append(' ').append(urls[i]).append('\n');
+
+		ContentValues values = new ContentValues();
+		values.put(Note.LINKS, stored.toString());
+		resolver.update(Uri.withAppendedPath(uri, "links"), values, null, null);
+	}
+
+	/**
+	 * Puts the links on the text shown by a view, unless the text changed since the links were searched
+	 */
+	public void applyTo(TextView view) {
+
+		CharSequence shown = view.getText();
+		if (!(shown instanceof Spannable) || !text.equals(shown.toString()))
+			return;
+
+		Spannable spannable = (Spannable) shown;
+		for (URLSpan old : spannable.getSpans(0, spannable.length(), URLSpan.class))
+			spannable.removeSpan(old);
+		for (int i = 0; i < urls.length; i++)
+			spannable.setSpan(new URLSpan(urls[i]), starts[i], ends[i], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+		// make the links clickable, like Linkify does
+		if (urls.length > 0) {
+			MovementMethod m = view.getMovementMethod();
+			if (!(m instanceof LinkMovementMethod) && view.getLinksClickable())
+				view.setMovementMethod(LinkMovementMethod.getInstance());
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.xml;
+
+/**
+ * Writes the searchable plain text of a note (the content_plain column) in a single pass over its XML.
+ *
+ * Tags are dropped, entities decoded, every run of spaces and line breaks becomes one space (none at the
+ * start) and the characters special to XML are escaped again, which is what searches compare against.
+ * This is the text Html.fromHtml() followed by XmlUtils.escape() used to make, without building a Spanned
+ * and the intermediate strings.
+ */
+public class PlainTextExtractor {
+
+	private final StringBuilder out;
+	private boolean afterSpace = true;
+
+	public PlainTextExtractor(int capacity) {
+
+		out = new StringBuilder(capacity);
+	}
+
+	/**
+	 * @return the plain text stored for a note with this title and xml content
+	 */
+	public static String extract(String title, String xmlContent) {
+
+		return new PlainTextExtractor(title.length() + xmlContent.length() + 1)
+			.appendText(title).appendText("\n").appendXml(xmlContent).toString();
+	}
+
+	/**
+	 * @return text (a search term for example) normalized the same way as the content
+	 */
+	public static String normalize(String text) {
+
+		return new PlainTextExtractor(text.length()).appendText(text).toString();
+	}
+
+	/**
+	 * Appends text that is not xml, like the title
+	 */
+	public PlainTextExtractor appendText(CharSequence text) {
+
+		int length = text.length();
+		for (int i = 0; i < length; i++)
+			append(text.charAt(i));
+		return this;
+	}
+
+	/**
+	 * Appends the text of note content xml
+	 */
+	public PlainTextExtractor appendXml(CharSequence xml) {
+
+		int length = xml.length();
+		int i = 0;
+		while (i < length) {
+			char c = xml.charAt(i);
+			if (c == '<') {
+				// tags don't contain text
+				while (i < length && xml.charAt(i) != '>')
+					i++;
+				i++;
+			} else if (c == '&') {
+				i = appendEntity(xml, i);
+			} else {
+				append(c);
+				i++;
+			}
+		}
+		return this;
+	}
+
+	// decodes the entity at position, returns where the text goes on
+	private int appendEntity(CharSequence xml, int position) {
+
+		int end = position + 1;
+		int length = xml.length();
+		while (end < length && end - position <= 10 && xml.charAt(end) != ';')
+			end++;
+		if (end >= length || xml.charAt(end) != ';') {
+			// not an entity after all
+			append('&');
+			return position + 1;
+		}
+
+		int codePoint = decode(xml, position + 1, end);
+		if (codePoint < 0) {
+			// unknown entities stay as they are
+			for (int i = position; i <= end; i++)
+				append(xml.charAt(i));
+		} else if (codePoint > Character.MAX_VALUE) {
+			for (char c : Character.toChars(codePoint))
+				append(c);
+		} else {
+			append((char) codePoint);
+		}
+		return end + 1;
+	}
+
+	private static int decode(CharSequence xml, int start, int end) {
+
+		if (regionEquals(xml, start, end, "amp"))
+			return '&';
+		if (regionEquals(xml, start, end, "lt"))
+			return '<';
+		if (regionEquals(xml, start, end, "gt"))
+			return '>';
+		if (regionEquals(xml, start, end, "quot"))
+			return '"';
+		if (regionEquals(xml, start, end, "apos"))
+			return '\'';
+		if (end - start < 2 || xml.charAt(start) != '#')
+			return -1;
+
+		try {
+			int codePoint;
+			if (xml.charAt(start + 1) == 'x' || xml.charAt(start + 1) == 'X')
+				codePoint = Integer.parseInt(xml.subSequence(start + 2, end).toString(), 16);
+			else
+				codePoint = Integer.parseInt(xml.subSequence(start + 1, end).toString());
+			return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static boolean regionEquals(CharSequence xml, int start, int end, String name) {
+
+		if (end - start != name.length())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (xml.charAt(start + i) != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void append(char c) {
+
+		switch (c) {
+		case ' ':
+		case '\n':
+			if (!afterSpace)
+				out.append(' ');
+			afterSpace = true;
+			return;
+		case '&':
+			out.append("&amp;");
+			break;
+		case '<':
+			out.append("&lt;");
+			break;
+		case '>':
+			out.append("&gt;");
+			break;
+		case '"':
+			out.append("&quot;");
+			break;
+		case '\'':
+			out.append("&apos;");
+			break;
+		default:
+			out.append(c);
+		}
+		afterSpace = false;
+	}
+
+	@Override
+	public String toString() {
+
+		return out.toString();
+	}
+}
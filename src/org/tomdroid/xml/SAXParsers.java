@@ -0,0 +1,80 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.xml;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Hands out SAX parsers that are reused by the calling thread instead of going through
+ * SAXParserFactory.newInstance() and newSAXParser() for every note.
+ * A parser must not be used again from inside one of its own handlers.
+ */
+public class SAXParsers {
+
+	private static SAXParserFactory contentFactory;
+	private static SAXParserFactory fileFactory;
+
+	private static final ThreadLocal<SAXParser> contentParsers = new ThreadLocal<SAXParser>();
+	private static final ThreadLocal<SAXParser> fileParsers = new ThreadLocal<SAXParser>();
+
+	/**
+	 * @return a parser for bare note content. Namespaces are trashed but prefixes are kept
+	 * since note content doesn't come with the xml header (size:large, link:internal, ...)
+	 */
+	public static SAXParser getContentParser() throws ParserConfigurationException, SAXException {
+
+		SAXParser parser = contentParsers.get();
+		if (parser == null) {
+			synchronized (SAXParsers.class) {
+				if (contentFactory == null) {
+					SAXParserFactory spf = SAXParserFactory.newInstance();
+					spf.setFeature("http://xml.org/sax/features/namespaces", false);
+					spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+					contentFactory = spf;
+				}
+				parser = contentFactory.newSAXParser();
+			}
+			contentParsers.set(parser);
+		}
+		return parser;
+	}
+
+	/**
+	 * @return a parser for complete .note files, with the factory's default settings
+	 */
+	public static SAXParser getFileParser() throws ParserConfigurationException, SAXException {
+
+		SAXParser parser = fileParsers.get();
+		if (parser == null) {
+			synchronized (SAXParsers.class) {
+				if (fileFactory == null)
+					fileFactory = SAXParserFactory.newInstance();
+				parser = fileFactory.newSAXParser();
+			}
+			fileParsers.set(parser);
+		}
+		return parser;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Tomdroid
+ * Tomboy on Android
+ * http://www.launchpad.net/tomdroid
+ *
+ * This file is part of Tomdroid.
+ *
+ * Tomdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Tomdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Tomdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomdroid.xml;
+
+import org.tomdroid.Note;
+import org.tomdroid.util.StyledText;
+import org.tomdroid.util.TagType;
+
+import android.graphics.Typeface;
+import android.text.GetChars;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.LeadingMarginSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+
+/**
+ * Converts between StyledText runs and the spans the views show and the editor changes.
+ * Each conversion is a single pass over the text and the runs or spans.
+ */
+public class StyledTextSpans {
+
+	/**
+	 * Appends the text with a span for every run to a SpannableStringBuilder
+	 */
+	public static void appendTo(SpannableStringBuilder ssb, StyledText text) {
+
+		appendTo(ssb, text, 0, text.length(), 0, text.getRunCount());
+	}
+
+	/**
+	 * Appends a part of the text to a SpannableStringBuilder, with spans for the runs fromRun to toRun
+	 * (exclusive). These runs must lie within start and end.
+	 */
+	public static void appendTo(SpannableStringBuilder ssb, StyledText text, int start, int end, int fromRun, int toRun) {
+
+		int offset = ssb.length() - start;
+		ssb.append(new StyledChars(text, start, end));
+
+		for (int run = fromRun; run < toRun; run++) {
+			int runStart = text.getRunStart(run);
+			int runEnd = text.getRunEnd(run);
+			Object span = createSpan(text, run);
+			if (span != null)
+				ssb.setSpan(span, runStart + offset, runEnd + offset, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		}
+	}
+
+	/**
+	 * Reads text and spans known to Tomboy, in the order the spans were set
+	 */
+	public static StyledText fromSpanned(Spanned spanned) {
+
+		StyledText text = new StyledText();
+		text.append(spanned);
+
+		for (Object span : spanned.getSpans(0, spanned.length(), Object.class)) {
+			TagType type = getTagType(span);
+			if (type == TagType.OTHER)
+				continue;
+			int level = 0;
+			if (type == TagType.MARGIN)
+				level = ((LeadingMarginSpan.Standard) span).getLeadingMargin(true) / Note.NOTE_BULLET_INTENT_FACTOR;
+			text.addRun(type, spanned.getSpanStart(span), spanned.getSpanEnd(span), level);
+		}
+		return text;
+	}
+
+	private static Object createSpan(StyledText text, int run) {
+
+		switch (text.getRunType(run)) {
+		case BOLD:
+			return new StyleSpan(Typeface.BOLD);
+		case ITALIC:
+			return new StyleSpan(Typeface.ITALIC);
+		case STRIKETHROUGH:
+			return new StrikethroughSpan();
+		case HIGHLIGHT:
+			return new BackgroundColorSpan(Note.NOTE_HIGHLIGHT_COLOR);
+		case MONOSPACE:
+			return new TypefaceSpan(Note.NOTE_MONOSPACE_TYPEFACE);
+		case SIZE_SMALL:
+			return new RelativeSizeSpan(Note.NOTE_SIZE_SMALL_FACTOR);
+		case SIZE_LARGE:
+			return new RelativeSizeSpan(Note.NOTE_SIZE_LARGE_FACTOR);
+		case SIZE_HUGE:
+			return new RelativeSizeSpan(Note.NOTE_SIZE_HUGE_FACTOR);
+		case LINK_INTERNAL:
+			return new LinkInternalSpan(text.substring(text.getRunStart(run), text.getRunEnd(run)));
+		case MARGIN:
+			// Show a leading margin that is as wide as the nested level we are in
+			return new LeadingMarginSpan.Standard(Note.NOTE_BULLET_INTENT_FACTOR * text.getRunLevel(run));
+		case LIST_ITEM:
+			// TODO new sexier bullets?
+			return new BulletSpan(6);
+		default:
+			return null;
+		}
+	}
+
+	// returns the tag type a span is written as, OTHER for spans that are not written at all
+	static TagType getTagType (Object span) {
+
+		if( span instanceof StyleSpan ) {
+			StyleSpan style = (StyleSpan) span;
+			TagType type = TagType.OTHER;
+			if( (style.getStyle()&Typeface.BOLD)>0 )
+			{
+				type = TagType.BOLD;
+			}
+			if( (style.getStyle()&Typeface.ITALIC)>0 )
+			{
+				type = TagType.ITALIC;
+			}
+			return type;
+		}
+		else if( span instanceof StrikethroughSpan )
+		{
+			return TagType.STRIKETHROUGH;
+		}
+
+		else if( span instanceof BackgroundColorSpan )
+		{
+			BackgroundColorSpan bgcolor = (BackgroundColorSpan) span;
+			if( bgcolor.getBackgroundColor()==Note.NOTE_HIGHLIGHT_COLOR )
+			{
+				return TagType.HIGHLIGHT;
+			}
+		}
+		else if( span instanceof TypefaceSpan )
+		{
+			TypefaceSpan typeface = (TypefaceSpan) span;
+			if( typeface.getFamily()==Note.NOTE_MONOSPACE_TYPEFACE )
+			{
+				return TagType.MONOSPACE;
+			}
+		}
+		else if( span instanceof RelativeSizeSpan )
+		{
+			RelativeSizeSpan size = (RelativeSizeSpan) span;
+			if( size.getSizeChange()==Note.NOTE_SIZE_SMALL_FACTOR )
+			{
+				return TagType.SIZE_SMALL;
+			}
+			else if( size.getSizeChange()==Note.NOTE_SIZE_LARGE_FACTOR )
+			{
+				return TagType.SIZE_LARGE;
+			}
+			else if( size.getSizeChange()==Note.NOTE_SIZE_HUGE_FACTOR )
+			{
+				return TagType.SIZE_HUGE;
+			}
+		}
+		else if( span instanceof LinkInternalSpan )
+		{
+			return TagType.LINK_INTERNAL;
+		}
+		else if( span instanceof LeadingMarginSpan.Standard )
+		{
+			return TagType.MARGIN;
+		}
+		else if( span instanceof BulletSpan )
+		{
+			return TagType.LIST_ITEM;
+		}
+
+		return TagType.OTHER;
+	}
+
+	/*
+	 * View on a range of a StyledText. SpannableStringBuilder copies GetChars sources
+	 * with a single arraycopy.
+	 */
+	private static class StyledChars implements CharSequence, GetChars {
+
+		private final StyledText text;
+		private final int start;
+		private final int end;
+
+		StyledChars(StyledText text, int start, int end) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			return text.charAt(start + index);
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			return text.substring(start + from, start + to);
+		}
+
+		public void getChars(int from, int to, char[] dest, int destoff) {
+			text.getChars(start + from, start + to, dest, destoff);
+		}
+
+		@Override
+		public String toString() {
+			return text.substring(start, end);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.tomdroid;
+
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.util.TLog;
+import org.tomdroid.util.TomboyDate;
+import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.PlainTextExtractor;
+import org.tomdroid.xml.SAXParsers;
+import org.tomdroid.xml.XmlUtils;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.text.Html;
+import android.text.SpannableStringBuilder;
+
+/**
+ * The rewritten hot paths timed against what they replaced. The methods don't start with "test", so
+ * the unit suite leaves them out; run one on a device by name, e.g. with
+ * -e class org.tomdroid.Benchmarks#benchmarkLargeNote, and read the times in the log.
+ */
+public class Benchmarks extends TestCase {
+
+	private static final String TAG = "Benchmarks";
+	private static final int RUNS = 5;
+	private static final int NOTES = 500;
+	private static final int KEYSTROKES = 500;
+	private static final int EXTRACTIONS = 20;
+	private static final int DATES = 10000;
+
+	/**
+	 * Parses a large formatted note with NoteContentHandler and with OldNoteContentHandler, the one it
+	 * replaced. Both have to give the same text, the new one with fewer allocations.
+	 */
+	public void benchmarkLargeNote() throws Exception {
+		String content = NoteContentHandlerTest.largeNote();
+
+		// warm up the parser
+		assertEquals(parse(content, false).toString(), parse(content, true).toString());
+
+		long handlerTime = 0, handlerAllocs = 0;
+		long oldTime = 0, oldAllocs = 0;
+		Debug.startAllocCounting();
+		for (int i = 0; i < RUNS; i++) {
+			Debug.resetThreadAllocCount();
+			long start = SystemClock.elapsedRealtime();
+			parse(content, true);
+			oldTime += SystemClock.elapsedRealtime() - start;
+			oldAllocs += Debug.getThreadAllocCount();
+
+			Debug.resetThreadAllocCount();
+			start = SystemClock.elapsedRealtime();
+			parse(content, false);
+			handlerTime += SystemClock.elapsedRealtime() - start;
+			handlerAllocs += Debug.getThreadAllocCount();
+		}
+		Debug.stopAllocCounting();
+
+		TLog.i(TAG, "{0} chars: handler {1} ms / {2} allocations, old handler {3} ms / {4} allocations",
+				content.length(), handlerTime / RUNS, handlerAllocs / RUNS, oldTime / RUNS, oldAllocs / RUNS);
+		assertTrue(handlerAllocs < oldAllocs);
+	}
+
+	/**
+	 * Per note parse overhead on a corpus of small notes, with a new factory and parser for every note
+	 * as before and with the parser SAXParsers keeps.
+	 */
+	public void benchmarkSmallNotes() throws Exception {
+		String[] notes = new String[NOTES];
+		for (int i = 0; i < NOTES; i++)
+			notes[i] = "<note-content>Note " + i + "\n<bold>Buy</bold> milk and <italic>bread</italic></note-content>";
+
+		long start = SystemClock.elapsedRealtime();
+		for (String note : notes) {
+			SAXParserFactory spf = SAXParserFactory.newInstance();
+			spf.setFeature("http://xml.org/sax/features/namespaces", false);
+			spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+			SAXParser sp = spf.newSAXParser();
+			sp.parse(new InputSource(new StringReader(note)), new NoteContentHandler(new SpannableStringBuilder()));
+		}
+		long fresh = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		for (String note : notes) {
+			SAXParser sp = SAXParsers.getContentParser();
+			sp.parse(new InputSource(new StringReader(note)), new NoteContentHandler(new SpannableStringBuilder()));
+		}
+		long reused = SystemClock.elapsedRealtime() - start;
+
+		TLog.i(TAG, "{0} small notes: {1} us per note with a new parser, {2} us per note with a reused one",
+				NOTES, fresh * 1000 / NOTES, reused * 1000 / NOTES);
+		assertTrue(reused <= fresh);
+	}
+
+	/**
+	 * Types into a note with thousands of spans with bold and strikeout on, once by replacing the
+	 * spans for every keystroke as the editor used to and once with style runs.
+	 */
+	public void benchmarkTyping() {
+		SpannableStringBuilder perKey = StyleRunsTest.largeNote();
+		long start = SystemClock.elapsedRealtime();
+		StyleRunsTest.typeReplacingSpans(perKey, KEYSTROKES);
+		long perKeyTime = SystemClock.elapsedRealtime() - start;
+
+		SpannableStringBuilder withRuns = StyleRunsTest.largeNote();
+		start = SystemClock.elapsedRealtime();
+		StyleRunsTest.typeWithRuns(withRuns, KEYSTROKES);
+		long runsTime = SystemClock.elapsedRealtime() - start;
+
+		assertEquals(perKey.toString(), withRuns.toString());
+		TLog.i(TAG, "{0} spans: {1} us per keystroke replacing spans, {2} us per keystroke with style runs",
+				StyleRunsTest.SPANS, perKeyTime * 1000 / KEYSTROKES, runsTime * 1000 / KEYSTROKES);
+		assertTrue(runsTime <= perKeyTime);
+	}
+
+	/**
+	 * Extracts the text of a large note with PlainTextExtractor and with the Html.fromHtml path it
+	 * replaced.
+	 */
+	public void benchmarkExtractAgainstHtml() {
+		String title = "Large note";
+		String content = PlainTextExtractorTest.largeNote(title);
+
+		long start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < EXTRACTIONS; i++)
+			XmlUtils.escape(Html.fromHtml(title + "\n" + content).toString());
+		long htmlTime = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < EXTRACTIONS; i++)
+			PlainTextExtractor.extract(title, content);
+		long extractTime = SystemClock.elapsedRealtime() - start;
+
+		TLog.i(TAG, "{0} chars: Html.fromHtml {1} ms, extractor {2} ms", content.length(), htmlTime / EXTRACTIONS, extractTime / EXTRACTIONS);
+		assertTrue(extractTime <= htmlTime);
+	}
+
+	/**
+	 * Parses and formats a date with what Time used to do (a regular expression, parse3339 and format
+	 * with the default locale swapped) and with TomboyDate.
+	 */
+	public void benchmarkDatesAgainstTime() {
+		String date = "2010-01-23T12:07:38.7743020-05:00";
+		Pattern fraction = Pattern.compile("(\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{3})\\d{4}(.*)");
+
+		long start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < DATES; i++) {
+			android.text.format.Time time = new android.text.format.Time();
+			Matcher m = fraction.matcher(date);
+			time.parse3339(m.find() ? m.group(1) + m.group(2) : date);
+			Locale locale = Locale.getDefault();
+			Locale.setDefault(Locale.US);
+			time.format("%Y-%m-%dT%H:%M:%S.0000000");
+			Locale.setDefault(locale);
+			time.toMillis(false);
+		}
+		long timeTime = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < DATES; i++)
+			TomboyDate.formatUtc(TomboyDate.parse(date));
+		long tomboyDateTime = SystemClock.elapsedRealtime() - start;
+
+		TLog.i(TAG, "{0} dates: Time {1} ms, TomboyDate {2} ms", DATES, timeTime, tomboyDateTime);
+		assertTrue(tomboyDateTime <= timeTime);
+	}
+
+	private static SpannableStringBuilder parse(String content, boolean old) throws Exception {
+		SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setFeature("http://xml.org/sax/features/namespaces", false);
+		spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+		SAXParser sp = spf.newSAXParser();
+
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		DefaultHandler handler = old ? new OldNoteContentHandler(ssb) : new NoteContentHandler(ssb);
+		sp.parse(new InputSource(new StringReader("<note-content>" + content + "</note-content>")), handler);
+		return ssb;
+	}
+}
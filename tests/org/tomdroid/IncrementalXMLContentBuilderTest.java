@@ -0,0 +1,102 @@
+package org.tomdroid;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.xml.IncrementalXMLContentBuilder;
+import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.NoteXMLContentBuilder;
+import org.tomdroid.xml.SAXParsers;
+import org.xml.sax.InputSource;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.StyleSpan;
+
+public class IncrementalXMLContentBuilderTest extends TestCase {
+
+	// the title, the empty line, the text up to the end of the list and the last line
+	private static final int PARAGRAPHS = 4;
+	private static final String CONTENT = "Title\n\nplain <bold>bold</bold> text\n"
+			+ "<list><list-item dir=\"ltr\">one\n</list-item><list-item dir=\"ltr\">two <italic>i</italic>\n</list-item></list>"
+			+ "after <size:large>the</size:large> list\nlast line";
+
+	public void testSameAsWholeNote() throws Exception {
+		SpannableStringBuilder ssb = parse(CONTENT);
+		IncrementalXMLContentBuilder builder = new IncrementalXMLContentBuilder();
+		builder.attach(ssb);
+		assertEquals(CONTENT, builder.setInputSource(ssb).build());
+		assertEquals(PARAGRAPHS, builder.getRebuiltParagraphs());
+		// nothing changed, nothing to rebuild
+		assertEquals(CONTENT, builder.setInputSource(ssb).build());
+		assertEquals(0, builder.getRebuiltParagraphs());
+	}
+
+	public void testOnlyEditedParagraphsAreRebuilt() throws Exception {
+		SpannableStringBuilder ssb = parse(CONTENT);
+		IncrementalXMLContentBuilder builder = new IncrementalXMLContentBuilder();
+		builder.attach(ssb);
+		builder.setInputSource(ssb).build();
+
+		ssb.insert(2, "x");
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+		assertEquals(1, builder.getRebuiltParagraphs());
+
+		ssb.insert(ssb.toString().indexOf("line"), "x");
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+		assertEquals(1, builder.getRebuiltParagraphs());
+
+		// merges the title, the empty line and the text into one paragraph
+		ssb.delete(6, 8);
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+		assertEquals(1, builder.getRebuiltParagraphs());
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+		assertEquals(0, builder.getRebuiltParagraphs());
+	}
+
+	public void testTextChanges() throws Exception {
+		SpannableStringBuilder ssb = parse(CONTENT);
+		IncrementalXMLContentBuilder builder = new IncrementalXMLContentBuilder();
+		builder.attach(ssb);
+		builder.setInputSource(ssb).build();
+
+		ssb.insert(ssb.toString().indexOf("plain"), "very ");
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+
+		ssb.delete(ssb.toString().indexOf("last"), ssb.length());
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+
+		// merges the first two paragraphs
+		ssb.delete(5, 7);
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+	}
+
+	public void testFormattingChanges() throws Exception {
+		SpannableStringBuilder ssb = parse(CONTENT);
+		IncrementalXMLContentBuilder builder = new IncrementalXMLContentBuilder();
+		builder.attach(ssb);
+		builder.setInputSource(ssb).build();
+
+		int after = ssb.toString().indexOf("after");
+		ssb.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), after, after + 5, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		String xml = builder.setInputSource(ssb).build();
+		assertEquals(serialize(ssb), xml);
+		assertTrue(xml.contains("<italic>after</italic>"));
+
+		for (StyleSpan span : ssb.getSpans(0, ssb.length(), StyleSpan.class))
+			ssb.removeSpan(span);
+		assertEquals(serialize(ssb), builder.setInputSource(ssb).build());
+	}
+
+	private static String serialize(SpannableStringBuilder ssb) {
+		return new NoteXMLContentBuilder().setInputSource(new SpannableStringBuilder(ssb)).build();
+	}
+
+	private static SpannableStringBuilder parse(String content) throws Exception {
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		SAXParsers.getContentParser().parse(new InputSource(new StringReader("<note-content>" + content + "</note-content>")),
+				new NoteContentHandler(ssb));
+		return ssb;
+	}
+}
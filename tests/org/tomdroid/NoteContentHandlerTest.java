@@ -0,0 +1,90 @@
+package org.tomdroid;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.xml.LinkInternalSpan;
+import org.tomdroid.xml.NoteContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import android.text.SpannableStringBuilder;
+import android.text.style.BulletSpan;
+import android.text.style.StyleSpan;
+
+public class NoteContentHandlerTest extends TestCase {
+
+	public void testNestedTagsOfTheSameType() throws Exception {
+		SpannableStringBuilder ssb = parse("a<bold>b<bold>c</bold>d</bold>e", null);
+		assertEquals("abcde", ssb.toString());
+
+		StyleSpan[] spans = ssb.getSpans(0, ssb.length(), StyleSpan.class);
+		assertEquals(2, spans.length);
+		// the inner tag doesn't overwrite the outer one
+		assertEquals(2, ssb.getSpans(2, 3, StyleSpan.class).length);
+		assertEquals(1, ssb.getSpans(1, 2, StyleSpan.class).length);
+		assertEquals(1, ssb.getSpans(3, 4, StyleSpan.class).length);
+	}
+
+	public void testEmptyTagsGetNoSpan() throws Exception {
+		SpannableStringBuilder ssb = parse("a<italic></italic><list><list-item dir=\"ltr\"></list-item></list>b", null);
+		assertEquals("ab", ssb.toString());
+		assertEquals(0, ssb.getSpans(0, ssb.length(), Object.class).length);
+	}
+
+	public void testNestedListItems() throws Exception {
+		SpannableStringBuilder ssb = parse("<list><list-item dir=\"ltr\">one\n<list><list-item dir=\"ltr\">two\n"
+				+ "</list-item></list></list-item></list>", null);
+		BulletSpan[] bullets = ssb.getSpans(0, ssb.length(), BulletSpan.class);
+		assertEquals(2, bullets.length);
+		// each item only covers its own text
+		assertEquals(1, ssb.getSpans(0, 4, BulletSpan.class).length);
+		assertEquals(1, ssb.getSpans(4, 8, BulletSpan.class).length);
+		for (BulletSpan bullet : bullets)
+			assertEquals(4, ssb.getSpanEnd(bullet) - ssb.getSpanStart(bullet));
+	}
+
+	public void testInternalLinkTitle() throws Exception {
+		SpannableStringBuilder ssb = parse("see <link:internal>Other <bold>note</bold></link:internal>", null);
+		LinkInternalSpan[] links = ssb.getSpans(0, ssb.length(), LinkInternalSpan.class);
+		assertEquals(1, links.length);
+		assertEquals("Other note", ssb.subSequence(ssb.getSpanStart(links[0]), ssb.getSpanEnd(links[0])).toString());
+	}
+
+	public void testSameTextAsOldHandler() throws Exception {
+		String content = largeNote();
+		SpannableStringBuilder old = new SpannableStringBuilder();
+		parse(content, new OldNoteContentHandler(old));
+		assertEquals(old.toString(), parse(content, null).toString());
+	}
+
+	static String largeNote() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			sb.append("Paragraph ").append(i).append(" has <bold>bold <italic>and italic</italic></bold>, ")
+				.append("<highlight>highlighted</highlight>, <monospace>code</monospace> and a ")
+				.append("<link:internal>link to note ").append(i).append("</link:internal>.\n")
+				.append("<list><list-item dir=\"ltr\">first <strikethrough>item</strikethrough>\n")
+				.append("<list><list-item dir=\"ltr\"><size:large>nested</size:large> item\n</list-item></list>")
+				.append("</list-item></list>");
+		}
+		return sb.toString();
+	}
+
+	private static SpannableStringBuilder parse(String content, DefaultHandler handler) throws Exception {
+		SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setFeature("http://xml.org/sax/features/namespaces", false);
+		spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+		SAXParser sp = spf.newSAXParser();
+
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		if (handler == null)
+			handler = new NoteContentHandler(ssb);
+		sp.parse(new InputSource(new StringReader("<note-content>" + content + "</note-content>")), handler);
+		return ssb;
+	}
+}
@@ -0,0 +1,68 @@
+package org.tomdroid;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.NoteContentReader;
+import org.tomdroid.xml.SAXParsers;
+import org.tomdroid.xml.XmlUtils;
+import org.xml.sax.InputSource;
+
+import android.text.SpannableStringBuilder;
+
+public class NoteContentReaderTest extends TestCase {
+
+	public void testReadsWrappedRange() throws Exception {
+		String stored = "Title\n\nsome <bold>content</bold>";
+		assertEquals("<note-content>some <bold>content</bold></note-content>", readAll(new NoteContentReader(stored, 7, stored.length()), 3));
+		assertEquals("<note-content>" + stored + "</note-content>", readAll(new NoteContentReader(stored), 1000));
+		assertEquals("<note-content></note-content>", readAll(new NoteContentReader(""), 4));
+	}
+
+	public void testReadsEditableText() throws Exception {
+		SpannableStringBuilder text = new SpannableStringBuilder("edited <italic>text</italic>");
+		assertEquals("<note-content>edited <italic>text</italic></note-content>", readAll(new NoteContentReader(text), 5));
+	}
+
+	public void testParsesFromOffset() throws Exception {
+		String stored = "Title\n\nsome <bold>content</bold>";
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		SAXParsers.getContentParser().parse(new InputSource(new NoteContentReader(stored, 7, stored.length())), new NoteContentHandler(ssb));
+		assertEquals("some content", ssb.toString());
+	}
+
+	public void testContentStartLikeTheRegularExpression() {
+		String[][] cases = {
+				{ "Title", "Title\n\ncontent" },
+				{ "Title", "  \nTitle\n\ncontent" },
+				{ "Title", "Title\ncontent" },
+				{ "Title", "Other\n\ncontent" },
+				{ " Title", " Title\n\ncontent" },
+				{ "", "\n\ncontent" },
+				{ "", "  \n\n\ncontent" },
+				{ "a & b", "a &amp; b\n\ncontent" },
+				{ "Title", "Title\n\n" },
+				{ "Title", "" },
+		};
+		for (String[] c : cases)
+			assertEquals(c[0] + "|" + c[1], regexStart(c[1], c[0]), NoteManager.getContentStart(c[1], c[0]));
+	}
+
+	// what stripTitleFromContent used to do
+	private static int regexStart(String xmlContent, String title) {
+		Matcher m = Pattern.compile("^\\s*" + Pattern.quote(XmlUtils.escape(title)) + "\\n\\n").matcher(xmlContent);
+		return m.find() ? m.end() : 0;
+	}
+
+	private static String readAll(NoteContentReader reader, int bufferSize) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[bufferSize];
+		int read;
+		while ((read = reader.read(buffer, 0, bufferSize)) != -1)
+			sb.append(buffer, 0, read);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,64 @@
+package org.tomdroid;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.util.NoteDiffBuilder;
+import org.tomdroid.util.TLog;
+
+import android.os.SystemClock;
+import android.text.SpannableStringBuilder;
+import android.text.style.BackgroundColorSpan;
+
+public class NoteDiffBuilderTest extends TestCase {
+
+	private static final String TAG = "NoteDiffBuilderTest";
+
+	public void testSameText() {
+		assertEquals("", diff("one\ntwo", "one\ntwo").toString());
+	}
+
+	public void testChangedLine() {
+		SpannableStringBuilder diff = diff("one\nthe old word\nthree", "one\nthe new word\nthree");
+		assertEquals("Line 2:\nLocal:\nthe old word\n\nRemote:\nthe new word\n\n", diff.toString());
+
+		BackgroundColorSpan[] spans = diff.getSpans(0, diff.length(), BackgroundColorSpan.class);
+		assertEquals(2, spans.length);
+		assertEquals("old", highlighted(diff, spans, NoteDiffBuilder.REMOVED_COLOR));
+		assertEquals("new", highlighted(diff, spans, NoteDiffBuilder.ADDED_COLOR));
+	}
+
+	public void testInsertedAndDeletedLines() {
+		assertEquals("Line 2:\nRemote:\nadded\n\n", diff("one\ntwo", "one\nadded\ntwo").toString());
+		assertEquals("Line 2:\nLocal:\nremoved\n\n", diff("one\r\nremoved\r\ntwo", "one\ntwo").toString());
+	}
+
+	/**
+	 * A large note where every other line changed, the time is logged, run on a device to compare.
+	 */
+	public void testLargeNoteIsCapped() {
+		StringBuilder local = new StringBuilder();
+		StringBuilder remote = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			local.append("line ").append(i).append(" of the note\n");
+			remote.append("line ").append(i).append(i % 2 == 0 ? " of the note\n" : " of the edited note\n");
+		}
+
+		long start = SystemClock.elapsedRealtime();
+		SpannableStringBuilder diff = diff(local.toString(), remote.toString());
+		TLog.i(TAG, "diff of {0} lines: {1} ms, {2} chars", 10000, SystemClock.elapsedRealtime() - start, diff.length());
+
+		assertTrue(diff.toString().startsWith("Line 2:\n"));
+	}
+
+	private static SpannableStringBuilder diff(String local, String remote) {
+		return new NoteDiffBuilder().setTexts(local, remote).setLabels("Line %1$s:", "Local", "Remote").diff();
+	}
+
+	private static String highlighted(SpannableStringBuilder diff, BackgroundColorSpan[] spans, int color) {
+		for (BackgroundColorSpan span : spans) {
+			if (span.getBackgroundColor() == color)
+				return diff.subSequence(diff.getSpanStart(span), diff.getSpanEnd(span)).toString();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,41 @@
+package org.tomdroid;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.util.NoteHash;
+
+/**
+ * The same note as stored locally and as sent by a server or written on another device.
+ */
+public class NoteHashTest extends TestCase {
+
+	private static final String TITLE = "Shopping & errands";
+	private static final String CONTENT = "Milk\n<bold>Bread</bold>\nEggs";
+	private static final String HASH = NoteHash.of(TITLE, CONTENT, "system:notebook:Home,todo,");
+
+	public void testSameNote() {
+		assertEquals(40, HASH.length());
+		assertEquals(HASH, NoteHash.of(TITLE, CONTENT, "system:notebook:Home,todo,"));
+	}
+
+	public void testDoubledTitle() {
+		assertEquals(HASH, NoteHash.of(TITLE, "Shopping &amp; errands\n\n" + CONTENT, "system:notebook:Home,todo,"));
+	}
+
+	public void testLineBreaksAndTrailingWhitespace() {
+		assertEquals(HASH, NoteHash.of(TITLE, CONTENT.replace("\n", "\r\n") + "\n\n", "system:notebook:Home,todo,"));
+	}
+
+	public void testTagOrder() {
+		assertEquals(HASH, NoteHash.of(TITLE, CONTENT, "todo,system:notebook:Home"));
+		assertEquals(HASH, NoteHash.of(TITLE, CONTENT, " todo ,,system:notebook:Home,todo"));
+	}
+
+	public void testChanges() {
+		assertFalse(HASH.equals(NoteHash.of("Shopping", CONTENT, "system:notebook:Home,todo,")));
+		assertFalse(HASH.equals(NoteHash.of(TITLE, CONTENT.replace("Eggs", "Butter"), "system:notebook:Home,todo,")));
+		assertFalse(HASH.equals(NoteHash.of(TITLE, CONTENT, "system:notebook:Home,todo,system:deleted")));
+		// markup is content too
+		assertFalse(HASH.equals(NoteHash.of(TITLE, CONTENT.replace("<bold>Bread</bold>", "Bread"), "system:notebook:Home,todo,")));
+	}
+}
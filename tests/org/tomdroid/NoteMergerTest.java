@@ -0,0 +1,77 @@
+package org.tomdroid;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.sync.NoteMerger;
+
+/**
+ * Concurrent edits of the same note on two devices, each with the content they had at the last sync.
+ */
+public class NoteMergerTest extends TestCase {
+
+	private static final String BASE = "First paragraph.\n"
+			+ "Second <bold>paragraph</bold>.\n"
+			+ "<list><list-item dir=\"ltr\">one\n</list-item><list-item dir=\"ltr\">two</list-item></list>\n"
+			+ "Last paragraph.";
+
+	public void testOneSideChanged() {
+		String local = BASE.replace("First", "1st");
+		assertEquals(local, NoteMerger.merge(BASE, local, BASE));
+		assertEquals(local, NoteMerger.merge(BASE, BASE, local));
+	}
+
+	public void testDifferentParagraphs() {
+		String local = BASE.replace("First", "1st");
+		String remote = BASE.replace("Last", "Final");
+		assertEquals(BASE.replace("First", "1st").replace("Last", "Final"), NoteMerger.merge(BASE, local, remote));
+	}
+
+	public void testAdjacentParagraphs() {
+		String local = BASE.replace("First", "1st");
+		String remote = BASE.replace("Second", "2nd");
+		assertEquals(BASE.replace("First", "1st").replace("Second", "2nd"), NoteMerger.merge(BASE, local, remote));
+	}
+
+	public void testAddedAtDifferentPlaces() {
+		String local = "New first line.\n" + BASE;
+		String remote = BASE + "\nNew last line.";
+		assertEquals("New first line.\n" + BASE + "\nNew last line.", NoteMerger.merge(BASE, local, remote));
+	}
+
+	public void testDeletedAndEditedElsewhere() {
+		String local = BASE.replace("First paragraph.\n", "");
+		String remote = BASE.replace("Last", "Final");
+		assertEquals(BASE.replace("First paragraph.\n", "").replace("Last", "Final"), NoteMerger.merge(BASE, local, remote));
+	}
+
+	public void testSameChangeOnBothSides() {
+		String changed = BASE.replace("two", "three");
+		assertEquals(changed, NoteMerger.merge(BASE, changed, changed));
+		String local = changed.replace("First", "1st");
+		assertEquals(local, NoteMerger.merge(BASE, local, changed));
+	}
+
+	public void testSameParagraphIsAConflict() {
+		assertNull(NoteMerger.merge(BASE, BASE.replace("First", "1st"), BASE.replace("paragraph.\nSecond", "para.\nSecond")));
+	}
+
+	public void testDeletedAndEditedIsAConflict() {
+		assertNull(NoteMerger.merge(BASE, BASE.replace("Last paragraph.", ""), BASE.replace("Last", "Final")));
+		assertNull(NoteMerger.merge(BASE, BASE.replace("\nLast paragraph.", ""), BASE.replace("Last", "Final")));
+	}
+
+	public void testBrokenTagsAreAConflict() {
+		// the list is opened on the deleted line and closed on the edited one
+		String local = BASE.replace("<list><list-item dir=\"ltr\">one\n", "");
+		String remote = BASE.replace("two", "three");
+		assertNull(NoteMerger.merge(BASE, local, remote));
+	}
+
+	public void testAddedAtTheSamePlaceIsAConflict() {
+		assertNull(NoteMerger.merge(BASE, BASE + "\nlocal addition", BASE + "\nremote addition"));
+	}
+
+	public void testEverythingRemoved() {
+		assertEquals("", NoteMerger.merge("a\nb", "b", "a"));
+	}
+}
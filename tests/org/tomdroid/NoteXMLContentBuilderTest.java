@@ -0,0 +1,126 @@
+package org.tomdroid;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.NoteXMLContentBuilder;
+import org.tomdroid.xml.SAXParsers;
+import org.xml.sax.InputSource;
+
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.BulletSpan;
+import android.text.style.LeadingMarginSpan;
+import android.text.style.StyleSpan;
+
+// expected strings are what the recursive serializer produced for the same input
+public class NoteXMLContentBuilderTest extends InstrumentationTestCase {
+
+	// the test notes, from xml-schema in the test package's assets
+	private static final String CORPUS = "complete-testcase";
+	private static final Pattern NOTE_CONTENT = Pattern.compile("<note-content[^>]*>(.*)</note-content>", Pattern.DOTALL);
+
+	public void testFormatting() throws Exception {
+		assertRoundTrip("Title\n\nplain <bold>bold <italic>both</italic></bold> <size:large>large</size:large>\n");
+		assertRoundTrip("a <highlight>hl <link:internal>Other note</link:internal></highlight> <monospace>mono</monospace> "
+				+ "<strikethrough>s</strikethrough> <size:small>s</size:small> <size:huge>h</size:huge>");
+	}
+
+	public void testNestedLists() throws Exception {
+		assertEquals("<list><list-item dir=\"ltr\">one\n</list-item><list-item dir=\"ltr\">two <bold>b</bold>\n</list-item>"
+				+ "<list-item dir=\"ltr\"><list><list-item dir=\"ltr\">nested\n</list-item></list></list-item></list>after\n",
+				serialize(parse("<list><list-item dir=\"ltr\">one\n</list-item><list-item dir=\"ltr\">two <bold>b</bold>\n"
+						+ "<list><list-item dir=\"ltr\">nested\n</list-item></list></list-item></list>after\n")));
+	}
+
+	public void testCrossingSpansAreCut() throws Exception {
+		SpannableStringBuilder ssb = new SpannableStringBuilder("abcdefgh");
+		ssb.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), 0, 5, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		ssb.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 3, 8, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		assertEquals("<bold>abc<italic>de</italic></bold><italic>fgh</italic>", serialize(ssb));
+
+		// the spans themselves are not touched
+		assertEquals(2, ssb.getSpans(0, ssb.length(), Object.class).length);
+	}
+
+	public void testSpansCrossingIntoListsAreCut() throws Exception {
+		SpannableStringBuilder ssb = new SpannableStringBuilder("ab\ncd\nef");
+		ssb.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), 0, 5, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		ssb.setSpan(new LeadingMarginSpan.Standard(Note.NOTE_BULLET_INTENT_FACTOR), 3, 6, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		ssb.setSpan(new BulletSpan(6), 3, 6, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		assertEquals("<bold>ab\n</bold><list><list-item dir=\"ltr\"><bold>cd</bold>\n</list-item></list>ef", serialize(ssb));
+	}
+
+	public void testSameAsOldBuilderOnTheTestNotes() throws Exception {
+		AssetManager assets = getInstrumentation().getContext().getAssets();
+		assertTrue(compareNotes(assets, CORPUS) > 0);
+	}
+
+	// compares both builders on the notes in the folder and its subfolders, returns how many were compared
+	private static int compareNotes(AssetManager assets, String folder) throws Exception {
+		int compared = 0;
+		for (String name : assets.list(folder)) {
+			String path = folder + "/" + name;
+			if (!name.endsWith(".note")) {
+				compared += compareNotes(assets, path);
+				continue;
+			}
+			Matcher m = NOTE_CONTENT.matcher(read(assets.open(path)));
+			if (!m.find())
+				continue;
+
+			// the old builder cuts the spans it is given
+			SpannableStringBuilder ssb;
+			SpannableStringBuilder old;
+			try {
+				ssb = parse(m.group(1));
+				old = parse(m.group(1));
+			} catch (Exception e) {
+				// some test notes are malformed on purpose
+				continue;
+			}
+			String expected = new OldNoteXMLContentBuilder().setCaller(new Handler(Looper.getMainLooper())).setInputSource(old).build();
+			assertEquals(path, expected, serialize(ssb));
+			compared++;
+		}
+		return compared;
+	}
+
+	private static String read(InputStream in) throws Exception {
+		Reader reader = new InputStreamReader(in, "UTF-8");
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[4096];
+		int read;
+		try {
+			while ((read = reader.read(buffer)) > 0)
+				sb.append(buffer, 0, read);
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
+
+	private static void assertRoundTrip(String content) throws Exception {
+		assertEquals(content, serialize(parse(content)));
+	}
+
+	private static String serialize(SpannableStringBuilder ssb) {
+		return new NoteXMLContentBuilder().setCaller(new Handler(Looper.getMainLooper())).setInputSource(ssb).build();
+	}
+
+	private static SpannableStringBuilder parse(String content) throws Exception {
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		SAXParsers.getContentParser().parse(new InputSource(new StringReader("<note-content>" + content + "</note-content>")),
+				new NoteContentHandler(ssb));
+		return ssb;
+	}
+}
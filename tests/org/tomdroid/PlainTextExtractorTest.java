@@ -0,0 +1,49 @@
+package org.tomdroid;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.xml.PlainTextExtractor;
+import org.tomdroid.xml.XmlUtils;
+
+import android.text.Html;
+
+public class PlainTextExtractorTest extends TestCase {
+
+	public void testTagsAndWhitespace() {
+		assertEquals("Title Title bold and italic one two",
+				PlainTextExtractor.extract("Title", "Title\n\n<bold>bold</bold>  and <italic>italic</italic>\n"
+						+ "<list><list-item dir=\"ltr\">one\n</list-item><list-item dir=\"ltr\">two</list-item></list>"));
+	}
+
+	public void testEntities() {
+		assertEquals("a &lt;b&gt; &amp; &quot;c&quot; it&apos;s A &amp;unknown;",
+				PlainTextExtractor.extract("a", "&lt;b&gt; &amp; \"c\" it's &#65; &unknown;"));
+	}
+
+	public void testTitleIsText() {
+		assertEquals("1 &lt; 2 1 &lt; 2", PlainTextExtractor.extract("1 < 2", "1 &lt; 2"));
+	}
+
+	public void testSearchTerms() {
+		assertEquals("&quot;quoted&quot;", PlainTextExtractor.normalize("\"quoted\""));
+	}
+
+	public void testSameAsHtml() {
+		String title = "Large note";
+		String content = largeNote(title);
+		assertEquals(XmlUtils.escape(Html.fromHtml(title + "\n" + content).toString()), PlainTextExtractor.extract(title, content));
+	}
+
+	static String largeNote(String title) {
+		StringBuilder sb = new StringBuilder(title).append("\n\n");
+		for (int i = 0; i < 500; i++) {
+			sb.append("Paragraph ").append(i).append(" has <bold>bold <italic>and italic</italic></bold>, ")
+				.append("<highlight>highlighted</highlight>, <monospace>code</monospace> &amp; a ")
+				.append("<link:internal>link to note ").append(i).append("</link:internal>.\n")
+				.append("<list><list-item dir=\"ltr\">first <strikethrough>item</strikethrough>\n")
+				.append("<list><list-item dir=\"ltr\"><size:large>nested</size:large> item\n</list-item></list>")
+				.append("</list-item></list>");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,82 @@
+package org.tomdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.util.RevisionDelta;
+import org.tomdroid.util.TLog;
+
+import android.os.SystemClock;
+
+public class RevisionDeltaTest extends TestCase {
+
+	private static final String TAG = "RevisionDeltaTest";
+
+	private static final String NOTE = "First paragraph.\n"
+			+ "Second <bold>paragraph</bold>.\n"
+			+ "<list><list-item dir=\"ltr\">one\n</list-item><list-item dir=\"ltr\">two</list-item></list>\n"
+			+ "Last paragraph.";
+
+	public void testRoundTrips() {
+		assertRoundTrip(NOTE, NOTE);
+		assertRoundTrip(NOTE, NOTE.replace("First", "1st"));
+		assertRoundTrip(NOTE, "New first line.\n" + NOTE + "\nNew last line.");
+		assertRoundTrip(NOTE, NOTE.replace("Second <bold>paragraph</bold>.\n", ""));
+		assertRoundTrip(NOTE, NOTE + "\n");
+		assertRoundTrip(NOTE, "");
+		assertRoundTrip("", NOTE);
+	}
+
+	public void testUnchangedIsEmpty() {
+		assertEquals("", RevisionDelta.encode(NOTE, NOTE));
+	}
+
+	public void testDeltaOfAnotherText() {
+		try {
+			RevisionDelta.apply("one line", RevisionDelta.encode(NOTE, NOTE.replace("Last", "Final")));
+			fail("applied a delta to the wrong text");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * A long note edited a little 100 times, stored like NoteRevisions does: the time to rebuild the
+	 * revision furthest from its snapshot and the size of the chain are logged, run on a device to compare.
+	 */
+	public void testChainSizeAndRebuildTime() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			text.append("paragraph ").append(i).append(" of a <italic>long</italic> note\n");
+		String content = text.toString();
+
+		List<String> revisions = new ArrayList<String>();
+		List<String> stored = new ArrayList<String>();
+		long fullSize = 0;
+		long storedSize = 0;
+		for (int i = 0; i < 100; i++) {
+			String next = content.replace("paragraph " + (i * 7) + " ", "edited paragraph " + (i * 7) + " ");
+			String data = i % NoteRevisions.SNAPSHOT_INTERVAL == 0 ? next : RevisionDelta.encode(content, next);
+			revisions.add(next);
+			stored.add(data);
+			fullSize += next.length();
+			storedSize += data.length();
+			content = next;
+		}
+		TLog.i(TAG, "{0} revisions: {1} chars as snapshots, {2} chars stored", revisions.size(), fullSize, storedSize);
+		assertTrue(storedSize * 5 < fullSize);
+
+		int last = NoteRevisions.SNAPSHOT_INTERVAL - 1;
+		long start = SystemClock.elapsedRealtime();
+		String rebuilt = stored.get(0);
+		for (int i = 1; i <= last; i++)
+			rebuilt = RevisionDelta.apply(rebuilt, stored.get(i));
+		TLog.i(TAG, "rebuilt revision {0} from its snapshot: {1} ms", last, SystemClock.elapsedRealtime() - start);
+		assertEquals(revisions.get(last), rebuilt);
+	}
+
+	private static void assertRoundTrip(String from, String to) {
+		assertEquals(to, RevisionDelta.apply(from, RevisionDelta.encode(from, to)));
+	}
+}
@@ -0,0 +1,52 @@
+package org.tomdroid;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.SAXParser;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.SAXParsers;
+import org.xml.sax.InputSource;
+
+import android.text.SpannableStringBuilder;
+
+public class SAXParsersTest extends TestCase {
+
+	public void testParserIsReusedPerThread() throws Exception {
+		final SAXParser parser = SAXParsers.getContentParser();
+		assertSame(parser, SAXParsers.getContentParser());
+		assertNotSame(parser, SAXParsers.getFileParser());
+
+		final SAXParser[] other = new SAXParser[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					other[0] = SAXParsers.getContentParser();
+				} catch (Exception e) {
+					// other[0] stays null
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertNotNull(other[0]);
+		assertNotSame(parser, other[0]);
+	}
+
+	public void testParserCanBeReusedAfterAnError() throws Exception {
+		SAXParser parser = SAXParsers.getContentParser();
+		try {
+			parser.parse(new InputSource(new StringReader("<note-content><bold></note-content>")), new NoteContentHandler(new SpannableStringBuilder()));
+			fail("malformed content was parsed");
+		} catch (Exception e) {
+			// expected
+		}
+
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		SAXParsers.getContentParser().parse(new InputSource(new StringReader("<note-content><bold>ok</bold></note-content>")), new NoteContentHandler(ssb));
+		assertEquals("ok", ssb.toString());
+	}
+}
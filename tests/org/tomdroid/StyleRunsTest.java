@@ -0,0 +1,124 @@
+package org.tomdroid;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.ui.StyleRuns;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+
+public class StyleRunsTest extends TestCase {
+
+	static final int SPANS = 3000;
+
+	public void testTypingGrowsTheRun() {
+		SpannableStringBuilder ssb = new SpannableStringBuilder("ab");
+		StyleRuns runs = new StyleRuns();
+		StyleSpan bold = new StyleSpan(android.graphics.Typeface.BOLD);
+		runs.start(ssb, bold, 1, 2);
+
+		type(ssb, runs, 2, "cde");
+		assertTrue(runs.continues(ssb, 5));
+		assertEquals(1, ssb.getSpans(0, ssb.length(), Object.class).length);
+		assertEquals(1, ssb.getSpanStart(bold));
+		assertEquals(5, ssb.getSpanEnd(bold));
+	}
+
+	public void testEditElsewhereClosesTheRun() {
+		SpannableStringBuilder ssb = new SpannableStringBuilder("abc");
+		StyleRuns runs = new StyleRuns();
+		StyleSpan bold = new StyleSpan(android.graphics.Typeface.BOLD);
+		runs.start(ssb, bold, 2, 3);
+
+		type(ssb, runs, 0, "x");
+		assertFalse(runs.continues(ssb, 1));
+		assertEquals(Spannable.SPAN_EXCLUSIVE_EXCLUSIVE, ssb.getSpanFlags(bold));
+
+		// closed spans don't grow anymore
+		type(ssb, runs, 4, "y");
+		assertEquals(4, ssb.getSpanEnd(bold));
+	}
+
+	public void testStartReplacesSpansOfTheSameKind() {
+		SpannableStringBuilder ssb = new SpannableStringBuilder("abcd");
+		ssb.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), 0, 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		ssb.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 0, 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		ssb.setSpan(new StrikethroughSpan(), 0, 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+		new StyleRuns().start(ssb, new StyleSpan(android.graphics.Typeface.BOLD), 1, 4);
+		assertEquals(2, ssb.getSpans(0, ssb.length(), StyleSpan.class).length);
+		assertEquals(1, ssb.getSpans(0, ssb.length(), StrikethroughSpan.class).length);
+	}
+
+	public void testSameAsReplacingSpansPerKeystroke() {
+		SpannableStringBuilder perKey = largeNote();
+		SpannableStringBuilder withRuns = largeNote();
+		typeReplacingSpans(perKey, 50);
+		typeWithRuns(withRuns, 50);
+
+		assertEquals(perKey.toString(), withRuns.toString());
+		assertEquals(SPANS + 2, withRuns.getSpans(0, withRuns.length(), Object.class).length);
+		for (Class<?> kind : new Class<?>[] { StyleSpan.class, StrikethroughSpan.class }) {
+			Object[] spans = withRuns.getSpans(withRuns.length() / 2, withRuns.length() / 2 + 1, kind);
+			Object[] expected = perKey.getSpans(perKey.length() / 2, perKey.length() / 2 + 1, kind);
+			assertEquals(expected.length, spans.length);
+			assertEquals(perKey.getSpanStart(expected[expected.length - 1]), withRuns.getSpanStart(spans[spans.length - 1]));
+			assertEquals(perKey.getSpanEnd(expected[expected.length - 1]), withRuns.getSpanEnd(spans[spans.length - 1]));
+		}
+	}
+
+	/**
+	 * Types in the middle of the note with bold and strikeout on, replacing the spans for every
+	 * keystroke as the editor used to
+	 */
+	static void typeReplacingSpans(SpannableStringBuilder ssb, int keystrokes) {
+		int position = ssb.length() / 2;
+		int styleStart = position;
+		for (int i = 0; i < keystrokes; i++) {
+			ssb.insert(position, "x");
+			position++;
+			for (StyleSpan span : ssb.getSpans(styleStart, position, StyleSpan.class))
+				ssb.removeSpan(span);
+			ssb.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			for (StrikethroughSpan span : ssb.getSpans(styleStart, position, StrikethroughSpan.class))
+				ssb.removeSpan(span);
+			ssb.setSpan(new StrikethroughSpan(), styleStart, position, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		}
+	}
+
+	/**
+	 * The same with style runs
+	 */
+	static void typeWithRuns(SpannableStringBuilder ssb, int keystrokes) {
+		StyleRuns runs = new StyleRuns();
+		int position = ssb.length() / 2;
+		int styleStart = position;
+		for (int i = 0; i < keystrokes; i++) {
+			type(ssb, runs, position, "x");
+			position++;
+			if (!runs.continues(ssb, position)) {
+				runs.start(ssb, new StyleSpan(android.graphics.Typeface.BOLD), styleStart, position);
+				runs.start(ssb, new StrikethroughSpan(), styleStart, position);
+			}
+		}
+	}
+
+	// a note with thousands of spans
+	static SpannableStringBuilder largeNote() {
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		for (int i = 0; i < SPANS; i++)
+			ssb.append("word ");
+		for (int i = 0; i < SPANS; i++)
+			ssb.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), i * 5, i * 5 + 4, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		return ssb;
+	}
+
+	// what the editor's TextWatcher sees when text is typed
+	private static void type(SpannableStringBuilder ssb, StyleRuns runs, int where, String text) {
+		runs.beforeTextChanged(ssb, where, 0, text.length());
+		ssb.insert(where, text);
+		runs.onTextChanged(where, 0, text.length());
+	}
+}
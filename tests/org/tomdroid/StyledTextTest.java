@@ -0,0 +1,94 @@
+package org.tomdroid;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.util.StyledText;
+import org.tomdroid.util.TagType;
+import org.tomdroid.xml.NoteContentHandler;
+import org.tomdroid.xml.NoteXMLContentBuilder;
+import org.tomdroid.xml.SAXParsers;
+import org.tomdroid.xml.StyledTextSpans;
+import org.xml.sax.InputSource;
+
+import android.text.SpannableStringBuilder;
+import android.text.style.BulletSpan;
+import android.text.style.LeadingMarginSpan;
+
+public class StyledTextTest extends TestCase {
+
+	private static final String CONTENT = "Title\n\nplain <bold>bold <italic>both</italic></bold> text\n"
+			+ "<list><list-item dir=\"ltr\">one\n</list-item><list-item dir=\"ltr\">two <size:huge>huge</size:huge>\n</list-item></list>"
+			+ "see <link:internal>other note</link:internal>";
+	private static final String NESTED = "<list><list-item dir=\"ltr\">one\n<list><list-item dir=\"ltr\">nested\n"
+			+ "</list-item></list></list-item><list-item dir=\"ltr\">two\n</list-item></list>";
+
+	public void testTextAndRuns() {
+		StyledText text = new StyledText();
+		// grows past its initial sizes
+		for (int i = 0; i < 100; i++) {
+			text.append("word ");
+			text.addRun(TagType.BOLD, i * 5, i * 5 + 4, 0);
+		}
+		text.append(new char[] { 'x', 'y', 'z' }, 1, 2);
+
+		assertEquals(502, text.length());
+		assertEquals("word", text.substring(495, 499));
+		assertEquals("yz", text.substring(500, 502));
+		assertEquals(100, text.getRunCount());
+		assertEquals(TagType.BOLD, text.getRunType(99));
+		assertEquals(495, text.getRunStart(99));
+		assertEquals(499, text.getRunEnd(99));
+	}
+
+	public void testRunOutsideOfTheText() {
+		StyledText text = new StyledText().append("abc");
+		try {
+			text.addRun(TagType.ITALIC, 1, 4, 0);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	public void testParsedRuns() throws Exception {
+		assertEquals("Title\n\nplain bold both text\none\ntwo huge\nsee other note", parse(CONTENT).toString());
+
+		StyledText text = parse(NESTED);
+
+		// list items are a margin and a bullet run, the margin knows the list level
+		int margins = 0;
+		for (int run = 0; run < text.getRunCount(); run++) {
+			if (text.getRunType(run) != TagType.MARGIN)
+				continue;
+			margins++;
+			String item = text.substring(text.getRunStart(run), text.getRunEnd(run));
+			assertEquals(item.startsWith("nested") ? 2 : 1, text.getRunLevel(run));
+		}
+		assertEquals(3, margins);
+	}
+
+	public void testSerializedWithoutSpans() throws Exception {
+		assertEquals(CONTENT, new NoteXMLContentBuilder().setInputSource(parse(CONTENT)).build());
+	}
+
+	public void testSpansRoundTrip() throws Exception {
+		SpannableStringBuilder ssb = new SpannableStringBuilder();
+		StyledTextSpans.appendTo(ssb, parse(CONTENT));
+		assertEquals(2, ssb.getSpans(0, ssb.length(), BulletSpan.class).length);
+		assertEquals(2, ssb.getSpans(0, ssb.length(), LeadingMarginSpan.Standard.class).length);
+
+		StyledText text = StyledTextSpans.fromSpanned(ssb);
+		assertEquals(ssb.toString(), text.toString());
+		assertEquals(ssb.getSpans(0, ssb.length(), Object.class).length, text.getRunCount());
+		assertEquals(CONTENT, new NoteXMLContentBuilder().setInputSource(ssb).build());
+	}
+
+	private static StyledText parse(String content) throws Exception {
+		StyledText text = new StyledText();
+		SAXParsers.getContentParser().parse(new InputSource(new StringReader("<note-content>" + content + "</note-content>")),
+				new NoteContentHandler(text));
+		return text;
+	}
+}
@@ -0,0 +1,223 @@
+package org.tomdroid;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.sync.SyncScheduler;
+
+/**
+ * The triggers of a background sync on a clock moved by hand, with the state stored in a map that
+ * outlives the scheduler like the preferences outlive the process.
+ */
+public class SyncSchedulerTest extends TestCase {
+
+	private static final long MINUTE = 60 * 1000;
+	private static final long INTERVAL = 30 * MINUTE;
+
+	private long time = 1000000;
+	private final Map<SyncScheduler.Field, Long> stored = new EnumMap<SyncScheduler.Field, Long>(SyncScheduler.Field.class);
+	private SyncScheduler scheduler;
+
+	@Override
+	protected void setUp() {
+		scheduler = newScheduler();
+	}
+
+	// the scheduler of a new process
+	private SyncScheduler newScheduler() {
+		return new SyncScheduler(new SyncScheduler.Clock() {
+			public long now() {
+				return time;
+			}
+		}, INTERVAL, new SyncScheduler.Store() {
+			public long load(SyncScheduler.Field field) {
+				Long value = stored.get(field);
+				return value == null ? -1 : value;
+			}
+			public void save(SyncScheduler.Field field, long value) {
+				stored.put(field, value);
+			}
+		});
+	}
+
+	public void testPeriodic() {
+		assertEquals(time + INTERVAL, scheduler.getNextRun());
+		// an alarm coming early runs nothing
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.PERIODIC));
+
+		time += INTERVAL;
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.PERIODIC));
+		assertEquals(-1, scheduler.getNextRun());
+		time += MINUTE;
+		assertEquals(SyncScheduler.NONE, scheduler.finished(true));
+		// counted from the end of the last sync
+		assertEquals(time + INTERVAL, scheduler.getNextRun());
+	}
+
+	public void testNoInterval() {
+		scheduler.setInterval(0);
+		assertEquals(-1, scheduler.getNextRun());
+		time += INTERVAL;
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.PERIODIC));
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.MANUAL));
+		scheduler.finished(true);
+		assertEquals(-1, scheduler.getNextRun());
+	}
+
+	public void testCollapsedTriggers() {
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.START));
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.MANUAL));
+		time += INTERVAL;
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.PERIODIC));
+		// the running sync serves them all
+		assertEquals(SyncScheduler.NONE, scheduler.finished(true));
+		assertFalse(scheduler.isRunning());
+	}
+
+	public void testSaveDuringSync() {
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.MANUAL));
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.SAVE));
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.SAVE));
+		// pushed once after it
+		assertEquals(SyncScheduler.PUSH, scheduler.finished(true));
+		assertEquals(SyncScheduler.NONE, scheduler.finished(true));
+	}
+
+	public void testStartSpacing() {
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.MANUAL));
+		scheduler.finished(true);
+		time += MINUTE / 2;
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.START));
+		time += MINUTE;
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.START));
+	}
+
+	public void testBackoff() {
+		time += INTERVAL;
+		long backoff = SyncScheduler.MIN_BACKOFF;
+		for (int failures = 1; failures <= 4; failures++) {
+			assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.PERIODIC));
+			assertEquals(SyncScheduler.NONE, scheduler.finished(false));
+			assertEquals(failures, scheduler.getFailures());
+			assertEquals(backoff, scheduler.getBackoff());
+			// retried once the backoff is over, not before
+			assertEquals(time + backoff, scheduler.getNextRun());
+			assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.SAVE));
+			assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.START));
+			time += backoff;
+			backoff *= 2;
+		}
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.PERIODIC));
+		assertEquals(SyncScheduler.NONE, scheduler.finished(true));
+		assertEquals(0, scheduler.getBackoff());
+		assertEquals(time + INTERVAL, scheduler.getNextRun());
+	}
+
+	public void testMaxBackoff() {
+		for (int failures = 1; failures <= 20; failures++) {
+			scheduler.request(SyncScheduler.MANUAL);
+			scheduler.finished(false);
+		}
+		assertEquals(SyncScheduler.MAX_BACKOFF, scheduler.getBackoff());
+	}
+
+	public void testFailedPushRetried() {
+		scheduler.setInterval(0);
+		assertEquals(SyncScheduler.PUSH, scheduler.request(SyncScheduler.SAVE));
+		scheduler.finished(false);
+		assertEquals(time + SyncScheduler.MIN_BACKOFF, scheduler.getNextRun());
+		time += SyncScheduler.MIN_BACKOFF;
+		assertEquals(SyncScheduler.PUSH, scheduler.request(SyncScheduler.PERIODIC));
+		scheduler.finished(true);
+		assertEquals(-1, scheduler.getNextRun());
+	}
+
+	public void testManualDuringBackoff() {
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.START));
+		scheduler.finished(false);
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.MANUAL));
+		assertEquals(SyncScheduler.NONE, scheduler.finished(true));
+		assertEquals(0, scheduler.getFailures());
+	}
+
+	public void testRestartBeforeTheAlarm() {
+		time += 10 * MINUTE;
+		long alarm = scheduler.getNextRun();
+		assertEquals(time - 10 * MINUTE + INTERVAL, alarm);
+
+		scheduler = newScheduler();
+		assertEquals(alarm, scheduler.getNextRun());
+		time = alarm;
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.ALARM));
+		scheduler.finished(true);
+
+		scheduler = newScheduler();
+		assertEquals(time + INTERVAL, scheduler.getNextRun());
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.START));
+	}
+
+	public void testBackoffSurvivesARestart() {
+		assertEquals(SyncScheduler.PUSH, scheduler.request(SyncScheduler.SAVE));
+		scheduler.finished(false);
+		scheduler.request(SyncScheduler.MANUAL);
+		scheduler.finished(false);
+
+		scheduler = newScheduler();
+		assertEquals(2, scheduler.getFailures());
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.SAVE));
+		assertEquals(time + 2 * SyncScheduler.MIN_BACKOFF, scheduler.getNextRun());
+		time += 2 * SyncScheduler.MIN_BACKOFF;
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.ALARM));
+	}
+
+	public void testSyncCutByARestartIsPending() {
+		scheduler.setInterval(0);
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.MANUAL));
+
+		scheduler = newScheduler();
+		scheduler.setInterval(0);
+		assertTrue(scheduler.getNextRun() <= time);
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.ALARM));
+	}
+
+	public void testAlarmIsDue() {
+		// the clock was set back after the alarm was set
+		time += INTERVAL - MINUTE;
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.PERIODIC));
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.ALARM));
+		scheduler.finished(true);
+		scheduler.setInterval(0);
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.ALARM));
+	}
+
+	public void testResolvedAfterTheRunningSync() {
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.MANUAL));
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.SAVE));
+		assertEquals(SyncScheduler.NONE, scheduler.request(SyncScheduler.RESOLVED));
+		// the resolve first, then the push it doesn't replace
+		assertEquals(SyncScheduler.RESOLVE, scheduler.finished(true));
+		assertEquals(SyncScheduler.PUSH, scheduler.finished(true));
+		assertEquals(SyncScheduler.NONE, scheduler.finished(true));
+	}
+
+	public void testResolvedDuringBackoff() {
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.START));
+		scheduler.finished(false);
+		assertEquals(SyncScheduler.RESOLVE, scheduler.request(SyncScheduler.RESOLVED));
+		assertEquals(SyncScheduler.NONE, scheduler.finished(false));
+		// the failed sync is still retried, the resolve isn't
+		assertEquals(2, scheduler.getFailures());
+		time += scheduler.getBackoff();
+		assertEquals(SyncScheduler.SYNC, scheduler.request(SyncScheduler.ALARM));
+	}
+
+	public void testResolveIsNotRestored() {
+		scheduler.setInterval(0);
+		assertEquals(SyncScheduler.RESOLVE, scheduler.request(SyncScheduler.RESOLVED));
+		scheduler = newScheduler();
+		scheduler.setInterval(0);
+		assertEquals(-1, scheduler.getNextRun());
+	}
+}
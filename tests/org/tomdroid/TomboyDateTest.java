@@ -0,0 +1,69 @@
+package org.tomdroid;
+
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.tomdroid.util.Time;
+import org.tomdroid.util.TomboyDate;
+
+public class TomboyDateTest extends TestCase {
+
+	public void testParse() {
+		assertEquals(0L, TomboyDate.parse("1970-01-01T00:00:00.0000000+00:00"));
+		assertEquals(1264266458774L, TomboyDate.parse("2010-01-23T12:07:38.7743020-05:00"));
+		assertEquals(1264266458774L, TomboyDate.parse("2010-01-23T17:07:38.774Z"));
+		assertEquals(1264266458700L, TomboyDate.parse("2010-01-23T18:37:38.7+01:30"));
+		assertEquals(1264266458000L, TomboyDate.parse("2010-01-23T17:07:38+00:00"));
+		assertEquals(-1000L, TomboyDate.parse("1969-12-31T23:59:59.0000000+00:00"));
+		assertEquals(951782400000L, TomboyDate.parse("2000-02-29T00:00:00.0000000+00:00"));
+	}
+
+	public void testParseLocal() {
+		long local = TomboyDate.parse("2010-07-01T12:00:00");
+		assertEquals(TomboyDate.parse("2010-07-01T12:00:00Z"), local + TimeZone.getDefault().getOffset(local));
+	}
+
+	public void testParseRejects() {
+		String[] invalid = { "", "2010-01-23 12:07:38Z", "2010-13-01T00:00:00Z", "2010-01-23T12:07:38.-05:00",
+				"2010-01-23T12:07:38.774+0500", "yesterday", "2010-01-23T12:07:38.774Zulu" };
+		for (String date : invalid) {
+			try {
+				TomboyDate.parse(date);
+				fail(date);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testFormat() {
+		assertEquals("1970-01-01T00:00:00.0000000+00:00", TomboyDate.formatUtc(0));
+		assertEquals("2010-01-23T12:07:38.7740000-05:00", TomboyDate.format(1264266458774L, -300));
+		assertEquals("2010-01-23T18:37:38.7740000+01:30", TomboyDate.format(1264266458774L, 90));
+		assertEquals("1969-12-31T23:59:59.0000000+00:00", TomboyDate.formatUtc(-1000));
+	}
+
+	public void testRoundTrip() {
+		for (long millis = -86400000L * 365 * 3; millis < 86400000L * 365 * 60; millis += 86400000L * 7 + 3600123L) {
+			assertEquals(millis, TomboyDate.parse(TomboyDate.formatUtc(millis)));
+			assertEquals(millis, TomboyDate.parse(TomboyDate.format(millis, -570)));
+		}
+	}
+
+	public void testCompareToTheSecond() {
+		assertEquals(0, TomboyDate.compare(1000, 1999));
+		assertEquals(-1, TomboyDate.compare(999, 1000));
+		assertEquals(1, TomboyDate.compare(2000, 1999));
+	}
+
+	public void testLikeTime() {
+		String[] dates = { "2010-01-23T12:07:38.7743020-05:00", "2012-06-30T23:59:59.9999999+02:00", "1999-12-31T00:00:00.0000000+00:00" };
+		for (String date : dates) {
+			Time time = new Time();
+			assertTrue(time.parseTomboy(date));
+			assertEquals(date, TomboyDate.parse(date) / 1000, time.toMillis(false) / 1000);
+			assertEquals(date, TomboyDate.formatUtc(TomboyDate.parse(date) / 1000 * 1000), time.formatTomboy());
+		}
+	}
+}